@@ -0,0 +1,113 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Helpers shared by the benchmarks: payload files,
+ * namespace prefill and a discarding output stream.
+ */
+final class BenchmarkSupport {
+    /**
+     * Number of simulated directories namespace entries are spread over,
+     * so {@code listAsync} on one of them returns roughly 1% of the namespace.
+     */
+    static final int DIRECTORIES = 100;
+
+    /**
+     * Size of entries used to fill the namespace. Kept small so that
+     * a namespace of millions of entries stays in a reasonable container size.
+     */
+    static final int PREFILL_ENTRY_SIZE = 64;
+
+    private BenchmarkSupport() {
+    }
+
+    static String prefillName(long i) {
+        return directoryName(i) + "file-" + i;
+    }
+
+    static String directoryName(long i) {
+        return "/dir-" + (i % DIRECTORIES) + "/";
+    }
+
+    /**
+     * Creates a file of {@code size} bytes which is used as a write source.
+     * A plain {@link FileInputStream} lets {@code transferFrom} use the file channel directly.
+     */
+    static File createPayload(Path dir, long size) throws IOException {
+        File payload = dir.resolve("payload-" + size).toFile();
+        try (RandomAccessFile file = new RandomAccessFile(payload, "rw");
+             FileChannel channel = file.getChannel()) {
+            ByteBuffer chunk = ByteBuffer.allocateDirect((int) Math.min(size, 1 << 20));
+            while (chunk.hasRemaining()) {
+                chunk.put((byte) (chunk.position() * 31));
+            }
+            long written = 0;
+            while (written < size) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), size - written));
+                written += channel.write(chunk, written);
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * Fills {@code handler} with {@code namespaceSize} small entries
+     * named by {@link #prefillName(long)}.
+     */
+    static void prefill(SimpleFilesystemHandler handler, int namespaceSize) {
+        byte[] data = new byte[PREFILL_ENTRY_SIZE];
+        for (int i = 0; i < namespaceSize; i++) {
+            handler.writeAsync(prefillName(i), new ByteArrayInputStream(data), data.length).join();
+        }
+    }
+
+    /**
+     * Replaces {@code container} with a copy of {@code template} and its checkpoint.
+     */
+    static void copyContainer(File template, File container) throws IOException {
+        Files.copy(template.toPath(), container.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        File checkpoint = OffsetIndexCheckpoint.checkpointFile(template);
+        if (checkpoint.exists()) {
+            Files.copy(checkpoint.toPath(), OffsetIndexCheckpoint.checkpointFile(container).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            OffsetIndexCheckpoint.invalidate(container);
+        }
+    }
+
+    static InputStream open(File payload) throws FileNotFoundException {
+        return new FileInputStream(payload);
+    }
+
+    static OutputStream discard() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder())
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks of {@link SimpleFilesystemHandler} operations.
+ *
+ * Parameterized by the size of the file being written/read ({@code fileSize})
+ * and by the number of entries already present in the filesystem ({@code namespaceSize}).
+ * Thread count is set with JMH's {@code -t} option, e.g.
+ * {@code ./gradlew jmh -PjmhArgs="SimpleFilesystemHandlerBenchmark -p fileSize=1024 -t 8"}.
+ *
+ * Use {@code -prof gc} to see allocation rate alongside throughput.
+ * The full parameter matrix is large (a 1 GB payload over a 10M entries namespace),
+ * narrow it with {@code -p} when tuning a single deployment.
+ *
+ * The prefilled container is built once per trial and copied for every iteration,
+ * so writes and updates of an iteration don't grow the container of the next one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SimpleFilesystemHandlerBenchmark {
+    static final String READ_TARGET = "/bench/read-target";
+    /**
+     * Number of files deleted by a thread in an iteration of {@link #delete}.
+     */
+    static final int DELETES = 10_000;
+
+    @State(Scope.Benchmark)
+    public static class FilesystemState {
+        @Param({"1024", "1048576", "1073741824"})
+        long fileSize;
+
+        @Param({"1000", "100000", "10000000"})
+        int namespaceSize;
+
+        Path dir;
+        File payload;
+        File template;
+        File container;
+        SimpleFilesystemHandler handler;
+        final AtomicLong counter = new AtomicLong();
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("filefs-bench");
+            payload = BenchmarkSupport.createPayload(dir, fileSize);
+            template = dir.resolve("template").toFile();
+            container = dir.resolve("fs").toFile();
+            handler = SimpleFilesystemHandler.initThenMountFilesystemAsync(template).join();
+            BenchmarkSupport.prefill(handler, namespaceSize);
+            write(READ_TARGET);
+            handler.unmount();
+        }
+
+        @Setup(Level.Iteration)
+        public void copyTemplate() throws IOException {
+            BenchmarkSupport.copyContainer(template, container);
+            handler = SimpleFilesystemHandler.mountExistingFilesystemAsync(container).join();
+        }
+
+        @TearDown(Level.Iteration)
+        public void unmount() throws IOException {
+            handler.unmount();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            BenchmarkSupport.deleteRecursively(dir);
+        }
+
+        String nextName() {
+            return "/bench/w-" + counter.getAndIncrement();
+        }
+
+        void write(String filename) throws IOException {
+            try (InputStream source = BenchmarkSupport.open(payload)) {
+                handler.writeAsync(filename, source, fileSize).join();
+            }
+        }
+    }
+
+    /**
+     * Prefilled files updated by a thread. Threads update disjoint ranges:
+     * an update deletes the file before writing it again, so a concurrent
+     * update of the same file would fail because the file already exists.
+     */
+    @State(Scope.Thread)
+    public static class UpdateTargets {
+        int first;
+        int count;
+
+        @Setup(Level.Trial)
+        public void setUp(FilesystemState state, ThreadParams threadParams) {
+            if (state.namespaceSize < threadParams.getThreadCount()) {
+                throw new IllegalArgumentException("namespaceSize must not be less than the number of threads");
+            }
+            count = state.namespaceSize / threadParams.getThreadCount();
+            first = threadParams.getThreadIndex() * count;
+        }
+
+        String randomName() {
+            return BenchmarkSupport.prefillName(first + ThreadLocalRandom.current().nextInt(count));
+        }
+    }
+
+    /**
+     * Files deleted by a thread in an iteration of {@link #delete}, written before the iteration.
+     * A delete only marks the entry, so targets are small entries whatever {@code fileSize} is.
+     */
+    @State(Scope.Thread)
+    public static class DeleteTargets {
+        final List<String> filenames = new ArrayList<>();
+
+        @Setup(Level.Iteration)
+        public void setUp(FilesystemState state) {
+            byte[] data = new byte[BenchmarkSupport.PREFILL_ENTRY_SIZE];
+            filenames.clear();
+            for (int i = 0; i < DELETES; i++) {
+                String filename = state.nextName();
+                filenames.add(filename);
+                state.handler.writeAsync(filename, new ByteArrayInputStream(data), data.length).join();
+            }
+        }
+    }
+
+    @Benchmark
+    public void write(FilesystemState state) throws IOException {
+        state.write(state.nextName());
+    }
+
+    @Benchmark
+    public void read(FilesystemState state) {
+        state.handler.readAsync(READ_TARGET, BenchmarkSupport.discard()).join();
+    }
+
+    @Benchmark
+    public void update(FilesystemState state, UpdateTargets targets) throws IOException {
+        try (InputStream source = BenchmarkSupport.open(state.payload)) {
+            state.handler.updateAsync(targets.randomName(), source, state.fileSize).join();
+        }
+    }
+
+    /**
+     * Deletes all files written before the iteration in one invocation.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OperationsPerInvocation(DELETES)
+    public void delete(FilesystemState state, DeleteTargets targets) {
+        for (String filename : targets.filenames) {
+            state.handler.deleteAsync(filename).join();
+        }
+    }
+
+    @Benchmark
+    public Set<String> list(FilesystemState state) {
+        String directory = BenchmarkSupport.directoryName(
+                ThreadLocalRandom.current().nextInt(BenchmarkSupport.DIRECTORIES));
+        return state.handler.listAsync(directory).join();
+    }
+}
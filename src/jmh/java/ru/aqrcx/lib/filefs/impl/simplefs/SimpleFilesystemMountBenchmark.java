@@ -0,0 +1,77 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link SimpleFilesystemHandler#mountExistingFilesystemAsync(File)}
+ * of a container holding {@code namespaceSize} entries.
+ * With {@code checkpoint=false} the checkpoint is deleted before every mount,
+ * so the baseline scan of all entries is measured.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SimpleFilesystemMountBenchmark {
+    @State(Scope.Benchmark)
+    public static class ContainerState {
+        @Param({"1000", "100000", "1000000", "10000000"})
+        int namespaceSize;
+
+        @Param({"true", "false"})
+        boolean checkpoint;
+
+        Path dir;
+        File container;
+        SimpleFilesystemHandler handler;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("filefs-bench");
+            container = dir.resolve("fs").toFile();
+            SimpleFilesystemHandler handler =
+                    SimpleFilesystemHandler.initThenMountFilesystemAsync(container).join();
+            BenchmarkSupport.prefill(handler, namespaceSize);
+            handler.unmount();
+        }
+
+        /**
+         * Unmount writes a checkpoint, so it's deleted before every mount.
+         */
+        @Setup(Level.Iteration)
+        public void dropCheckpoint() throws IOException {
+            if (!checkpoint) {
+                OffsetIndexCheckpoint.invalidate(container);
+            }
+        }
+
+        /**
+         * Unmount fsyncs and writes a checkpoint, so it's kept out of the measured mount.
+         */
+        @TearDown(Level.Invocation)
+        public void unmount() throws IOException {
+            if (handler != null) {
+                handler.unmount();
+                handler = null;
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            BenchmarkSupport.deleteRecursively(dir);
+        }
+    }
+
+    @Benchmark
+    public SimpleFilesystemHandler mount(ContainerState state) {
+        state.handler = SimpleFilesystemHandler.mountExistingFilesystemAsync(state.container).join();
+        return state.handler;
+    }
+}
@@ -0,0 +1,57 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs read and write benchmarks of {@link SimpleFilesystemHandlerBenchmark}
+ * with 1, 2, 4, ... threads up to the number of available processors
+ * and prints throughput per thread count, i.e. the scaling curve.
+ *
+ * Usage: {@code ./gradlew jmhScaling [-PjmhArgs="<fileSize> <namespaceSize>"]}.
+ */
+public class ThreadScalingRunner {
+    public static void main(String[] args) throws RunnerException {
+        String fileSize = args.length > 0 ? args[0] : "4096";
+        String namespaceSize = args.length > 1 ? args[1] : "1000";
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+
+        StringBuilder report = new StringBuilder(String.format(Locale.ROOT,
+                "%-8s %16s %16s%n", "threads", "read ops/s", "write ops/s"));
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            report.append(String.format(Locale.ROOT, "%-8d %16.1f %16.1f%n", threads,
+                    run("read", threads, fileSize, namespaceSize),
+                    run("write", threads, fileSize, namespaceSize)));
+        }
+        System.out.print(report);
+    }
+
+    private static double run(String benchmark, int threads, String fileSize, String namespaceSize)
+            throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(SimpleFilesystemHandlerBenchmark.class.getName() + "." + benchmark + "$")
+                .param("fileSize", fileSize)
+                .param("namespaceSize", namespaceSize)
+                .mode(Mode.Throughput)
+                .timeUnit(TimeUnit.SECONDS)
+                .threads(threads)
+                .warmupIterations(2)
+                .warmupTime(TimeValue.seconds(2))
+                .measurementIterations(3)
+                .measurementTime(TimeValue.seconds(3))
+                .forks(1)
+                .build();
+
+        Collection<RunResult> results = new Runner(options).run();
+        return results.iterator().next().getPrimaryResult().getScore();
+    }
+}
@@ -0,0 +1,40 @@
+package ru.aqrcx.lib.filefs;
+
+import java.io.InputStream;
+
+/**
+ * Data of a file to write: a stream
+ * and the number of bytes to take from it.
+ */
+public class FileSource {
+    private final InputStream stream;
+    private final long size;
+
+    private FileSource(InputStream stream, long size) {
+        this.stream = stream;
+        this.size = size;
+    }
+
+    /**
+     * @param stream File data
+     * @param size Length of file data in bytes
+     * @return Source of file data
+     */
+    public static FileSource of(InputStream stream, long size) {
+        if (stream == null) {
+            throw new IllegalArgumentException("Stream must not be null");
+        }
+        if (size < 0) {
+            throw new IllegalArgumentException("Size must not be negative");
+        }
+        return new FileSource(stream, size);
+    }
+
+    public InputStream getStream() {
+        return stream;
+    }
+
+    public long getSize() {
+        return size;
+    }
+}
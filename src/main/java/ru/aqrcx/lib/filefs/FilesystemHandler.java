@@ -3,6 +3,9 @@ package ru.aqrcx.lib.filefs;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 
@@ -12,19 +15,34 @@ import java.util.concurrent.CompletableFuture;
  *
  * Implementations should focus on working
  * with the filesystem inside a file and remain low-level.
+ *
+ * Filenames of created files must not be empty: implementations
+ * may reserve the empty name, and creating such a file fails.
  */
 public interface FilesystemHandler {
     /**
      * Creates a new file from {@code stream}
      * with {@code filename} in the filesystem.
      *
-     * @param filename Name which will be assigned to file inside filesystem
+     * @param filename Name which will be assigned to file inside filesystem, not empty
      * @param source File data
      * @param sourceSize Length of file data in bytes
      * @return CompletableFuture which indicates the result of write
      */
     CompletableFuture<Void> writeAsync(String filename, InputStream source, long sourceSize);
 
+    /**
+     * Creates new files from {@code sources} in the filesystem.
+     * Intended for many small files: implementations may write
+     * them with fewer I/O calls than separate writes.
+     * Exact behavior on failure depends on implementation.
+     *
+     * @param sources Names which will be assigned to files inside filesystem
+     *                mapped to the files' data
+     * @return CompletableFuture which indicates the result of write
+     */
+    CompletableFuture<Void> writeAllAsync(Map<String, FileSource> sources);
+
     /**
      * Method deletes the file with {@code filename}
      * from the filesystem.
@@ -44,6 +62,46 @@ public interface FilesystemHandler {
      */
     CompletableFuture<Void> readAsync(String filename, OutputStream destination);
 
+    /**
+     * Reads {@code length} bytes of file with {@code filename}
+     * starting from {@code offset} in the file and writes them in {@code destination}.
+     * The range is cut at the end of the file.
+     * Unlike {@link #readAsync(String, OutputStream)} the destination is not closed.
+     *
+     * @param filename File to read from filesystem
+     * @param offset Offset of the first byte to read in the file
+     * @param length Maximum number of bytes to read
+     * @param destination Blocking channel where file data will be written
+     * @return CompletableFuture with the number of bytes written in {@code destination}
+     */
+    CompletableFuture<Long> readRangeAsync(String filename, long offset, long length, WritableByteChannel destination);
+
+    /**
+     * Appends data from {@code source} to the end of file with {@code filename},
+     * creating the file if it doesn't exist.
+     * Implementations may extend the file in place without rewriting its data.
+     *
+     * @param filename File to append to
+     * @param source Data to append
+     * @param sourceSize Length of data in bytes
+     * @return CompletableFuture which indicates the result of append
+     */
+    CompletableFuture<Void> appendAsync(String filename, InputStream source, long sourceSize);
+
+    /**
+     * Overwrites data of file with {@code filename} starting from {@code offset}
+     * in the file with data from {@code source}, extending the file if the data
+     * goes past its end. The offset must not be greater than the size of the file.
+     * Implementations may patch the file in place without rewriting its data.
+     *
+     * @param filename File to write to
+     * @param offset Offset in the file where data will be written
+     * @param source Data to write
+     * @param sourceSize Length of data in bytes
+     * @return CompletableFuture which indicates the result of write
+     */
+    CompletableFuture<Void> writeAtAsync(String filename, long offset, InputStream source, long sourceSize);
+
     /**
      * Updates file with {@code filename} existing
      * in the filesystem with data from {@code stream}.
@@ -65,6 +123,20 @@ public interface FilesystemHandler {
      */
     CompletableFuture<Set<String>> listAsync(String path);
 
+    /**
+     * Lists files from the specified {@code path} in pages:
+     * a page contains up to {@code limit} filenames in ascending order
+     * which follow {@code startAfter}.
+     *
+     * @param path The path of files to list
+     * @param startAfter The last filename of the previous page,
+     *                   null for the first page
+     * @param limit Maximum number of filenames in the page
+     * @return CompletableFuture with the page of filenames,
+     *         empty if there are no more files in the path
+     */
+    CompletableFuture<List<String>> listPageAsync(String path, String startAfter, int limit);
+
     /**
      * Method which performs defragmentation of filesystem.
      *
@@ -0,0 +1,73 @@
+package ru.aqrcx.lib.filefs.impl.cache;
+
+/**
+ * Snapshot of statistics of a {@link CachingFilesystemProxy}.
+ */
+public class CacheStatistics {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long cachedFiles;
+    private final long cachedBytes;
+    private final long maxBytes;
+
+    CacheStatistics(long hits, long misses, long evictions, long cachedFiles, long cachedBytes, long maxBytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.cachedFiles = cachedFiles;
+        this.cachedBytes = cachedBytes;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return Number of reads served from the cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of reads passed to the filesystem
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Number of files removed from the cache to fit into the budget.
+     *         Files removed because they were changed are not counted.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getCachedFiles() {
+        return cachedFiles;
+    }
+
+    public long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStatistics{" +
+                "hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", cachedFiles=" + cachedFiles +
+                ", cachedBytes=" + cachedBytes +
+                ", maxBytes=" + maxBytes +
+                '}';
+    }
+}
@@ -0,0 +1,357 @@
+package ru.aqrcx.lib.filefs.impl.cache;
+
+import ru.aqrcx.lib.filefs.FileSource;
+import ru.aqrcx.lib.filefs.FilesystemHandler;
+import ru.aqrcx.lib.filefs.FilesystemProxy;
+import ru.aqrcx.lib.filefs.impl.exception.FileFsException;
+import ru.aqrcx.lib.filefs.impl.metrics.FilesystemMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * {@code FilesystemProxy} which keeps contents of frequently read
+ * files in memory off the heap, so reads of them don't reach
+ * the {@code FilesystemHandler} at all: a hit is served
+ * on the calling thread and its future is already completed.
+ *
+ * Files are cached on read, the cache is limited by the total size
+ * of cached contents and evicts files with a segmented LRU policy
+ * (see {@link SegmentedLruCache}). Files are invalidated when they are
+ * written, updated, appended to or deleted through this proxy, so changes made
+ * bypassing it are not seen until the file is evicted.
+ * Empty files are not cached.
+ */
+public class CachingFilesystemProxy implements FilesystemProxy {
+    /**
+     * Number of version counters, filenames share them by hash.
+     */
+    static final int VERSION_STRIPES = 1024;
+
+    private final FilesystemHandler filesystemHandler;
+    private final SegmentedLruCache cache;
+    private final int maxFileBytes;
+    /**
+     * Incremented on every change of a file. A read stores the file into
+     * the cache only if the version didn't change while it was running,
+     * so it never puts the content which is being changed.
+     * Changed under the cache lock.
+     */
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+    private final FilesystemMetrics metrics;
+    /**
+     * Gauges registered in {@code metrics}, unregistered on unmount.
+     */
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+    /**
+     * @param filesystemHandler Handler of the filesystem
+     * @param maxBytes Maximum total size of cached files,
+     *                 a file bigger than 1/16 of it is not cached
+     */
+    public CachingFilesystemProxy(FilesystemHandler filesystemHandler, long maxBytes) {
+        this(filesystemHandler, maxBytes, (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / 16)));
+    }
+
+    /**
+     * @param filesystemHandler Handler of the filesystem
+     * @param maxBytes Maximum total size of cached files
+     * @param maxFileBytes Maximum size of a cached file
+     */
+    public CachingFilesystemProxy(FilesystemHandler filesystemHandler, long maxBytes, int maxFileBytes) {
+        this(filesystemHandler, maxBytes, maxFileBytes, FilesystemMetrics.DISABLED);
+    }
+
+    /**
+     * @param filesystemHandler Handler of the filesystem
+     * @param maxBytes Maximum total size of cached files
+     * @param maxFileBytes Maximum size of a cached file
+     * @param metrics Metrics where statistics of the cache are registered as gauges
+     */
+    public CachingFilesystemProxy(FilesystemHandler filesystemHandler, long maxBytes, int maxFileBytes,
+                                  FilesystemMetrics metrics) {
+        if (maxBytes <= 0 || maxFileBytes <= 0) {
+            throw new IllegalArgumentException("Cache sizes must be positive");
+        }
+        this.filesystemHandler = filesystemHandler;
+        this.cache = new SegmentedLruCache(maxBytes);
+        this.maxFileBytes = (int) Math.min(maxFileBytes, maxBytes);
+        this.metrics = metrics;
+
+        if (metrics.isEnabled()) {
+            gauges.put("filefs.cache.hits", () -> cache.getStatistics().getHits());
+            gauges.put("filefs.cache.misses", () -> cache.getStatistics().getMisses());
+            gauges.put("filefs.cache.evictions", () -> cache.getStatistics().getEvictions());
+            gauges.put("filefs.cache.bytes", () -> cache.getStatistics().getCachedBytes());
+            gauges.forEach(metrics::registerGauge);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(String filename, InputStream source, long sourceSize) {
+        return invalidateAround(Collections.singletonList(filename),
+                () -> filesystemHandler.writeAsync(filename, source, sourceSize));
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAllAsync(Map<String, FileSource> sources) {
+        return invalidateAround(sources.keySet(), () -> filesystemHandler.writeAllAsync(sources));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String filename) {
+        return invalidateAround(Collections.singletonList(filename), () -> filesystemHandler.deleteAsync(filename));
+    }
+
+    /**
+     * Writes the file from cache into {@code destination} if it's cached.
+     * Otherwise reads it from the filesystem and caches it on the way.
+     */
+    @Override
+    public CompletableFuture<Void> readAsync(String filename, OutputStream destination) {
+        SegmentedLruCache.Entry cached = cache.acquire(filename);
+        if (cached != null) {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            try {
+                writeFully(cached.view(), Channels.newChannel(destination));
+                destination.close();
+                result.complete(null);
+            } catch (Throwable e) {
+                result.completeExceptionally(
+                        new FileFsException("Exception occurred on file \"" + filename + "\" read from cache", e));
+            } finally {
+                cache.release(cached);
+            }
+            return result;
+        }
+
+        int stripe = stripe(filename);
+        long version = versions.get(stripe);
+        CapturingOutputStream capturing = new CapturingOutputStream(destination, cache, maxFileBytes);
+        return filesystemHandler.readAsync(filename, capturing).whenComplete((ignored, e) -> {
+            ByteBuffer captured = capturing.take();
+            if (captured == null) {
+                return;
+            }
+            synchronized (cache) {
+                if (e == null && captured.position() > 0 && versions.get(stripe) == version) {
+                    cache.put(filename, captured, captured.position());
+                } else {
+                    cache.recycle(captured);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the range from cache if the file is cached,
+     * otherwise reads it from the filesystem without caching.
+     */
+    @Override
+    public CompletableFuture<Long> readRangeAsync(String filename, long offset, long length,
+                                               WritableByteChannel destination) {
+        SegmentedLruCache.Entry cached = offset < 0 || length < 0 ? null : cache.acquire(filename);
+        if (cached == null) {
+            return filesystemHandler.readRangeAsync(filename, offset, length, destination);
+        }
+
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        try {
+            ByteBuffer content = cached.view();
+            long start = Math.min(offset, content.limit());
+            long end = start + Math.min(length, content.limit() - start);
+            content.limit((int) end);
+            content.position((int) start);
+            writeFully(content, destination);
+            result.complete(end - start);
+        } catch (Throwable e) {
+            result.completeExceptionally(
+                    new FileFsException("Exception occurred on file \"" + filename + "\" range read from cache", e));
+        } finally {
+            cache.release(cached);
+        }
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Void> updateAsync(String filename, InputStream source, long sourceSize) {
+        return invalidateAround(Collections.singletonList(filename),
+                () -> filesystemHandler.updateAsync(filename, source, sourceSize));
+    }
+
+    @Override
+    public CompletableFuture<Void> appendAsync(String filename, InputStream source, long sourceSize) {
+        return invalidateAround(Collections.singletonList(filename),
+                () -> filesystemHandler.appendAsync(filename, source, sourceSize));
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAtAsync(String filename, long offset, InputStream source, long sourceSize) {
+        return invalidateAround(Collections.singletonList(filename),
+                () -> filesystemHandler.writeAtAsync(filename, offset, source, sourceSize));
+    }
+
+    @Override
+    public CompletableFuture<Set<String>> listAsync(String path) {
+        return filesystemHandler.listAsync(path);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> listPageAsync(String path, String startAfter, int limit) {
+        return filesystemHandler.listPageAsync(path, startAfter, limit);
+    }
+
+    /**
+     * Defragmentation doesn't change contents of files, so the cache stays valid.
+     */
+    @Override
+    public CompletableFuture<Void> defrag() {
+        return filesystemHandler.defrag();
+    }
+
+    @Override
+    public void unmount() throws IOException {
+        gauges.forEach(metrics::unregisterGauge);
+        cache.clear();
+        filesystemHandler.unmount();
+    }
+
+    public CacheStatistics getStatistics() {
+        return cache.getStatistics();
+    }
+
+    /**
+     * Invalidates files before the change starts and after it ends:
+     * a read which started in between may still read the old content.
+     */
+    private <T> CompletableFuture<T> invalidateAround(Iterable<String> filenames,
+                                                      Supplier<CompletableFuture<T>> change) {
+        invalidate(filenames);
+        return change.get().whenComplete((ignored, e) -> invalidate(filenames));
+    }
+
+    private void invalidate(Iterable<String> filenames) {
+        synchronized (cache) {
+            for (String filename : filenames) {
+                versions.incrementAndGet(stripe(filename));
+                cache.remove(filename);
+            }
+        }
+    }
+
+    private static int stripe(String filename) {
+        return (filename.hashCode() & Integer.MAX_VALUE) % VERSION_STRIPES;
+    }
+
+    private static void writeFully(ByteBuffer buffer, WritableByteChannel destination) throws IOException {
+        while (buffer.hasRemaining()) {
+            destination.write(buffer);
+        }
+    }
+
+    /**
+     * Passes everything to the destination and keeps a copy of data
+     * in a direct buffer from the cache until it gets bigger than {@code limit}.
+     * Capture stops at the first write over the limit and the buffer
+     * goes back to the cache, the rest of the file isn't copied.
+     */
+    private static class CapturingOutputStream extends OutputStream {
+        /**
+         * Capacity of the first buffer, it grows twice at a time.
+         */
+        private static final int INITIAL_BYTES = 256;
+
+        private final OutputStream destination;
+        private final SegmentedLruCache cache;
+        private final int limit;
+        /**
+         * Null after the capture stopped or the buffer was taken.
+         */
+        private ByteBuffer buffer;
+        private boolean overflowed;
+
+        CapturingOutputStream(OutputStream destination, SegmentedLruCache cache, int limit) {
+            this.destination = destination;
+            this.cache = cache;
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            destination.write(b);
+            if (reserve(1)) {
+                buffer.put((byte) b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            destination.write(b, off, len);
+            if (reserve(len)) {
+                buffer.put(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            destination.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            destination.close();
+        }
+
+        /**
+         * @return Buffer with the whole file up to its position, null if the file
+         *         is bigger than the limit. The caller owns the buffer
+         */
+        synchronized ByteBuffer take() {
+            ByteBuffer captured = buffer;
+            buffer = null;
+            overflowed = true;
+            return captured;
+        }
+
+        /**
+         * @return False if the capture stopped
+         */
+        private synchronized boolean reserve(int len) {
+            if (overflowed) {
+                return false;
+            }
+            long size = buffer == null ? 0 : buffer.position();
+            if (size + len > limit) {
+                overflowed = true;
+                if (buffer != null) {
+                    cache.recycle(buffer);
+                    buffer = null;
+                }
+                return false;
+            }
+            if (buffer == null) {
+                buffer = cache.allocate(Math.min(limit, Math.max(len, INITIAL_BYTES)));
+            } else if (buffer.remaining() < len) {
+                ByteBuffer grown = cache.allocate((int) Math.min(limit, Math.max(size + len, 2L * buffer.capacity())));
+                buffer.flip();
+                grown.put(buffer);
+                cache.recycle(buffer);
+                buffer = grown;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package ru.aqrcx.lib.filefs.impl.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Segmented LRU cache of file contents limited by the total size of values.
+ *
+ * A new file goes to the probationary segment, a second hit promotes it
+ * to the protected segment, which takes most of the budget. So files read
+ * once (e.g. by a scan) are evicted before frequently read ones.
+ * Files demoted from the protected segment get another chance in the
+ * probationary one. Values are kept in direct buffers, off the heap.
+ *
+ * Direct memory is freed only when its buffer is collected, so buffers
+ * are not dropped on eviction: they go to a pool by size class and are reused
+ * for contents captured later (see {@link #allocate(int)}). Sizes of values
+ * are rounded up to size classes, the budget is charged with their capacity.
+ * Cached and pooled buffers together fit into the budget, pooled ones
+ * are dropped first when they don't. A buffer of an evicted value
+ * is pooled only after every reader which acquired it released it.
+ */
+class SegmentedLruCache {
+    /**
+     * Share of the budget taken by the protected segment.
+     */
+    static final double PROTECTED_SHARE = 0.8;
+    /**
+     * Smallest size class, sizes above it are rounded up to a quarter of their power of two.
+     */
+    static final int MIN_CLASS_BYTES = 16;
+
+    private final long maxBytes;
+    private final long maxProtectedBytes;
+
+    // Both in access order: the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+    /**
+     * Total length of cached contents.
+     */
+    private long contentBytes;
+    /**
+     * Free buffers by capacity.
+     */
+    private final Map<Integer, ArrayDeque<ByteBuffer>> pool = new HashMap<>();
+    private long pooledBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    SegmentedLruCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxProtectedBytes = (long) (maxBytes * PROTECTED_SHARE);
+    }
+
+    /**
+     * @return Cached content, which must be released with {@link #release(Entry)}
+     *         after it's read, or null
+     */
+    synchronized Entry acquire(String filename) {
+        Entry entry = protectedSegment.get(filename);
+        if (entry == null) {
+            entry = probation.remove(filename);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+
+            probationBytes -= entry.buffer.capacity();
+            protectedSegment.put(filename, entry);
+            protectedBytes += entry.buffer.capacity();
+            demoteOverflow();
+        }
+
+        hits++;
+        entry.readers++;
+        return entry;
+    }
+
+    synchronized void release(Entry entry) {
+        entry.readers--;
+        if (entry.removed && entry.readers == 0) {
+            recycle(entry.buffer);
+        }
+    }
+
+    /**
+     * @return Empty direct buffer which fits {@code length} bytes, from the pool if there is one
+     */
+    synchronized ByteBuffer allocate(int length) {
+        int capacity = sizeClass(length);
+        ArrayDeque<ByteBuffer> free = pool.get(capacity);
+        if (free == null || free.isEmpty()) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        pooledBytes -= capacity;
+        ByteBuffer buffer = free.pop();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer from {@link #allocate(int)} which is not cached to the pool.
+     */
+    synchronized void recycle(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (probationBytes + protectedBytes + pooledBytes + capacity > maxBytes) {
+            return;
+        }
+        pool.computeIfAbsent(capacity, ignored -> new ArrayDeque<>()).push(buffer);
+        pooledBytes += capacity;
+    }
+
+    /**
+     * Caches {@code length} bytes from the start of {@code content}, a buffer
+     * from {@link #allocate(int)} owned by the cache from now on,
+     * evicting the least valuable files to fit into the budget.
+     */
+    synchronized void put(String filename, ByteBuffer content, int length) {
+        if (content.capacity() > maxBytes) {
+            return;
+        }
+
+        remove(filename);
+        probation.put(filename, new Entry(content, length));
+        probationBytes += content.capacity();
+        contentBytes += length;
+
+        while (probationBytes + protectedBytes > maxBytes) {
+            Map.Entry<String, Entry> eldest = eldest(probation.isEmpty() ? protectedSegment : probation);
+            remove(eldest.getKey());
+            evictions++;
+        }
+        trimPool();
+    }
+
+    synchronized void remove(String filename) {
+        Entry entry = probation.remove(filename);
+        if (entry != null) {
+            probationBytes -= entry.buffer.capacity();
+            removed(entry);
+        }
+        entry = protectedSegment.remove(filename);
+        if (entry != null) {
+            protectedBytes -= entry.buffer.capacity();
+            removed(entry);
+        }
+    }
+
+    synchronized void clear() {
+        probation.clear();
+        protectedSegment.clear();
+        pool.clear();
+        probationBytes = 0;
+        protectedBytes = 0;
+        contentBytes = 0;
+        pooledBytes = 0;
+    }
+
+    synchronized CacheStatistics getStatistics() {
+        return new CacheStatistics(hits, misses, evictions,
+                probation.size() + protectedSegment.size(), contentBytes, maxBytes);
+    }
+
+    private void removed(Entry entry) {
+        contentBytes -= entry.length;
+        entry.removed = true;
+        if (entry.readers == 0) {
+            recycle(entry.buffer);
+        }
+    }
+
+    /**
+     * Drops pooled buffers until cached and pooled ones fit into the budget.
+     */
+    private void trimPool() {
+        Iterator<ArrayDeque<ByteBuffer>> classes = pool.values().iterator();
+        while (probationBytes + protectedBytes + pooledBytes > maxBytes && classes.hasNext()) {
+            ArrayDeque<ByteBuffer> free = classes.next();
+            while (!free.isEmpty() && probationBytes + protectedBytes + pooledBytes > maxBytes) {
+                pooledBytes -= free.pop().capacity();
+            }
+            if (free.isEmpty()) {
+                classes.remove();
+            }
+        }
+    }
+
+    private void demoteOverflow() {
+        while (protectedBytes > maxProtectedBytes) {
+            Map.Entry<String, Entry> eldest = eldest(protectedSegment);
+            String filename = eldest.getKey();
+            Entry entry = eldest.getValue();
+            protectedSegment.remove(filename);
+            protectedBytes -= entry.buffer.capacity();
+            probation.put(filename, entry);
+            probationBytes += entry.buffer.capacity();
+        }
+    }
+
+    private static Map.Entry<String, Entry> eldest(LinkedHashMap<String, Entry> segment) {
+        return segment.entrySet().iterator().next();
+    }
+
+    /**
+     * @return Capacity of buffers for {@code length} bytes: up to a quarter
+     *         of the size is wasted, so buffers of close sizes are interchangeable
+     */
+    static int sizeClass(int length) {
+        if (length <= MIN_CLASS_BYTES) {
+            return MIN_CLASS_BYTES;
+        }
+        long step = Long.highestOneBit(length - 1) / 4;
+        return (int) Math.min(Integer.MAX_VALUE, (length + step - 1) / step * step);
+    }
+
+    /**
+     * Cached content of a file. Fields except final ones are guarded by the cache.
+     */
+    static class Entry {
+        private final ByteBuffer buffer;
+        private final int length;
+        private int readers;
+        private boolean removed;
+
+        Entry(ByteBuffer buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        /**
+         * @return Read-only view of the content
+         */
+        ByteBuffer view() {
+            ByteBuffer view = buffer.asReadOnlyBuffer();
+            view.position(0);
+            view.limit(length);
+            return view;
+        }
+    }
+}
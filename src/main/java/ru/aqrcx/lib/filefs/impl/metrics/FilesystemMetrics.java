@@ -0,0 +1,64 @@
+package ru.aqrcx.lib.filefs.impl.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Receiver of measurements of a filesystem, e.g. an adapter
+ * to a metrics library. {@link RecordingFilesystemMetrics} keeps them
+ * in histograms and counters in memory.
+ *
+ * Methods are called on threads which run operations, concurrently,
+ * so implementations must be thread-safe and fast. Nothing is measured
+ * if {@link #isEnabled()} returns false.
+ */
+public interface FilesystemMetrics {
+    /**
+     * Metrics which don't measure anything, the default.
+     */
+    FilesystemMetrics DISABLED = new FilesystemMetrics() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+    };
+
+    default boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * @param operation Completed operation
+     * @param latencyNanos Time from the call until completion of the future
+     * @param bytes Bytes of file data written or read, 0 if none
+     * @param failed Whether the future completed exceptionally
+     */
+    default void operationCompleted(FilesystemOperation operation, long latencyNanos, long bytes, boolean failed) {
+    }
+
+    /**
+     * @param nanos Time an operation waited in the queue of the executor before it started
+     */
+    default void queueWaited(long nanos) {
+    }
+
+    /**
+     * @param nanos Time an operation waited for the handler monitor to reserve space
+     */
+    default void lockWaited(long nanos) {
+    }
+
+    /**
+     * Registers a value which is read when metrics are collected,
+     * like the number of files in the index. Gauges registered
+     * with the same name by several handlers (e.g. shards) are summed.
+     */
+    default void registerGauge(String name, LongSupplier gauge) {
+    }
+
+    /**
+     * Removes a gauge registered with {@link #registerGauge(String, LongSupplier)},
+     * called on unmount.
+     */
+    default void unregisterGauge(String name, LongSupplier gauge) {
+    }
+}
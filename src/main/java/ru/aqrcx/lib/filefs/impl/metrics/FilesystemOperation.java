@@ -0,0 +1,19 @@
+package ru.aqrcx.lib.filefs.impl.metrics;
+
+/**
+ * Operations of a filesystem which are measured by {@link FilesystemMetrics}.
+ */
+public enum FilesystemOperation {
+    WRITE,
+    WRITE_ALL,
+    READ,
+    READ_RANGE,
+    APPEND,
+    WRITE_AT,
+    UPDATE,
+    DELETE,
+    MOUNT,
+    DEFRAG,
+    EXPORT,
+    IMPORT
+}
@@ -0,0 +1,32 @@
+package ru.aqrcx.lib.filefs.impl.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event of a filesystem operation, from the call until completion
+ * of its future. Committed by {@link OperationProbe}, enabled
+ * in a recording as {@code ru.aqrcx.filefs.Operation}.
+ */
+@Name("ru.aqrcx.filefs.Operation")
+@Label("Filesystem Operation")
+@Category("FileFS")
+@Description("Operation of a filesystem handler")
+public class FilesystemOperationEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Filename")
+    String filename;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Failed")
+    boolean failed;
+}
@@ -0,0 +1,83 @@
+package ru.aqrcx.lib.filefs.impl.metrics;
+
+/**
+ * Measures one operation: reports its latency and bytes to metrics and
+ * commits a {@link FilesystemOperationEvent} when the operation completes.
+ *
+ * If metrics are disabled and the event is not enabled in a JFR recording,
+ * {@link #start} returns a shared probe which does nothing, so an operation
+ * pays for one check only.
+ */
+public class OperationProbe {
+    private static final OperationProbe NONE = new OperationProbe(FilesystemMetrics.DISABLED, null, null, null);
+
+    private final FilesystemMetrics metrics;
+    private final FilesystemOperationEvent event;
+    private final FilesystemOperation operation;
+    private final String filename;
+    private final long startNanos;
+    private volatile long bytes;
+
+    private OperationProbe(FilesystemMetrics metrics, FilesystemOperationEvent event,
+                           FilesystemOperation operation, String filename) {
+        this.metrics = metrics;
+        this.event = event;
+        this.operation = operation;
+        this.filename = filename;
+        this.startNanos = metrics.isEnabled() ? System.nanoTime() : 0;
+    }
+
+    /**
+     * @param filename Name of the file or null if the operation is not about one file
+     * @param bytes Bytes of file data the operation writes if known, 0 otherwise
+     */
+    public static OperationProbe start(FilesystemMetrics metrics, FilesystemOperation operation,
+                                       String filename, long bytes) {
+        FilesystemOperationEvent event = new FilesystemOperationEvent();
+        if (!event.isEnabled()) {
+            if (!metrics.isEnabled()) {
+                return NONE;
+            }
+            event = null;
+        } else {
+            event.begin();
+        }
+
+        OperationProbe probe = new OperationProbe(metrics, event, operation, filename);
+        probe.bytes = bytes;
+        return probe;
+    }
+
+    public boolean isActive() {
+        return this != NONE;
+    }
+
+    /**
+     * Sets bytes the operation moved, e.g. of a read file.
+     */
+    public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Called when the operation leaves the queue of the executor.
+     */
+    public void started() {
+        if (metrics.isEnabled()) {
+            metrics.queueWaited(System.nanoTime() - startNanos);
+        }
+    }
+
+    public void completed(boolean failed) {
+        if (metrics.isEnabled()) {
+            metrics.operationCompleted(operation, System.nanoTime() - startNanos, bytes, failed);
+        }
+        if (event != null && event.shouldCommit()) {
+            event.operation = operation.name();
+            event.filename = filename;
+            event.bytes = bytes;
+            event.failed = failed;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package ru.aqrcx.lib.filefs.impl.metrics;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * {@link FilesystemMetrics} which keeps measurements in memory:
+ * a latency histogram, bytes and failures per operation, histograms
+ * of queue and lock waits, and registered gauges. One instance
+ * may be shared by several handlers, e.g. shards of a filesystem.
+ */
+public class RecordingFilesystemMetrics implements FilesystemMetrics {
+    private final Map<FilesystemOperation, LatencyHistogram> latencies = new EnumMap<>(FilesystemOperation.class);
+    private final Map<FilesystemOperation, LongAdder> bytes = new EnumMap<>(FilesystemOperation.class);
+    private final Map<FilesystemOperation, LongAdder> failures = new EnumMap<>(FilesystemOperation.class);
+    private final LatencyHistogram queueWaits = new LatencyHistogram();
+    private final LatencyHistogram lockWaits = new LatencyHistogram();
+    private final ConcurrentHashMap<String, List<LongSupplier>> gauges = new ConcurrentHashMap<>();
+
+    public RecordingFilesystemMetrics() {
+        // Filled once, so maps are only read concurrently
+        for (FilesystemOperation operation : FilesystemOperation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            bytes.put(operation, new LongAdder());
+            failures.put(operation, new LongAdder());
+        }
+    }
+
+    @Override
+    public void operationCompleted(FilesystemOperation operation, long latencyNanos, long bytes, boolean failed) {
+        latencies.get(operation).record(latencyNanos);
+        if (failed) {
+            failures.get(operation).increment();
+        } else if (bytes > 0) {
+            this.bytes.get(operation).add(bytes);
+        }
+    }
+
+    @Override
+    public void queueWaited(long nanos) {
+        queueWaits.record(nanos);
+    }
+
+    @Override
+    public void lockWaited(long nanos) {
+        lockWaits.record(nanos);
+    }
+
+    @Override
+    public void registerGauge(String name, LongSupplier gauge) {
+        gauges.computeIfAbsent(name, ignored -> new CopyOnWriteArrayList<>()).add(gauge);
+    }
+
+    @Override
+    public void unregisterGauge(String name, LongSupplier gauge) {
+        gauges.computeIfPresent(name, (ignored, list) -> {
+            list.remove(gauge);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    /**
+     * @return Latencies of completed operations in nanoseconds, failed ones included
+     */
+    public LatencyHistogram getLatency(FilesystemOperation operation) {
+        return latencies.get(operation);
+    }
+
+    /**
+     * @return Bytes of file data moved by operations which completed successfully
+     */
+    public long getBytes(FilesystemOperation operation) {
+        return bytes.get(operation).sum();
+    }
+
+    public long getFailures(FilesystemOperation operation) {
+        return failures.get(operation).sum();
+    }
+
+    /**
+     * @return Waits of operations in the queue of the executor in nanoseconds
+     */
+    public LatencyHistogram getQueueWaits() {
+        return queueWaits;
+    }
+
+    /**
+     * @return Waits for the handler monitor in nanoseconds
+     */
+    public LatencyHistogram getLockWaits() {
+        return lockWaits;
+    }
+
+    /**
+     * @return Current values of gauges sorted by names
+     */
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, List<LongSupplier>> gauge : gauges.entrySet()) {
+            long value = 0;
+            for (LongSupplier supplier : gauge.getValue()) {
+                value += supplier.getAsLong();
+            }
+            values.put(gauge.getKey(), value);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,226 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import ru.aqrcx.lib.filefs.impl.exception.FileFsException;
+import ru.aqrcx.lib.filefs.impl.metrics.OperationProbe;
+import ru.aqrcx.lib.filefs.impl.simplefs.SimpleFilesystemHandler.PendingWrite;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Positional reads and writes of a filesystem file through an {@link AsynchronousFileChannel}.
+ * Futures complete from completion handlers, so no thread waits for the I/O:
+ * a short read or write is continued from the handler of the previous one.
+ *
+ * Handlers run on the default thread pool of asynchronous channels, which
+ * also does the I/O where the platform has no native asynchronous file I/O.
+ *
+ * Files are written and read from buffers on top of these, see
+ * {@link SimpleFilesystemHandler#writeAsync(String, ByteBuffer)} and
+ * {@link SimpleFilesystemHandler#readRangeAsync(String, long, ByteBuffer)}.
+ * Regions are reserved, published and located by the handler.
+ */
+class AsynchronousFileIo implements Closeable {
+    private final SimpleFilesystemHandler handler;
+    private final AsynchronousFileChannel channel;
+
+    /**
+     * @param readOnly True to open the file only for reads
+     */
+    AsynchronousFileIo(SimpleFilesystemHandler handler, File file, boolean readOnly) throws IOException {
+        this.handler = handler;
+        this.channel = readOnly
+                ? AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ)
+                : AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Reserves the entry on the calling thread, then writes it and publishes it
+     * from completion handlers.
+     *
+     * @return Future which completes after the file is published and synced
+     */
+    CompletableFuture<Void> writeFile(String filename, ByteBuffer source) {
+        String errorMessage = "Exception occurred on file \"" + filename + "\" write";
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            byte[] filenameBytes = SimpleFilesystemHandler.filenameBytes(filename);
+            ByteBuffer filePropertiesBuffer = SimpleFilesystemHandler.fileProperties(
+                    filenameBytes, source.remaining(), 0);
+
+            PendingWrite[] pendingWrites = handler.reserve(
+                    new String[]{filename}, new long[]{filePropertiesBuffer.remaining() + source.remaining()});
+            CompletableFuture<Void> written = pendingWrites[0].inPlace
+                    ? writeInPlace(pendingWrites[0], filePropertiesBuffer, source)
+                    : writeAtTail(pendingWrites, filePropertiesBuffer, source);
+            written.whenComplete((ignored, e) -> {
+                if (e == null) {
+                    handler.completeAfterSync(result, errorMessage);
+                } else {
+                    result.completeExceptionally(new FileFsException(errorMessage, e));
+                }
+            });
+        } catch (Throwable e) {
+            result.completeExceptionally(new FileFsException(errorMessage, e));
+        }
+        return result;
+    }
+
+    private CompletableFuture<Void> writeAtTail(PendingWrite[] pendingWrites, ByteBuffer filePropertiesBuffer,
+                                                ByteBuffer source) {
+        PendingWrite pendingWrite = pendingWrites[0];
+        long dataOffset = pendingWrite.offset + filePropertiesBuffer.remaining();
+        return write(filePropertiesBuffer, pendingWrite.offset)
+                .thenCompose(ignored -> write(source, dataOffset))
+                .handle((ignored, e) -> e)
+                .thenCompose(e -> {
+                    if (e == null) {
+                        return handler.publishAsync(pendingWrites, false);
+                    }
+                    // Reserved region stays in the filesystem as dead space
+                    try {
+                        handler.putFiller(pendingWrite.offset, pendingWrite.length);
+                    } catch (Throwable suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
+                    handler.publishAsync(pendingWrites, true);
+                    return CompletableFuture.failedFuture(e);
+                });
+    }
+
+    /**
+     * Writes the entry into a free region with its head last,
+     * so the region stays parseable as a filler until the entry is complete.
+     */
+    private CompletableFuture<Void> writeInPlace(PendingWrite pendingWrite, ByteBuffer filePropertiesBuffer,
+                                                 ByteBuffer source) {
+        long offset = pendingWrite.offset;
+        ByteBuffer headBuffer = filePropertiesBuffer.duplicate();
+        headBuffer.limit(SimpleFilesystemHandler.FILLER_ENTRY_BYTES);
+        filePropertiesBuffer.position(SimpleFilesystemHandler.FILLER_ENTRY_BYTES);
+        long dataOffset = offset + filePropertiesBuffer.limit();
+        return write(filePropertiesBuffer, offset + SimpleFilesystemHandler.FILLER_ENTRY_BYTES)
+                .thenCompose(ignored -> write(source, dataOffset))
+                .thenCompose(ignored -> write(headBuffer, offset))
+                .whenComplete((ignored, e) -> {
+                    try {
+                        handler.publishInPlace(pendingWrite, e != null);
+                    } catch (IOException publishError) {
+                        throw new UncheckedIOException(publishError);
+                    }
+                });
+    }
+
+    /**
+     * Locates the file on the calling thread and reads the range of its data
+     * into {@code destination}. The handler doesn't move the data until the read ends.
+     *
+     * @return Future with the number of bytes read, the position
+     *         of {@code destination} is advanced by it when the future completes
+     */
+    CompletableFuture<Long> readRange(String filename, long offset, ByteBuffer destination, OperationProbe probe) {
+        String errorMessage = "Exception occurred on file \"" + filename + "\" range read";
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        try {
+            handler.followTail();
+            handler.readLocated(filename, (dataOffset, size) -> {
+                long rangeLength = offset >= size ? 0 : Math.min(destination.remaining(), size - offset);
+                ByteBuffer range = destination.slice();
+                range.limit((int) rangeLength);
+                // Data must not be moved until it is read
+                handler.beginAsynchronousRead();
+                read(range, dataOffset + offset).whenComplete((ignored, e) -> {
+                    handler.endAsynchronousRead();
+                    if (e == null) {
+                        destination.position(destination.position() + range.limit());
+                        probe.setBytes(range.limit());
+                        result.complete((long) range.limit());
+                    } else {
+                        result.completeExceptionally(new FileFsException(errorMessage, e));
+                    }
+                });
+                return null;
+            });
+        } catch (Throwable e) {
+            result.completeExceptionally(new FileFsException(errorMessage, e));
+        }
+        return result;
+    }
+
+    /**
+     * Reads bytes starting at {@code position} until {@code destination} is full.
+     *
+     * @return Future which completes when {@code destination} is full
+     *         or exceptionally if the file ends before
+     */
+    CompletableFuture<Void> read(ByteBuffer destination, long position) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        read(destination, position, result);
+        return result;
+    }
+
+    private void read(ByteBuffer destination, long position, CompletableFuture<Void> result) {
+        if (!destination.hasRemaining()) {
+            result.complete(null);
+            return;
+        }
+        channel.read(destination, position, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer read, Void attachment) {
+                if (read < 0) {
+                    result.completeExceptionally(new EOFException("File ended at offset " + position));
+                } else {
+                    read(destination, position + read, result);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * Writes all remaining bytes of {@code source} starting at {@code position}.
+     */
+    CompletableFuture<Void> write(ByteBuffer source, long position) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        write(source, position, result);
+        return result;
+    }
+
+    private void write(ByteBuffer source, long position, CompletableFuture<Void> result) {
+        if (!source.hasRemaining()) {
+            result.complete(null);
+            return;
+        }
+        channel.write(source, position, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer written, Void attachment) {
+                write(source, position + written, result);
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * Reads and writes in progress fail with {@link java.nio.channels.AsynchronousCloseException}.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,164 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Index of deduplicated file bodies (blobs) of a {@link SimpleFilesystemHandler}:
+ * maps a hex SHA-256 digest of a body to the offset of its blob entry
+ * and the number of files which reference it.
+ *
+ * Reference counts are not stored in the filesystem,
+ * they are counted from reference entries on mount.
+ */
+class BlobIndex {
+    private final Map<String, Blob> blobs = new HashMap<>();
+    /**
+     * References counted on mount before all blobs are loaded.
+     */
+    private final Map<String, Integer> loadedReferences = new HashMap<>();
+
+    /**
+     * @return The blob or null if there is no such blob
+     */
+    synchronized Blob get(String digest) {
+        return blobs.get(digest);
+    }
+
+    /**
+     * @return Offset of the blob or {@link FileOffsetIndex#NOT_FOUND}
+     */
+    synchronized long offset(String digest) {
+        Blob blob = blobs.get(digest);
+        return blob == null ? FileOffsetIndex.NOT_FOUND : blob.offset;
+    }
+
+    /**
+     * @return Copy of offsets of blobs by their digests
+     */
+    synchronized Map<String, Long> offsets() {
+        Map<String, Long> offsets = new HashMap<>();
+        for (Map.Entry<String, Blob> blob : blobs.entrySet()) {
+            offsets.put(blob.getKey(), blob.getValue().offset);
+        }
+        return offsets;
+    }
+
+    /**
+     * @return Total size of blob entries with headers of {@code headerBytes}
+     */
+    synchronized long getEntryBytes(long headerBytes) {
+        long bytes = 0;
+        for (Blob blob : blobs.values()) {
+            bytes += headerBytes + blob.size;
+        }
+        return bytes;
+    }
+
+    synchronized boolean isEmpty() {
+        return blobs.isEmpty();
+    }
+
+    /**
+     * Adds a reference to an existing blob.
+     *
+     * @return False if there is no such blob
+     */
+    synchronized boolean acquire(String digest) {
+        Blob blob = blobs.get(digest);
+        if (blob == null) {
+            return false;
+        }
+        blob.references++;
+        return true;
+    }
+
+    /**
+     * Adds a blob with one reference. If a blob with the same digest
+     * was added concurrently, adds a reference to it instead.
+     *
+     * @return False if the blob is a duplicate and wasn't added
+     */
+    synchronized boolean add(String digest, long offset, long size) {
+        if (acquire(digest)) {
+            return false;
+        }
+        blobs.put(digest, new Blob(digest, offset, size, 1));
+        return true;
+    }
+
+    /**
+     * Removes a reference to the blob.
+     *
+     * @return The blob if it has no more references and is removed, null otherwise
+     */
+    synchronized Blob release(String digest) {
+        Blob blob = blobs.get(digest);
+        if (blob == null || --blob.references > 0) {
+            return null;
+        }
+        blobs.remove(digest);
+        return blob;
+    }
+
+    /**
+     * Changes offset of the blob only if it has the {@code expectedOffset}.
+     */
+    synchronized boolean replace(String digest, long expectedOffset, long newOffset) {
+        Blob blob = blobs.get(digest);
+        if (blob == null || blob.offset != expectedOffset) {
+            return false;
+        }
+        blob.offset = newOffset;
+        return true;
+    }
+
+    /**
+     * Adds a blob found on mount. A duplicate left by concurrent writes is ignored.
+     */
+    synchronized void load(String digest, long offset, long size) {
+        blobs.putIfAbsent(digest, new Blob(digest, offset, size, 0));
+    }
+
+    /**
+     * Counts a reference found on mount.
+     */
+    synchronized void loadReference(String digest) {
+        loadedReferences.merge(digest, 1, Integer::sum);
+    }
+
+    /**
+     * Applies counted references and drops blobs without references,
+     * e.g. ones written just before a crash. Dropped blobs
+     * are dead space and are removed by defragmentation.
+     */
+    synchronized void finishLoad() {
+        Iterator<Blob> iterator = blobs.values().iterator();
+        while (iterator.hasNext()) {
+            Blob blob = iterator.next();
+            blob.references += loadedReferences.getOrDefault(blob.digest, 0);
+            if (blob.references == 0) {
+                iterator.remove();
+            }
+        }
+        loadedReferences.clear();
+    }
+
+    static class Blob {
+        final String digest;
+        final long size;
+        /**
+         * Changed by defragmentation under the exclusive side of relocation lock.
+         */
+        volatile long offset;
+        int references;
+
+        Blob(String digest, long offset, long size, int references) {
+            this.digest = digest;
+            this.offset = offset;
+            this.size = size;
+            this.references = references;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import ru.aqrcx.lib.filefs.impl.exception.FileFsException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * {@code Flow.Publisher} of data read chunk by chunk on an executor.
+ * A chunk is read only when the subscriber has demand for it,
+ * so a slow subscriber holds neither a thread nor data beyond its demand.
+ *
+ * Every subscription reads from its own {@link ChunkSource} from the start.
+ * Chunks of a subscription are read and signalled by one task at a time.
+ */
+class ChunkPublisher implements Flow.Publisher<ByteBuffer> {
+    private final Executor executor;
+    private final Supplier<ChunkSource> sources;
+    private final String errorMessage;
+
+    /**
+     * @param executor Executor which reads chunks and signals the subscriber
+     * @param sources Creates a source for every subscription
+     * @param errorMessage Message of the {@link FileFsException} a failure is signalled with
+     */
+    ChunkPublisher(Executor executor, Supplier<ChunkSource> sources, String errorMessage) {
+        this.executor = executor;
+        this.sources = sources;
+        this.errorMessage = errorMessage;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        Objects.requireNonNull(subscriber, "Subscriber must not be null");
+        subscriber.onSubscribe(new ChunkSubscription(subscriber, sources.get()));
+    }
+
+    interface ChunkSource {
+        /**
+         * @param position Number of bytes read before
+         * @return Next chunk of data or null if there is no more data
+         * @throws IOException If data can't be read
+         */
+        ByteBuffer read(long position) throws IOException;
+    }
+
+    private class ChunkSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final ChunkSource source;
+        private final AtomicLong demand = new AtomicLong();
+        /**
+         * Number of times the drain was requested, the task which
+         * takes it from 0 drains until it's back to 0.
+         */
+        private final AtomicInteger drainRequests = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile IllegalArgumentException illegalRequest;
+        /**
+         * Accessed only by the draining task.
+         */
+        private long position;
+        private boolean done;
+
+        ChunkSubscription(Flow.Subscriber<? super ByteBuffer> subscriber, ChunkSource source) {
+            this.subscriber = subscriber;
+            this.source = source;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                illegalRequest = new IllegalArgumentException("Requested number of chunks must be positive: " + n);
+            } else {
+                demand.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            }
+            drainLater();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private void drainLater() {
+            if (drainRequests.getAndIncrement() != 0) {
+                return;
+            }
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // No task drains, so the subscriber is signalled from here
+                cancelled = true;
+                subscriber.onError(new FileFsException(errorMessage, e));
+            }
+        }
+
+        private void drain() {
+            int requests = 1;
+            while (true) {
+                while (!cancelled && !done) {
+                    if (illegalRequest != null) {
+                        done = true;
+                        subscriber.onError(illegalRequest);
+                        break;
+                    }
+                    if (demand.get() == 0) {
+                        break;
+                    }
+
+                    ByteBuffer chunk;
+                    try {
+                        chunk = source.read(position);
+                    } catch (Throwable e) {
+                        done = true;
+                        subscriber.onError(new FileFsException(errorMessage, e));
+                        break;
+                    }
+                    if (chunk == null) {
+                        done = true;
+                        subscriber.onComplete();
+                        break;
+                    }
+                    position += chunk.remaining();
+                    demand.decrementAndGet();
+                    subscriber.onNext(chunk);
+                }
+
+                requests = drainRequests.addAndGet(-requests);
+                if (requests == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
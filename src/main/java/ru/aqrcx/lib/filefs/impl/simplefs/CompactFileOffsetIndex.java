@@ -0,0 +1,369 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Memory-compact {@link FileOffsetIndex} for filesystems
+ * with tens of millions of files.
+ *
+ * Filenames are stored as UTF-8 bytes in off-heap pages,
+ * offsets and hashes are stored in primitive arrays of an
+ * open-addressing hash table with linear probing. So an entry
+ * costs about 20 bytes plus the length of its name and there
+ * are no objects per entry for GC to trace.
+ *
+ * The price is listing: it scans the whole table, so it costs
+ * O(N) instead of O(log N + k) of {@link SortedFileOffsetIndex}.
+ *
+ * All operations take a read-write lock, lookups share it.
+ */
+public class CompactFileOffsetIndex implements FileOffsetIndex {
+    private static final int DEFAULT_EXPECTED_SIZE = 1024;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final float LOAD_FACTOR = 0.75f;
+    static final int PAGE_BYTES = 16 * 1024 * 1024;
+    private static final long EMPTY = -1;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Reference to the name of a slot: index of page (high 32 bits)
+     * and position in the page (low 32 bits), or {@link #EMPTY}.
+     */
+    private long[] nameRefs;
+    private long[] offsets;
+    private int[] hashes;
+    private int mask;
+    private int size;
+
+    private List<ByteBuffer> pages;
+    private int currentPageUsed;
+    /**
+     * Bytes of names in pages, including names of removed entries.
+     */
+    private long usedNameBytes;
+    private long liveNameBytes;
+
+    public CompactFileOffsetIndex() {
+        this(DEFAULT_EXPECTED_SIZE);
+    }
+
+    /**
+     * @param expectedSize Expected number of files, to avoid rehashing while the index grows
+     */
+    public CompactFileOffsetIndex(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    @Override
+    public long get(String filename) {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(name);
+        lock.readLock().lock();
+        try {
+            int slot = find(name, hash);
+            return slot < 0 ? NOT_FOUND : offsets[slot];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(String filename) {
+        return get(filename) != NOT_FOUND;
+    }
+
+    @Override
+    public void put(String filename, long offset) {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(name);
+        lock.writeLock().lock();
+        try {
+            int slot = find(name, hash);
+            if (slot >= 0) {
+                offsets[slot] = offset;
+                return;
+            }
+
+            if (size + 1 > (nameRefs.length * LOAD_FACTOR)) {
+                if (nameRefs.length >= MAX_CAPACITY) {
+                    throw new IllegalStateException("Index is full");
+                }
+                rebuild(nameRefs.length * 2);
+            }
+            insert(storeName(name), hash, offset);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(String filename, long expectedOffset) {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(name);
+        lock.writeLock().lock();
+        try {
+            int slot = find(name, hash);
+            if (slot < 0 || offsets[slot] != expectedOffset) {
+                return false;
+            }
+
+            deleteSlot(slot);
+            size--;
+            liveNameBytes -= Integer.BYTES + name.length;
+            if (usedNameBytes > PAGE_BYTES && usedNameBytes > 2 * liveNameBytes) {
+                // Most of the pages are names of removed files
+                rebuild(nameRefs.length);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(String filename, long expectedOffset, long newOffset) {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(name);
+        lock.writeLock().lock();
+        try {
+            int slot = find(name, hash);
+            if (slot < 0 || offsets[slot] != expectedOffset) {
+                return false;
+            }
+            offsets[slot] = newOffset;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEach(ObjLongConsumer<String> action) {
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < nameRefs.length; slot++) {
+                if (nameRefs[slot] != EMPTY) {
+                    action.accept(new String(readName(nameRefs[slot]), StandardCharsets.UTF_8), offsets[slot]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> list(String prefix, String startAfter, int limit) {
+        byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+        // Keeps the smallest filenames, the biggest of them on top
+        PriorityQueue<String> smallest = new PriorityQueue<>(Collections.reverseOrder());
+
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < nameRefs.length; slot++) {
+                if (nameRefs[slot] == EMPTY || !nameStartsWith(nameRefs[slot], prefixBytes)) {
+                    continue;
+                }
+
+                String filename = new String(readName(nameRefs[slot]), StandardCharsets.UTF_8);
+                if (startAfter != null && filename.compareTo(startAfter) <= 0) {
+                    continue;
+                }
+                if (smallest.size() < limit) {
+                    smallest.add(filename);
+                } else if (filename.compareTo(smallest.peek()) < 0) {
+                    smallest.poll();
+                    smallest.add(filename);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<String> result = new ArrayList<>(smallest);
+        Collections.sort(result);
+        return result;
+    }
+
+    private void allocate(int capacity) {
+        nameRefs = new long[capacity];
+        Arrays.fill(nameRefs, EMPTY);
+        offsets = new long[capacity];
+        hashes = new int[capacity];
+        mask = capacity - 1;
+        size = 0;
+        pages = new ArrayList<>();
+        currentPageUsed = 0;
+        usedNameBytes = 0;
+        liveNameBytes = 0;
+    }
+
+    /**
+     * Moves all entries into a table of {@code capacity} slots
+     * and new pages which contain only names of present entries.
+     */
+    private void rebuild(int capacity) {
+        long[] oldNameRefs = nameRefs;
+        long[] oldOffsets = offsets;
+        int[] oldHashes = hashes;
+        List<ByteBuffer> oldPages = pages;
+
+        allocate(capacity);
+        for (int slot = 0; slot < oldNameRefs.length; slot++) {
+            if (oldNameRefs[slot] != EMPTY) {
+                byte[] name = readName(oldPages, oldNameRefs[slot]);
+                insert(storeName(name), oldHashes[slot], oldOffsets[slot]);
+            }
+        }
+    }
+
+    private void insert(long nameRef, int hash, long offset) {
+        int slot = hash & mask;
+        while (nameRefs[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        nameRefs[slot] = nameRef;
+        hashes[slot] = hash;
+        offsets[slot] = offset;
+        size++;
+    }
+
+    private int find(byte[] name, int hash) {
+        int slot = hash & mask;
+        while (nameRefs[slot] != EMPTY) {
+            if (hashes[slot] == hash && nameEquals(nameRefs[slot], name)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Backward shift deletion: entries after the deleted one
+     * are moved back, so probing never meets a hole and
+     * no tombstones are needed.
+     */
+    private void deleteSlot(int slot) {
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (nameRefs[next] == EMPTY) {
+                break;
+            }
+
+            int home = hashes[next] & mask;
+            boolean homeBetweenHoleAndNext = hole <= next
+                    ? hole < home && home <= next
+                    : hole < home || home <= next;
+            if (homeBetweenHoleAndNext) {
+                continue;
+            }
+
+            nameRefs[hole] = nameRefs[next];
+            hashes[hole] = hashes[next];
+            offsets[hole] = offsets[next];
+            hole = next;
+        }
+        nameRefs[hole] = EMPTY;
+    }
+
+    private long storeName(byte[] name) {
+        int length = Integer.BYTES + name.length;
+        if (pages.isEmpty() || pages.get(pages.size() - 1).capacity() - currentPageUsed < length) {
+            pages.add(ByteBuffer.allocateDirect(Math.max(PAGE_BYTES, length)));
+            currentPageUsed = 0;
+        }
+
+        ByteBuffer page = pages.get(pages.size() - 1);
+        int position = currentPageUsed;
+        page.putInt(position, name.length);
+        for (int i = 0; i < name.length; i++) {
+            page.put(position + Integer.BYTES + i, name[i]);
+        }
+        currentPageUsed += length;
+        usedNameBytes += length;
+        liveNameBytes += length;
+        return ((long) (pages.size() - 1) << 32) | position;
+    }
+
+    private byte[] readName(long nameRef) {
+        return readName(pages, nameRef);
+    }
+
+    private static byte[] readName(List<ByteBuffer> pages, long nameRef) {
+        ByteBuffer page = pages.get((int) (nameRef >>> 32)).duplicate();
+        int position = (int) nameRef;
+        byte[] name = new byte[page.getInt(position)];
+        page.position(position + Integer.BYTES);
+        page.get(name);
+        return name;
+    }
+
+    private boolean nameEquals(long nameRef, byte[] name) {
+        ByteBuffer page = pages.get((int) (nameRef >>> 32));
+        int position = (int) nameRef;
+        return page.getInt(position) == name.length && bytesEqual(page, position + Integer.BYTES, name);
+    }
+
+    private boolean nameStartsWith(long nameRef, byte[] prefix) {
+        ByteBuffer page = pages.get((int) (nameRef >>> 32));
+        int position = (int) nameRef;
+        return page.getInt(position) >= prefix.length && bytesEqual(page, position + Integer.BYTES, prefix);
+    }
+
+    private static boolean bytesEqual(ByteBuffer page, int position, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (page.get(position + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        long capacity = Integer.highestOneBit(Math.max(16, (int) Math.min(MAX_CAPACITY, expectedSize / LOAD_FACTOR)));
+        if (capacity * LOAD_FACTOR < expectedSize) {
+            capacity *= 2;
+        }
+        return (int) Math.min(MAX_CAPACITY, capacity);
+    }
+
+    /**
+     * FNV-1a with a final avalanche (from MurmurHash3), so that
+     * low bits used to find a slot depend on all bytes of the name.
+     */
+    private static int hash(byte[] name) {
+        int hash = 0x811c9dc5;
+        for (byte b : name) {
+            hash ^= b;
+            hash *= 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -0,0 +1,112 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Runs defragmentation of a {@link SimpleFilesystemHandler} in the background
+ * when its dead space crosses thresholds from options and no operation
+ * was submitted to the handler during the quiet period.
+ *
+ * Thresholds are checked every quiet period on a daemon thread owned by the scheduler.
+ * A pass stops between steps as soon as an operation is submitted, the next
+ * quiet period starts it over. A failed defragmentation is retried on the next
+ * check, and checks are skipped while the filesystem is mounted read-only
+ * by other handlers, since defragmentation would fail. Both are counted
+ * in gauges, along with passes which yielded to operations.
+ *
+ * The handler is referenced weakly, so a handler which isn't unmounted
+ * is still finalized and the scheduler stops after it.
+ */
+class CompactionScheduler {
+    /**
+     * Dead space below it doesn't trigger defragmentation whatever its share is.
+     */
+    static final long MIN_DEAD_BYTES = 64 * 1024;
+
+    private final WeakReference<SimpleFilesystemHandler> handler;
+    private final double deadRatio;
+    private final long deadBytes;
+    private final long quietNanos;
+    private final ScheduledExecutorService timer;
+    private final AtomicLong yieldedPasses = new AtomicLong();
+    private final AtomicLong failedPasses = new AtomicLong();
+    private final AtomicLong skippedChecks = new AtomicLong();
+    private volatile long lastOperationNanos = System.nanoTime();
+
+    CompactionScheduler(SimpleFilesystemHandler handler, SimpleFilesystemOptions options) {
+        this.handler = new WeakReference<>(handler);
+        this.deadRatio = options.getCompactionDeadRatio();
+        this.deadBytes = options.getCompactionDeadBytes();
+        this.quietNanos = options.getCompactionQuietNanos();
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "filefs-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void start() {
+        timer.scheduleWithFixedDelay(this::check, quietNanos, quietNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Called on every submitted operation.
+     */
+    void operationSubmitted() {
+        lastOperationNanos = System.nanoTime();
+    }
+
+    void shutdown() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Adds gauges of automatic passes to {@code gauges} of the handler.
+     */
+    void registerGauges(Map<String, LongSupplier> gauges) {
+        gauges.put("filefs.compaction.yielded", yieldedPasses::get);
+        gauges.put("filefs.compaction.failed", failedPasses::get);
+        gauges.put("filefs.compaction.skipped", skippedChecks::get);
+    }
+
+    private void check() {
+        SimpleFilesystemHandler handler = this.handler.get();
+        if (handler == null) {
+            shutdown();
+            return;
+        }
+        long passStart = lastOperationNanos;
+        if (System.nanoTime() - passStart < quietNanos || !isTriggered(handler)) {
+            return;
+        }
+        try {
+            if (handler.isMountedByReaders()) {
+                skippedChecks.incrementAndGet();
+                return;
+            }
+            handler.defrag(() -> {
+                if (lastOperationNanos == passStart) {
+                    return false;
+                }
+                yieldedPasses.incrementAndGet();
+                return true;
+            }).join();
+        } catch (IOException | RuntimeException e) {
+            // Retried on the next check
+            failedPasses.incrementAndGet();
+        }
+    }
+
+    private boolean isTriggered(SimpleFilesystemHandler handler) {
+        long dead = handler.getDeadBytes();
+        long total = dead + handler.getLiveBytes();
+        return dead >= deadBytes || (dead >= MIN_DEAD_BYTES && dead >= total * deadRatio);
+    }
+}
@@ -0,0 +1,455 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import ru.aqrcx.lib.filefs.FileSource;
+import ru.aqrcx.lib.filefs.FilesystemProxy;
+import ru.aqrcx.lib.filefs.impl.exception.FileFsException;
+import ru.aqrcx.lib.filefs.impl.metrics.FilesystemMetrics;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * {@code FilesystemProxy} which compresses files with deflate
+ * on write and update and decompresses them on read.
+ *
+ * Files smaller than the threshold are stored as is. Compressed entries
+ * are marked with {@link SimpleFilesystemHandler#COMPRESSED_FLAG},
+ * so a filesystem may contain both kinds of entries and files written
+ * bypassing this proxy are read as is. Files written with
+ * {@link #writeAllAsync(Map)} and data appended or patched
+ * in place are not compressed.
+ *
+ * Data is compressed while it is read from the source into a buffer
+ * which spills into a temporary file when it gets bigger than
+ * {@link #SPILL_THRESHOLD_BYTES}, because the size of an entry is
+ * written before its data. Data is decompressed while it is read from
+ * the filesystem. Deflaters and inflaters are pooled.
+ *
+ * With metrics enabled in options of the handler, compression is counted
+ * in gauges: {@code filefs.compression.files}, {@code filefs.compression.nanos}
+ * spent compressing, {@code filefs.compression.uncompressed.bytes} and
+ * {@code filefs.compression.compressed.bytes}, whose quotient is the compression ratio.
+ * Gauges of several proxies are summed, so the ratio is not a gauge itself.
+ */
+public class CompressingFilesystemProxy implements FilesystemProxy {
+    public static final int DEFAULT_MIN_COMPRESSED_SIZE = 1024;
+    static final int SPILL_THRESHOLD_BYTES = 1024 * 1024;
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+    private final SimpleFilesystemHandler filesystemHandler;
+    private final long minCompressedSize;
+    private final int level;
+    private final Executor executor;
+    private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final FilesystemMetrics metrics;
+    private final AtomicLong compressedFiles = new AtomicLong();
+    private final AtomicLong compressionNanos = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    /**
+     * Gauges registered in {@code metrics}, unregistered on unmount.
+     */
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+    /**
+     * Compresses sources on the executor of the handler,
+     * as compression reads them with blocking I/O.
+     */
+    public CompressingFilesystemProxy(SimpleFilesystemHandler filesystemHandler) {
+        this(filesystemHandler, DEFAULT_MIN_COMPRESSED_SIZE, Deflater.DEFAULT_COMPRESSION,
+                filesystemHandler.getExecutor());
+    }
+
+    /**
+     * @param filesystemHandler Handler of the filesystem
+     * @param minCompressedSize Files smaller than it are not compressed
+     * @param level Compression level from 0 to 9 or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param executor Executor which compresses sources before they are written,
+     *                 it runs blocking reads of sources and of spill files
+     */
+    public CompressingFilesystemProxy(SimpleFilesystemHandler filesystemHandler, long minCompressedSize,
+                                      int level, Executor executor) {
+        if (minCompressedSize < 0) {
+            throw new IllegalArgumentException("Minimal size of compressed file must not be negative");
+        }
+        if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+                && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be from 0 to 9 or -1");
+        }
+        this.filesystemHandler = filesystemHandler;
+        this.minCompressedSize = minCompressedSize;
+        this.level = level;
+        this.executor = executor;
+        this.metrics = filesystemHandler.getMetrics();
+
+        if (metrics.isEnabled()) {
+            gauges.put("filefs.compression.files", compressedFiles::get);
+            gauges.put("filefs.compression.nanos", compressionNanos::get);
+            gauges.put("filefs.compression.uncompressed.bytes", uncompressedBytes::get);
+            gauges.put("filefs.compression.compressed.bytes", compressedBytes::get);
+            gauges.forEach(metrics::registerGauge);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(String filename, InputStream source, long sourceSize) {
+        if (sourceSize < minCompressedSize) {
+            return filesystemHandler.writeAsync(filename, source, sourceSize);
+        }
+        return compressThen(filename, source, sourceSize, (compressed, size) ->
+                filesystemHandler.writeAsync(filename, compressed, size, SimpleFilesystemHandler.COMPRESSED_FLAG));
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAllAsync(Map<String, FileSource> sources) {
+        return filesystemHandler.writeAllAsync(sources);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String filename) {
+        return filesystemHandler.deleteAsync(filename);
+    }
+
+    @Override
+    public CompletableFuture<Void> readAsync(String filename, OutputStream destination) {
+        return filesystemHandler.readAsync(filename, flags -> decoding(flags, destination));
+    }
+
+    /**
+     * Compressed files are decompressed from the start up to the end of
+     * the range, uncompressed files are copied through the heap as well.
+     * Use the handler directly for zero-copy ranges of uncompressed files.
+     */
+    @Override
+    public CompletableFuture<Long> readRangeAsync(String filename, long offset, long length,
+                                               WritableByteChannel destination) {
+        if (offset < 0 || length < 0) {
+            CompletableFuture<Long> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalArgumentException("Offset and length must not be negative"));
+            return failed;
+        }
+
+        RangeOutputStream range = new RangeOutputStream(destination, offset, length);
+        return filesystemHandler.readRangeAsync(filename, flags -> decoding(flags, range))
+                .thenApply(ignored -> range.getWritten());
+    }
+
+    /**
+     * Appended data is not compressed. Files stored compressed can't be appended to,
+     * the future completes exceptionally for them.
+     */
+    @Override
+    public CompletableFuture<Void> appendAsync(String filename, InputStream source, long sourceSize) {
+        return filesystemHandler.appendAsync(filename, source, sourceSize);
+    }
+
+    /**
+     * Written data is not compressed. Files stored compressed can't be patched,
+     * the future completes exceptionally for them.
+     */
+    @Override
+    public CompletableFuture<Void> writeAtAsync(String filename, long offset, InputStream source, long sourceSize) {
+        return filesystemHandler.writeAtAsync(filename, offset, source, sourceSize);
+    }
+
+    @Override
+    public CompletableFuture<Void> updateAsync(String filename, InputStream source, long sourceSize) {
+        if (sourceSize < minCompressedSize) {
+            return filesystemHandler.updateAsync(filename, source, sourceSize);
+        }
+        return compressThen(filename, source, sourceSize, (compressed, size) ->
+                filesystemHandler.updateAsync(filename, compressed, size, SimpleFilesystemHandler.COMPRESSED_FLAG));
+    }
+
+    @Override
+    public CompletableFuture<Set<String>> listAsync(String path) {
+        return filesystemHandler.listAsync(path);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> listPageAsync(String path, String startAfter, int limit) {
+        return filesystemHandler.listPageAsync(path, startAfter, limit);
+    }
+
+    @Override
+    public CompletableFuture<Void> defrag() {
+        return filesystemHandler.defrag();
+    }
+
+    @Override
+    public void unmount() throws IOException {
+        gauges.forEach(metrics::unregisterGauge);
+        filesystemHandler.unmount();
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+        Inflater inflater;
+        while ((inflater = inflaters.poll()) != null) {
+            inflater.end();
+        }
+    }
+
+    private CompletableFuture<Void> compressThen(String filename, InputStream source, long sourceSize,
+                                                 CompressedWrite write) {
+        CompletableFuture<SpillBuffer> compressed;
+        try {
+            compressed = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return compress(source, sourceSize);
+                } catch (IOException e) {
+                    throw new CompletionException(
+                            new FileFsException("Exception occurred on file \"" + filename + "\" compression", e));
+                }
+            }, executor);
+        } catch (RuntimeException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new FileFsException("Operation is rejected by executor", e));
+            return failed;
+        }
+
+        return compressed.thenCompose(buffer -> {
+            CompletableFuture<Void> written;
+            try {
+                written = write.write(buffer.openInputStream(), buffer.size());
+            } catch (IOException e) {
+                written = new CompletableFuture<>();
+                written.completeExceptionally(e);
+            }
+            return written.whenComplete((ignored, e) -> buffer.discard());
+        });
+    }
+
+    /**
+     * Reads exactly {@code sourceSize} bytes from {@code source}, closes it
+     * and returns them compressed.
+     */
+    private SpillBuffer compress(InputStream source, long sourceSize) throws IOException {
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        SpillBuffer buffer = new SpillBuffer();
+        Deflater deflater = borrowDeflater();
+        try (InputStream input = source;
+             DeflaterOutputStream output = new DeflaterOutputStream(buffer, deflater, 64 * 1024)) {
+            byte[] chunk = new byte[64 * 1024];
+            long remaining = sourceSize;
+            while (remaining > 0) {
+                int read = input.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("Source ended after " + (sourceSize - remaining) + " of "
+                            + sourceSize + " bytes");
+                }
+                output.write(chunk, 0, read);
+                remaining -= read;
+            }
+        } catch (Throwable e) {
+            buffer.discard();
+            throw e;
+        } finally {
+            release(deflaters, deflater);
+        }
+        if (metrics.isEnabled()) {
+            compressionNanos.addAndGet(System.nanoTime() - start);
+            compressedFiles.incrementAndGet();
+            uncompressedBytes.addAndGet(sourceSize);
+            compressedBytes.addAndGet(buffer.size());
+        }
+        return buffer;
+    }
+
+    private OutputStream decoding(int flags, OutputStream destination) {
+        if ((flags & SimpleFilesystemHandler.COMPRESSED_FLAG) == 0) {
+            return destination;
+        }
+
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        return new InflaterOutputStream(destination, inflater, 64 * 1024) {
+            private boolean released;
+
+            @Override
+            public void close() throws IOException {
+                // Closed twice: by the channel over it and by the handler
+                if (released) {
+                    return;
+                }
+                released = true;
+                try {
+                    super.close();
+                } finally {
+                    inf.reset();
+                    release(inflaters, inf);
+                }
+            }
+        };
+    }
+
+    private Deflater borrowDeflater() {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            return new Deflater(level);
+        }
+        deflater.reset();
+        return deflater;
+    }
+
+    private static void release(BlockingQueue<Deflater> pool, Deflater deflater) {
+        if (!pool.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    private static void release(BlockingQueue<Inflater> pool, Inflater inflater) {
+        if (!pool.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    @FunctionalInterface
+    private interface CompressedWrite {
+        CompletableFuture<Void> write(InputStream compressed, long size);
+    }
+
+    /**
+     * Passes only bytes from {@code offset} to {@code offset + length}
+     * of everything written into it to the destination channel.
+     * Doesn't close the channel.
+     */
+    private static class RangeOutputStream extends OutputStream {
+        private final WritableByteChannel destination;
+        private final long offset;
+        private final long end;
+        private long position;
+        private long written;
+
+        RangeOutputStream(WritableByteChannel destination, long offset, long length) {
+            this.destination = destination;
+            this.offset = offset;
+            this.end = length > Long.MAX_VALUE - offset ? Long.MAX_VALUE : offset + length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long from = Math.max(position, offset);
+            long to = Math.min(position + len, end);
+            if (from < to) {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off + (int) (from - position), (int) (to - from));
+                while (buffer.hasRemaining()) {
+                    destination.write(buffer);
+                }
+                written += to - from;
+            }
+            position += len;
+        }
+
+        long getWritten() {
+            return written;
+        }
+    }
+
+    /**
+     * Keeps data in memory up to {@link #SPILL_THRESHOLD_BYTES},
+     * then moves it into a temporary file.
+     */
+    private static class SpillBuffer extends OutputStream {
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private File spillFile;
+        private OutputStream spill;
+        private long size;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (spill == null && memory.size() + len > SPILL_THRESHOLD_BYTES) {
+                spillFile = File.createTempFile("filefs-compressed", ".tmp");
+                spill = new BufferedOutputStream(new FileOutputStream(spillFile), 64 * 1024);
+                memory.writeTo(spill);
+                memory = null;
+            }
+
+            if (spill != null) {
+                spill.write(b, off, len);
+            } else {
+                memory.write(b, off, len);
+            }
+            size += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (spill != null) {
+                spill.flush();
+            }
+        }
+
+        long size() {
+            return size;
+        }
+
+        /**
+         * Must be called after all data is written.
+         */
+        InputStream openInputStream() throws IOException {
+            if (spill == null) {
+                return new ByteArrayInputStream(memory.toByteArray());
+            }
+            spill.close();
+            return Files.newInputStream(spillFile.toPath());
+        }
+
+        /**
+         * Keeps the data: the buffer is closed by {@code DeflaterOutputStream}
+         * when compression finishes, see {@link #discard()}.
+         */
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        /**
+         * Releases the data: deletes the temporary file if there is one.
+         */
+        void discard() {
+            memory = null;
+            if (spillFile == null) {
+                return;
+            }
+            try {
+                spill.close();
+            } catch (IOException ignored) {
+                // The file is deleted anyway
+            }
+            if (!spillFile.delete()) {
+                spillFile.deleteOnExit();
+            }
+        }
+    }
+}
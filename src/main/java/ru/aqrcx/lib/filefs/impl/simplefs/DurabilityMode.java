@@ -0,0 +1,25 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+/**
+ * Defines when changes of a {@link SimpleFilesystemHandler}
+ * are forced to the storage device.
+ */
+public enum DurabilityMode {
+    /**
+     * Changes are forced only on unmount. A crash may lose
+     * changes whose futures have already completed.
+     */
+    NONE,
+
+    /**
+     * Changes are forced once per group commit window, one sync
+     * covers every change made in the window. Futures of changes
+     * complete after the sync which covers them.
+     */
+    GROUP_COMMIT,
+
+    /**
+     * Every change is forced before its future completes.
+     */
+    PER_OPERATION
+}
@@ -0,0 +1,53 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import ru.aqrcx.lib.filefs.impl.metrics.OperationProbe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Chunks of a file read by a subscriber of {@link SimpleFilesystemHandler#readPublisher(String)}.
+ * The file is looked up for every chunk, so a change of its size is detected.
+ */
+class FileChunks implements ChunkPublisher.ChunkSource {
+    private final SimpleFilesystemHandler handler;
+    private final String filename;
+    private final OperationProbe probe;
+    /**
+     * Size of the file when the first chunk was read, -1 before.
+     */
+    private long size = -1;
+
+    FileChunks(SimpleFilesystemHandler handler, String filename, OperationProbe probe) {
+        this.handler = handler;
+        this.filename = filename;
+        this.probe = probe;
+    }
+
+    @Override
+    public ByteBuffer read(long position) throws IOException {
+        try {
+            return handler.readLocated(filename, (dataOffset, dataSize) -> {
+                if (size < 0) {
+                    size = dataSize;
+                } else if (dataSize != size) {
+                    throw new IOException("File \"" + filename + "\" was changed while it was read");
+                }
+
+                if (position >= size) {
+                    probe.setBytes(size);
+                    probe.completed(false);
+                    return null;
+                }
+                ByteBuffer chunk = ByteBuffer.allocate(
+                        (int) Math.min(SimpleFilesystemHandler.STREAM_CHUNK_BYTES, size - position));
+                handler.readFully(chunk, dataOffset + position);
+                chunk.flip();
+                return chunk;
+            });
+        } catch (Throwable e) {
+            probe.completed(true);
+            throw e;
+        }
+    }
+}
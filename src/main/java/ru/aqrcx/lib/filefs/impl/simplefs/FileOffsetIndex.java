@@ -0,0 +1,58 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import java.util.List;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Index of a {@link SimpleFilesystemHandler}: maps names
+ * of not deleted files to offsets of their entries.
+ *
+ * Implementations must be thread-safe.
+ */
+public interface FileOffsetIndex {
+    /**
+     * Returned by {@link #get(String)} when there is no such file.
+     */
+    long NOT_FOUND = -1;
+
+    /**
+     * @return Offset of the file or {@link #NOT_FOUND}
+     */
+    long get(String filename);
+
+    boolean contains(String filename);
+
+    void put(String filename, long offset);
+
+    /**
+     * Removes the file only if it has the {@code expectedOffset}.
+     *
+     * @return True if the file was removed
+     */
+    boolean remove(String filename, long expectedOffset);
+
+    /**
+     * Changes offset of the file only if it has the {@code expectedOffset}.
+     *
+     * @return True if the offset was changed
+     */
+    boolean replace(String filename, long expectedOffset, long newOffset);
+
+    long size();
+
+    /**
+     * Visits every file. Files changed during the visit
+     * may be visited or not.
+     */
+    void forEach(ObjLongConsumer<String> action);
+
+    /**
+     * Lists filenames with {@code prefix} in ascending order.
+     *
+     * @param prefix Prefix of filenames, empty string lists all files
+     * @param startAfter Only filenames after it are listed, null to list from the start
+     * @param limit Maximum number of filenames to list
+     * @return Filenames in ascending order
+     */
+    List<String> list(String prefix, String startAfter, int limit);
+}
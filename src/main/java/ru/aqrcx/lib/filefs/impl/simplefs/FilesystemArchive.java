@@ -0,0 +1,372 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import ru.aqrcx.lib.filefs.impl.metrics.OperationProbe;
+import ru.aqrcx.lib.filefs.impl.simplefs.SimpleFilesystemHandler.FileData;
+import ru.aqrcx.lib.filefs.impl.simplefs.SimpleFilesystemHandler.PendingWrite;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Archive of files exported by {@link SimpleFilesystemHandler#exportAsync}
+ * and imported by {@link SimpleFilesystemHandler#importAsync}.
+ *
+ * Archive structure:
+ * <ul>
+ * <li>magic (8 bytes);</li>
+ * <li>for every file: flags (4 bytes), length of filename in bytes (4 bytes),
+ * filename, size of data (8 bytes), data;</li>
+ * <li>{@link #END_FLAGS} in place of flags of the next file (4 bytes).</li>
+ * </ul>
+ *
+ * Files are stored like entries of the filesystem, so entries are exported
+ * as they are, adjacent ones with one transfer. Flags are the flags of entries:
+ * only the compressed flag is meaningful, the deleted flag is set if the file
+ * was deleted while it was exported and is ignored.
+ *
+ * Export and import run on the executor of the handler, which takes
+ * the snapshot, reserves and publishes regions, see {@link #export} and {@link #importArchive}.
+ */
+class FilesystemArchive {
+    static final long MAGIC = 0x66696c6566734131L; // "filefsA1"
+    static final int END_FLAGS = -1;
+
+    /**
+     * Size of the buffer of reads from an archive.
+     */
+    private static final int READ_BUFFER_BYTES = 1024 * 1024;
+
+    private FilesystemArchive() {
+    }
+
+    static ByteBuffer start() {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(MAGIC);
+        buffer.flip();
+        return buffer;
+    }
+
+    static ByteBuffer end() {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES).putInt(END_FLAGS);
+        buffer.flip();
+        return buffer;
+    }
+
+    static void writeFully(ByteBuffer buffer, WritableByteChannel destination) throws IOException {
+        while (buffer.hasRemaining()) {
+            destination.write(buffer);
+        }
+    }
+
+    /**
+     * Writes files of {@code handler} with names starting with {@code prefix}
+     * into {@code destination} from a snapshot.
+     *
+     * @return Number of exported files
+     */
+    static long export(SimpleFilesystemHandler handler, String prefix, WritableByteChannel destination,
+                       OperationProbe probe) throws IOException {
+        handler.followTail();
+        FilesystemSnapshot snapshot = handler.takeSnapshot();
+        try {
+            List<ExportedFile> files = new ArrayList<>();
+            for (String filename : snapshot.fileOffsets.list(prefix, null, Integer.MAX_VALUE)) {
+                files.add(new ExportedFile(filename, snapshot.fileOffsets.get(filename)));
+            }
+            // Headers are read in the order of entries, then data is read in its own order
+            files.sort(Comparator.comparingLong(file -> file.offset));
+            for (ExportedFile file : files) {
+                file.data = handler.locateSnapshotted(snapshot, file.filename);
+            }
+            files.sort(Comparator.comparingLong(file -> file.data.offset));
+
+            writeFully(start(), destination);
+            long bytes = 0;
+            int i = 0;
+            while (i < files.size()) {
+                ExportedFile file = files.get(i++);
+                if (file.data.blobName != null) {
+                    // Reference is exported with the data of its blob
+                    ByteBuffer filePropertiesBuffer = SimpleFilesystemHandler.fileProperties(
+                            file.filename.getBytes(StandardCharsets.UTF_8), file.data.size, file.data.flags);
+                    bytes += filePropertiesBuffer.remaining() + file.data.size;
+                    writeFully(filePropertiesBuffer, destination);
+                    handler.transferFully(file.data.offset, file.data.size, destination);
+                    continue;
+                }
+
+                // Entries are exported as they are, so adjacent ones are transferred at once
+                long end = file.data.offset + file.data.size;
+                while (i < files.size() && files.get(i).data.blobName == null && files.get(i).offset == end) {
+                    ExportedFile next = files.get(i++);
+                    end = next.data.offset + next.data.size;
+                }
+                bytes += end - file.offset;
+                handler.transferFully(file.offset, end - file.offset, destination);
+            }
+            writeFully(end(), destination);
+            probe.setBytes(bytes);
+            return files.size();
+        } finally {
+            snapshot.unmount();
+        }
+    }
+
+    /**
+     * Writes files from the archive in {@code source} into {@code handler} in batches.
+     *
+     * @return Number of imported files
+     */
+    static long importArchive(SimpleFilesystemHandler handler, ReadableByteChannel source,
+                              OperationProbe probe) throws IOException {
+        Reader reader = new Reader(source);
+        List<String> filenames = new ArrayList<>();
+        List<ByteBuffer> buffers = new ArrayList<>();
+        long batchBytes = 0;
+        long imported = 0;
+        long bytes = 0;
+
+        Header header;
+        while ((header = reader.readHeader()) != null) {
+            int flags = header.flags & ~SimpleFilesystemHandler.DELETED_FLAG;
+            if ((flags & ~SimpleFilesystemHandler.COMPRESSED_FLAG) != 0) {
+                throw new IOException("Unsupported flags " + header.flags
+                        + " of file \"" + header.filename + "\" in the archive");
+            }
+
+            if (header.size > SimpleFilesystemHandler.BATCH_INLINE_BYTES) {
+                writeBatch(handler, filenames, buffers);
+                batchBytes = 0;
+                handler.write(header.filename, reader.data(header.size), header.size, flags);
+            } else {
+                ByteBuffer filePropertiesBuffer = SimpleFilesystemHandler.fileProperties(
+                        header.filenameBytes, header.size, flags);
+                batchBytes += filePropertiesBuffer.remaining() + header.size;
+                filenames.add(header.filename);
+                buffers.add(filePropertiesBuffer);
+                buffers.add(reader.readData((int) header.size));
+                if (batchBytes >= SimpleFilesystemHandler.BATCH_GATHER_BYTES
+                        || buffers.size() + 2 > SimpleFilesystemHandler.BATCH_GATHER_BUFFERS) {
+                    writeBatch(handler, filenames, buffers);
+                    batchBytes = 0;
+                }
+            }
+            imported++;
+            bytes += header.size;
+        }
+        writeBatch(handler, filenames, buffers);
+        probe.setBytes(bytes);
+        return imported;
+    }
+
+    /**
+     * Writes a batch of imported files, then clears it.
+     *
+     * @param filenames Files of the batch
+     * @param buffers Header and data of every file
+     */
+    private static void writeBatch(SimpleFilesystemHandler handler, List<String> filenames,
+                                   List<ByteBuffer> buffers) throws IOException {
+        if (filenames.isEmpty()) {
+            return;
+        }
+        long[] lengths = new long[filenames.size()];
+        long batchLength = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = buffers.get(2 * i).remaining() + buffers.get(2 * i + 1).remaining();
+            batchLength += lengths[i];
+        }
+
+        PendingWrite[] pendingWrites = handler.reserve(filenames.toArray(new String[0]), lengths);
+        if (pendingWrites[0].inPlace) {
+            // A single file may be put into a free region
+            ByteBuffer data = buffers.get(1);
+            handler.writeInPlace(pendingWrites[0], buffers.get(0),
+                    new ByteArrayInputStream(data.array()), data.remaining());
+        } else {
+            long batchOffset = pendingWrites[0].offset;
+            try {
+                handler.gatheringWrite(buffers.toArray(new ByteBuffer[0]), batchOffset);
+            } catch (Throwable e) {
+                // The whole batch stays in the filesystem as dead space
+                handler.putFiller(batchOffset, batchLength);
+                handler.publish(pendingWrites, true);
+                throw e;
+            }
+            handler.publish(pendingWrites, false);
+        }
+        filenames.clear();
+        buffers.clear();
+    }
+
+    /**
+     * File visited by {@link #export}.
+     */
+    private static class ExportedFile {
+        final String filename;
+        /**
+         * Offset of the file entry.
+         */
+        final long offset;
+        FileData data;
+
+        ExportedFile(String filename, long offset) {
+            this.filename = filename;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Header of a file in an archive.
+     */
+    static class Header {
+        final int flags;
+        final byte[] filenameBytes;
+        final String filename;
+        final long size;
+
+        Header(int flags, byte[] filenameBytes, long size) {
+            this.flags = flags;
+            this.filenameBytes = filenameBytes;
+            this.filename = new String(filenameBytes, StandardCharsets.UTF_8);
+            this.size = size;
+        }
+    }
+
+    /**
+     * Reads an archive from a channel through a buffer, so small files
+     * cost no system call each. Data of a file must be read entirely
+     * before the header of the next one.
+     */
+    static class Reader {
+        private final ReadableByteChannel source;
+        /**
+         * Bytes read from the source and not consumed yet are between position and limit.
+         */
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        private boolean started;
+
+        Reader(ReadableByteChannel source) {
+            this.source = source;
+            buffer.flip();
+        }
+
+        /**
+         * @return Header of the next file or null if there are no more files
+         * @throws IOException If the source is not an archive or ends unexpectedly
+         */
+        Header readHeader() throws IOException {
+            if (!started) {
+                started = true;
+                if (readLong() != MAGIC) {
+                    throw new IOException("Source is not a filesystem archive");
+                }
+            }
+
+            int flags = readInt();
+            if (flags == END_FLAGS) {
+                return null;
+            }
+            int filenameLen = readInt();
+            if (filenameLen <= 0 || filenameLen > READ_BUFFER_BYTES - Long.BYTES) {
+                throw new IOException("Archive is corrupted: length of filename is " + filenameLen);
+            }
+            fill(filenameLen);
+            byte[] filenameBytes = new byte[filenameLen];
+            buffer.get(filenameBytes);
+            long size = readLong();
+            if (size < 0) {
+                throw new IOException("Archive is corrupted: size of file is " + size);
+            }
+            return new Header(flags, filenameBytes, size);
+        }
+
+        /**
+         * @return Buffer with {@code size} bytes of data of the current file
+         */
+        ByteBuffer readData(int size) throws IOException {
+            ByteBuffer data = ByteBuffer.allocate(size);
+            while (data.hasRemaining()) {
+                if (!buffer.hasRemaining()) {
+                    fill(1);
+                }
+                ByteBuffer chunk = buffer.duplicate();
+                chunk.limit(chunk.position() + Math.min(data.remaining(), buffer.remaining()));
+                data.put(chunk);
+                buffer.position(chunk.position());
+            }
+            data.flip();
+            return data;
+        }
+
+        /**
+         * @return Stream of {@code size} bytes of data of the current file,
+         *         closing it doesn't close the source
+         */
+        InputStream data(long size) {
+            return new InputStream() {
+                private long remaining = size;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] single = new byte[1];
+                    return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    if (remaining == 0) {
+                        return -1;
+                    }
+                    if (!buffer.hasRemaining()) {
+                        fill(1);
+                    }
+                    int count = (int) Math.min(len, Math.min(remaining, buffer.remaining()));
+                    buffer.get(b, off, count);
+                    remaining -= count;
+                    return count;
+                }
+            };
+        }
+
+        private int readInt() throws IOException {
+            fill(Integer.BYTES);
+            return buffer.getInt();
+        }
+
+        private long readLong() throws IOException {
+            fill(Long.BYTES);
+            return buffer.getLong();
+        }
+
+        /**
+         * Reads from the source until at least {@code bytes} are buffered.
+         */
+        private void fill(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            buffer.compact();
+            try {
+                while (buffer.position() < bytes) {
+                    if (source.read(buffer) < 0) {
+                        throw new EOFException("Archive ended unexpectedly");
+                    }
+                }
+            } finally {
+                buffer.flip();
+            }
+        }
+    }
+}
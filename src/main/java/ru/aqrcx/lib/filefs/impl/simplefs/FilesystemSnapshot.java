@@ -0,0 +1,215 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import ru.aqrcx.lib.filefs.FileSource;
+import ru.aqrcx.lib.filefs.FilesystemHandler;
+import ru.aqrcx.lib.filefs.impl.exception.FileFsException;
+import ru.aqrcx.lib.filefs.impl.metrics.FilesystemOperation;
+import ru.aqrcx.lib.filefs.impl.metrics.OperationProbe;
+import ru.aqrcx.lib.filefs.impl.simplefs.SimpleFilesystemHandler.FileData;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Read-only {@code FilesystemHandler} over the files of a {@link SimpleFilesystemHandler}
+ * as they were when the snapshot was taken (see {@link SimpleFilesystemHandler#snapshot()}).
+ *
+ * A snapshot is a copy of the index: updates and deletes never overwrite entries,
+ * so the entries it references keep the data. While the snapshot is open,
+ * the handler doesn't reuse their regions, defragmentation doesn't move
+ * or reclaim them, and files are patched by copying them into new entries.
+ * Snapshot reads take no locks, so they don't block writes and defragmentation.
+ *
+ * Data is read as it is stored, e.g. files compressed by {@link CompressingFilesystemProxy}
+ * are read compressed. The snapshot must be closed with {@link #unmount()}
+ * to let the handler reclaim the space, it can't be read after the handler is unmounted.
+ */
+public class FilesystemSnapshot implements FilesystemHandler {
+    private final SimpleFilesystemHandler handler;
+    final FileOffsetIndex fileOffsets;
+    /**
+     * Offsets of blob entries by their digests.
+     */
+    final Map<String, Long> blobOffsets;
+    /**
+     * Sorted offsets of all entries the snapshot references.
+     */
+    private final long[] referencedOffsets;
+    private final long tail;
+    private volatile boolean closed;
+
+    FilesystemSnapshot(SimpleFilesystemHandler handler, FileOffsetIndex fileOffsets,
+                       Map<String, Long> blobOffsets, long tail) {
+        this.handler = handler;
+        this.fileOffsets = fileOffsets;
+        this.blobOffsets = blobOffsets;
+        this.tail = tail;
+
+        long[] offsets = new long[(int) fileOffsets.size() + blobOffsets.size()];
+        int[] count = new int[1];
+        fileOffsets.forEach((filename, offset) -> offsets[count[0]++] = offset);
+        for (long offset : blobOffsets.values()) {
+            offsets[count[0]++] = offset;
+        }
+        Arrays.sort(offsets);
+        this.referencedOffsets = offsets;
+    }
+
+    /**
+     * @return True if the snapshot references the entry at {@code offset}
+     */
+    boolean references(long offset) {
+        return Arrays.binarySearch(referencedOffsets, offset) >= 0;
+    }
+
+    /**
+     * @return End of the filesystem when the snapshot was taken:
+     *         all entries the snapshot references are before it
+     */
+    public long getTail() {
+        return tail;
+    }
+
+    /**
+     * @return Number of files in the snapshot
+     */
+    public long size() {
+        return fileOffsets.size();
+    }
+
+    /**
+     * Writes the file as it was when the snapshot was taken.
+     * If there was no such file just closes the stream.
+     */
+    @Override
+    public CompletableFuture<Void> readAsync(String filename, OutputStream destination) {
+        OperationProbe probe = handler.probe(FilesystemOperation.READ, filename, 0);
+        return handler.submit(probe, (future) -> {
+            try {
+                FileData data = handler.locateSnapshotted(this, filename);
+                if (data != null) {
+                    try (WritableByteChannel destinationChannel = Channels.newChannel(destination)) {
+                        handler.transferFully(data.offset, data.size, destinationChannel);
+                    }
+                    probe.setBytes(data.size);
+                }
+                destination.close();
+                future.complete(null);
+            } catch (Throwable e) {
+                future.completeExceptionally(
+                        new FileFsException("Exception occurred on file \"" + filename + "\" snapshot read", e));
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> readRangeAsync(String filename, long offset, long length,
+                                               WritableByteChannel destination) {
+        if (offset < 0 || length < 0) {
+            return failed(new IllegalArgumentException("Offset and length must not be negative"));
+        }
+
+        OperationProbe probe = handler.probe(FilesystemOperation.READ_RANGE, filename, 0);
+        return handler.submit(probe, (future) -> {
+            try {
+                FileData data = handler.locateSnapshotted(this, filename);
+                if (data == null) {
+                    throw new FileNotFoundException("No file \"" + filename + "\" in the snapshot");
+                }
+                long rangeLength = offset >= data.size ? 0 : Math.min(length, data.size - offset);
+                handler.transferFully(data.offset + offset, rangeLength, destination);
+                probe.setBytes(rangeLength);
+                future.complete(rangeLength);
+            } catch (Throwable e) {
+                future.completeExceptionally(new FileFsException(
+                        "Exception occurred on file \"" + filename + "\" snapshot range read", e));
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Set<String>> listAsync(String path) {
+        List<String> filenames = fileOffsets.list(path == null ? "" : path, null, Integer.MAX_VALUE);
+        return CompletableFuture.completedFuture(Collections.unmodifiableSet(new LinkedHashSet<>(filenames)));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> listPageAsync(String path, String startAfter, int limit) {
+        if (limit <= 0) {
+            return failed(new IllegalArgumentException("Limit must be positive"));
+        }
+        return CompletableFuture.completedFuture(fileOffsets.list(path == null ? "" : path, startAfter, limit));
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(String filename, InputStream source, long sourceSize) {
+        return readOnly();
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAllAsync(Map<String, FileSource> sources) {
+        return readOnly();
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String filename) {
+        return readOnly();
+    }
+
+    @Override
+    public CompletableFuture<Void> appendAsync(String filename, InputStream source, long sourceSize) {
+        return readOnly();
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAtAsync(String filename, long offset, InputStream source, long sourceSize) {
+        return readOnly();
+    }
+
+    @Override
+    public CompletableFuture<Void> updateAsync(String filename, InputStream source, long sourceSize) {
+        return readOnly();
+    }
+
+    @Override
+    public CompletableFuture<Void> defrag() {
+        return readOnly();
+    }
+
+    /**
+     * Closes the snapshot, so the handler may reclaim entries it referenced.
+     * Regions of such entries are reused after the next defragmentation or mount.
+     * Reads of the snapshot must be finished before.
+     */
+    @Override
+    public void unmount() {
+        if (!closed) {
+            closed = true;
+            handler.releaseSnapshot(this);
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    private static <T> CompletableFuture<T> readOnly() {
+        return failed(new UnsupportedOperationException("Snapshot is read-only"));
+    }
+
+    private static <T> CompletableFuture<T> failed(RuntimeException e) {
+        CompletableFuture<T> failed = new CompletableFuture<>();
+        failed.completeExceptionally(e);
+        return failed;
+    }
+}
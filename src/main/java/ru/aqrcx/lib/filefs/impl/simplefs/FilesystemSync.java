@@ -0,0 +1,147 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forces changes of a filesystem to the storage device
+ * according to its {@link DurabilityMode}, records sync latency.
+ */
+class FilesystemSync {
+    private final FileChannel channel;
+    private final DurabilityMode mode;
+    private final long groupCommitWindowNanos;
+    /**
+     * Single thread which makes group commits, null for other modes.
+     */
+    private final ScheduledExecutorService groupCommitter;
+
+    /**
+     * Futures of changes waiting for the next group commit. Guarded by {@code this}.
+     */
+    private List<CompletableFuture<Void>> waiting = new ArrayList<>();
+    private boolean groupCommitScheduled;
+
+    private long syncs;
+    private long syncedOperations;
+    private long totalSyncNanos;
+    private long maxSyncNanos;
+    private long lastSyncNanos;
+
+    FilesystemSync(FileChannel channel, DurabilityMode mode, long groupCommitWindowNanos) {
+        this.channel = channel;
+        this.mode = mode;
+        this.groupCommitWindowNanos = groupCommitWindowNanos;
+        this.groupCommitter = mode == DurabilityMode.GROUP_COMMIT
+                ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "filefs-group-commit");
+                    thread.setDaemon(true);
+                    return thread;
+                })
+                : null;
+    }
+
+    /**
+     * Must be called after a change is written.
+     *
+     * @return Future which completes when the change is durable
+     *         according to the durability mode
+     */
+    CompletableFuture<Void> sync() {
+        switch (mode) {
+            case PER_OPERATION:
+                try {
+                    force(1);
+                    return CompletableFuture.completedFuture(null);
+                } catch (IOException e) {
+                    CompletableFuture<Void> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(e);
+                    return failed;
+                }
+            case GROUP_COMMIT:
+                CompletableFuture<Void> result = new CompletableFuture<>();
+                boolean commitNow = false;
+                synchronized (this) {
+                    waiting.add(result);
+                    if (!groupCommitScheduled) {
+                        groupCommitScheduled = true;
+                        try {
+                            groupCommitter.schedule(this::groupCommit, groupCommitWindowNanos, TimeUnit.NANOSECONDS);
+                        } catch (RejectedExecutionException e) {
+                            // Closed already, nothing to group with
+                            commitNow = true;
+                        }
+                    }
+                }
+                if (commitNow) {
+                    groupCommit();
+                }
+                return result;
+            default:
+                return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private void groupCommit() {
+        List<CompletableFuture<Void>> committed;
+        synchronized (this) {
+            committed = waiting;
+            waiting = new ArrayList<>();
+            groupCommitScheduled = false;
+        }
+        if (committed.isEmpty()) {
+            return;
+        }
+
+        try {
+            force(committed.size());
+            committed.forEach(future -> future.complete(null));
+        } catch (Throwable e) {
+            committed.forEach(future -> future.completeExceptionally(e));
+        }
+    }
+
+    private void force(int operations) throws IOException {
+        long start = System.nanoTime();
+        channel.force(false);
+        long elapsed = System.nanoTime() - start;
+
+        synchronized (this) {
+            syncs++;
+            syncedOperations += operations;
+            totalSyncNanos += elapsed;
+            maxSyncNanos = Math.max(maxSyncNanos, elapsed);
+            lastSyncNanos = elapsed;
+        }
+    }
+
+    synchronized SyncStatistics getStatistics() {
+        return new SyncStatistics(syncs, syncedOperations, totalSyncNanos, maxSyncNanos, lastSyncNanos);
+    }
+
+    /**
+     * Commits changes which wait for group commit and stops group commits.
+     * Must be called before the channel is closed.
+     */
+    void close() {
+        if (groupCommitter == null) {
+            return;
+        }
+
+        // Not shutdownNow(): interrupt of force() would close the channel
+        groupCommitter.shutdown();
+        try {
+            groupCommitter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        groupCommit();
+    }
+}
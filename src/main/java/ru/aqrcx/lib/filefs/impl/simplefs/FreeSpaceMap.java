@@ -0,0 +1,111 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Free regions of a {@link SimpleFilesystemHandler}: deleted entries
+ * which new entries may be written into instead of the tail.
+ *
+ * Regions are kept both by offset, to merge neighbours into one region,
+ * and by length, to find the best fit. A merged region still consists
+ * of several deleted entries in the filesystem: a writer covers the whole
+ * region with one filler before it writes into it.
+ *
+ * Not thread-safe, used under the handler lock.
+ */
+class FreeSpaceMap {
+    private final TreeMap<Long, Long> lengthsByOffset = new TreeMap<>();
+    private final TreeMap<Long, TreeSet<Long>> offsetsByLength = new TreeMap<>();
+    private long freeBytes;
+
+    /**
+     * Adds a region, merging it with adjacent free regions.
+     */
+    void add(long offset, long length) {
+        Map.Entry<Long, Long> previous = lengthsByOffset.floorEntry(offset);
+        if (previous != null && previous.getKey() + previous.getValue() == offset) {
+            remove(previous.getKey(), previous.getValue());
+            offset = previous.getKey();
+            length += previous.getValue();
+        }
+        Long nextLength = lengthsByOffset.get(offset + length);
+        if (nextLength != null) {
+            remove(offset + length, nextLength);
+            length += nextLength;
+        }
+
+        lengthsByOffset.put(offset, length);
+        offsetsByLength.computeIfAbsent(length, ignored -> new TreeSet<>()).add(offset);
+        freeBytes += length;
+    }
+
+    /**
+     * Takes the smallest region which fits {@code length} bytes either exactly
+     * or with at least {@code minRemainder} bytes left, so the rest can be
+     * turned into a filler. Of regions with the same length the lowest is taken.
+     *
+     * @return The region, its length may be bigger than {@code length},
+     *         or null if there is no such region
+     */
+    Region allocate(long length, long minRemainder) {
+        Map.Entry<Long, TreeSet<Long>> fit = offsetsByLength.ceilingEntry(length);
+        if (fit != null && fit.getKey() != length && fit.getKey() < length + minRemainder) {
+            fit = offsetsByLength.ceilingEntry(length + minRemainder);
+        }
+        if (fit == null) {
+            return null;
+        }
+
+        long offset = fit.getValue().first();
+        remove(offset, fit.getKey());
+        return new Region(offset, fit.getKey());
+    }
+
+    /**
+     * Takes the region which starts at {@code offset} if it fits {@code length} bytes
+     * exactly or with at least {@code minRemainder} bytes left.
+     *
+     * @return The region or null if there is no such region
+     */
+    Region takeAt(long offset, long length, long minRemainder) {
+        Long regionLength = lengthsByOffset.get(offset);
+        if (regionLength == null || (regionLength != length && regionLength < length + minRemainder)) {
+            return null;
+        }
+
+        remove(offset, regionLength);
+        return new Region(offset, regionLength);
+    }
+
+    void clear() {
+        lengthsByOffset.clear();
+        offsetsByLength.clear();
+        freeBytes = 0;
+    }
+
+    long getFreeBytes() {
+        return freeBytes;
+    }
+
+    private void remove(long offset, long length) {
+        lengthsByOffset.remove(offset);
+        TreeSet<Long> offsets = offsetsByLength.get(length);
+        offsets.remove(offset);
+        if (offsets.isEmpty()) {
+            offsetsByLength.remove(length);
+        }
+        freeBytes -= length;
+    }
+
+    static class Region {
+        final long offset;
+        final long length;
+
+        Region(long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Read-only memory mapping of a filesystem file split into
+ * regions of {@link #REGION_BYTES}, so files bigger than 2 GB
+ * can be mapped. A region is mapped lazily and remapped when
+ * the file grows past its mapped end. Ranges which cross
+ * a region border get a mapping of their own.
+ */
+class MappedRegions {
+    static final long REGION_BYTES = 1L << 30;
+
+    private final FileChannel channel;
+    /**
+     * Copied on write under {@code this}, null elements are not mapped yet.
+     */
+    private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+
+    MappedRegions(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * @return Read-only buffer with {@code length} bytes of file from {@code position}
+     * @throws IOException If the range doesn't fit into a buffer or can't be mapped
+     */
+    ByteBuffer slice(long position, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Range of " + length + " bytes is too big to be mapped");
+        }
+
+        int index = (int) (position / REGION_BYTES);
+        long regionStart = index * REGION_BYTES;
+        long end = position + length;
+        if (end > regionStart + REGION_BYTES) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, length).asReadOnlyBuffer();
+        }
+
+        MappedByteBuffer[] current = regions;
+        MappedByteBuffer region = index < current.length ? current[index] : null;
+        if (region == null || regionStart + region.capacity() < end) {
+            region = remap(index, end);
+        }
+
+        ByteBuffer view = region.duplicate();
+        view.limit((int) (end - regionStart));
+        view.position((int) (position - regionStart));
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    private synchronized MappedByteBuffer remap(int index, long end) throws IOException {
+        long regionStart = index * REGION_BYTES;
+        MappedByteBuffer[] current = regions;
+        if (index < current.length && current[index] != null && regionStart + current[index].capacity() >= end) {
+            // Remapped by another reader
+            return current[index];
+        }
+
+        // Up to the current end of file, so the next files written are likely mapped too.
+        // Never beyond it: mapping would extend the file.
+        long size = Math.min(REGION_BYTES, channel.size() - regionStart);
+        if (regionStart + size < end) {
+            throw new IOException("Range up to " + end + " is beyond the end of filesystem");
+        }
+
+        MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, size);
+        MappedByteBuffer[] updated = Arrays.copyOf(current, Math.max(current.length, index + 1));
+        updated[index] = region;
+        regions = updated;
+        return region;
+    }
+
+    /**
+     * Drops regions which are mapped beyond {@code size},
+     * must be called after the file is truncated to it.
+     * Dropped regions are unmapped by GC.
+     */
+    synchronized void truncated(long size) {
+        MappedByteBuffer[] updated = regions.clone();
+        for (int i = 0; i < updated.length; i++) {
+            if (updated[i] != null && i * REGION_BYTES + updated[i].capacity() > size) {
+                updated[i] = null;
+            }
+        }
+        regions = updated;
+    }
+}
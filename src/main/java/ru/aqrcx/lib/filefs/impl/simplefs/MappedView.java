@@ -0,0 +1,37 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Data of a file mapped into memory by
+ * {@link SimpleFilesystemHandler#readMapped(String)}.
+ *
+ * While the view is open, the filesystem doesn't move or overwrite
+ * the data: defragmentation waits until all views are closed.
+ * So views should be closed as soon as the data is consumed.
+ */
+public class MappedView implements AutoCloseable {
+    private final ByteBuffer buffer;
+    private final Runnable release;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    MappedView(ByteBuffer buffer, Runnable release) {
+        this.buffer = buffer;
+        this.release = release;
+    }
+
+    /**
+     * @return Read-only buffer with file data, valid until the view is closed
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            release.run();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Persistent checkpoint of the filename to offset map of a
+ * {@link SimpleFilesystemHandler}, stored in a sidecar file
+ * next to the filesystem file.
+ *
+ * Checkpoint structure:
+ * <ul>
+ * <li>magic (8 bytes);</li>
+ * <li>offset in the filesystem up to which the checkpoint is valid (8 bytes);</li>
+ * <li>total size of not deleted entries before the offset (8 bytes);</li>
+ * <li>number of files (8 bytes);</li>
+ * <li>for every file: length of filename in bytes (4 bytes), filename, offset (8 bytes);</li>
+ * <li>CRC32 of everything above (8 bytes).</li>
+ * </ul>
+ *
+ * A checkpoint only describes entries before its offset, entries
+ * appended after it are replayed on mount. Any in-place change
+ * of entries before the offset (deletion, defragmentation) must
+ * {@link #invalidate(File) invalidate} the checkpoint first.
+ */
+class OffsetIndexCheckpoint {
+    static final long MAGIC = 0x66696c6566734932L; // "filefsI2"
+    static final String SUFFIX = ".index";
+
+    final FileOffsetIndex fileOffsets;
+    final long coveredOffset;
+    final long liveBytes;
+
+    private OffsetIndexCheckpoint(FileOffsetIndex fileOffsets, long coveredOffset, long liveBytes) {
+        this.fileOffsets = fileOffsets;
+        this.coveredOffset = coveredOffset;
+        this.liveBytes = liveBytes;
+    }
+
+    static File checkpointFile(File filesystemFile) {
+        return new File(filesystemFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * Atomically replaces the checkpoint of {@code filesystemFile}.
+     *
+     * @param filesystemFile File which contains the filesystem
+     * @param fileOffsets Offsets of all not deleted files before {@code coveredOffset}
+     * @param coveredOffset Offset up to which {@code fileOffsets} describes the filesystem
+     * @param liveBytes Total size of entries of the files
+     * @throws IOException If some I/O error occur
+     */
+    static void write(File filesystemFile, FileOffsetIndex fileOffsets, long coveredOffset, long liveBytes)
+            throws IOException {
+        Path checkpoint = checkpointFile(filesystemFile).toPath();
+        Path temporary = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fileStream = new FileOutputStream(temporary.toFile())) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new CheckedOutputStream(fileStream, crc)));
+            out.writeLong(MAGIC);
+            out.writeLong(coveredOffset);
+            out.writeLong(liveBytes);
+            out.writeLong(fileOffsets.size());
+            try {
+                fileOffsets.forEach((filename, offset) -> {
+                    byte[] filenameBytes = filename.getBytes(StandardCharsets.UTF_8);
+                    try {
+                        out.writeInt(filenameBytes.length);
+                        out.write(filenameBytes);
+                        out.writeLong(offset);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            out.flush();
+            new DataOutputStream(fileStream).writeLong(crc.getValue());
+            fileStream.getFD().sync();
+        }
+
+        Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the checkpoint of {@code filesystemFile}.
+     *
+     * @param filesystemFile File which contains the filesystem
+     * @param filesystemSize Current size of the filesystem
+     * @param index Empty index to load the checkpoint into
+     * @return Loaded checkpoint or null if there is no valid checkpoint
+     */
+    static OffsetIndexCheckpoint read(File filesystemFile, long filesystemSize, Supplier<FileOffsetIndex> index) {
+        File checkpoint = checkpointFile(filesystemFile);
+        if (!checkpoint.isFile()) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(checkpoint)), crc))) {
+            if (in.readLong() != MAGIC) {
+                return null;
+            }
+            long coveredOffset = in.readLong();
+            if (coveredOffset > filesystemSize) {
+                return null;
+            }
+            long liveBytes = in.readLong();
+
+            long count = in.readLong();
+            if (count < 0) {
+                return null;
+            }
+            FileOffsetIndex fileOffsets = index.get();
+            for (long i = 0; i < count; i++) {
+                byte[] filename = new byte[in.readInt()];
+                in.readFully(filename);
+                fileOffsets.put(new String(filename, StandardCharsets.UTF_8), in.readLong());
+            }
+
+            long expectedCrc = crc.getValue();
+            if (in.readLong() != expectedCrc) {
+                return null;
+            }
+            return new OffsetIndexCheckpoint(fileOffsets, coveredOffset, liveBytes);
+        } catch (IOException | RuntimeException e) {
+            // Corrupted or truncated checkpoint is the same as no checkpoint
+            return null;
+        }
+    }
+
+    static void invalidate(File filesystemFile) throws IOException {
+        Files.deleteIfExists(checkpointFile(filesystemFile).toPath());
+    }
+}
@@ -0,0 +1,99 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Executor of handler operations. Optionally limits the number
+ * of operations in flight, blocking the submitter when the limit
+ * is reached, and optionally owns its delegate.
+ *
+ * Only submissions from outside of operation tasks are limited: a task which
+ * submits its continuation, like the next step of a streamed write or a step
+ * of segment compaction on another handler sharing the delegate,
+ * would otherwise wait for a permit it holds itself.
+ */
+class OperationExecutor implements Executor {
+    private final Executor delegate;
+    private final Semaphore permits;
+    private final boolean owned;
+    private static final ThreadLocal<Boolean> RUNNING_TASK = ThreadLocal.withInitial(() -> false);
+
+    private OperationExecutor(Executor delegate, int maxQueuedOperations, boolean owned) {
+        this.delegate = delegate;
+        this.permits = maxQueuedOperations > 0 ? new Semaphore(maxQueuedOperations) : null;
+        this.owned = owned;
+    }
+
+    static OperationExecutor of(Executor delegate, int maxQueuedOperations) {
+        return new OperationExecutor(delegate, maxQueuedOperations, false);
+    }
+
+    /**
+     * @throws UnsupportedOperationException If virtual threads are not supported by JVM
+     */
+    static OperationExecutor virtualThreadPerOperation(int maxQueuedOperations) {
+        ExecutorService executor;
+        try {
+            // Looked up reflectively so the library still runs on JVMs without virtual threads
+            executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM", e);
+        }
+        return new OperationExecutor(executor, maxQueuedOperations, true);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (permits == null || RUNNING_TASK.get()) {
+            delegate.execute(() -> runTask(command));
+            return;
+        }
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for a free slot in the queue", e);
+        }
+
+        try {
+            delegate.execute(() -> {
+                try {
+                    runTask(command);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void runTask(Runnable command) {
+        // Restored, not cleared: a direct delegate runs the task inside another one
+        boolean outer = RUNNING_TASK.get();
+        RUNNING_TASK.set(true);
+        try {
+            command.run();
+        } finally {
+            RUNNING_TASK.set(outer);
+        }
+    }
+
+    /**
+     * Shuts down the delegate if it is owned by this executor.
+     */
+    void shutdown() {
+        if (owned) {
+            ((ExecutorService) delegate).shutdown();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+/**
+ * End of the entries published by the writer of a {@link SimpleFilesystemHandler},
+ * shared with read-only mounts in other processes through a memory-mapped
+ * sidecar file next to the filesystem file. Everything before it is complete,
+ * so readers follow the tail without seeing writes in progress.
+ *
+ * The tail is one long at the start of the sidecar. It's stored into the mapping
+ * on every publish, which costs no system call, and stays in the sidecar
+ * after unmount, so readers can mount while there is no writer.
+ */
+class PublishedTail implements Closeable {
+    static final String SUFFIX = ".tail";
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer tail;
+
+    private PublishedTail(RandomAccessFile file, FileChannel.MapMode mode) throws IOException {
+        this.file = file;
+        this.tail = file.getChannel().map(mode, 0, Long.BYTES);
+    }
+
+    static File tailFile(File filesystemFile) {
+        return new File(filesystemFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * Creates the sidecar of {@code filesystemFile} if it doesn't exist
+     * and publishes {@code tail} into it.
+     */
+    static PublishedTail create(File filesystemFile, long tail) throws IOException {
+        PublishedTail published = new PublishedTail(
+                new RandomAccessFile(tailFile(filesystemFile), "rw"), FileChannel.MapMode.READ_WRITE);
+        published.publish(tail);
+        return published;
+    }
+
+    /**
+     * Maps the sidecar of {@code filesystemFile} to follow the tail.
+     *
+     * @throws IOException If there is no sidecar: the filesystem
+     *                     was never written with shared reads
+     */
+    static PublishedTail open(File filesystemFile) throws IOException {
+        File tailFile = tailFile(filesystemFile);
+        if (!tailFile.isFile()) {
+            throw new FileNotFoundException("Filesystem " + filesystemFile
+                    + " is not written with shared reads, there is no " + tailFile);
+        }
+        return new PublishedTail(new RandomAccessFile(tailFile, "r"), FileChannel.MapMode.READ_ONLY);
+    }
+
+    /**
+     * Deletes the sidecar, so readers don't mount a filesystem
+     * which is written without shared reads.
+     */
+    static void delete(File filesystemFile) throws IOException {
+        Files.deleteIfExists(tailFile(filesystemFile).toPath());
+    }
+
+    void publish(long offset) {
+        tail.putLong(0, offset);
+    }
+
+    long get() {
+        return tail.getLong(0);
+    }
+
+    /**
+     * The mapping stays valid until it's garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
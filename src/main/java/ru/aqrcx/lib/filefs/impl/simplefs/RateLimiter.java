@@ -0,0 +1,48 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of background I/O, like copying of defragmentation,
+ * by sleeping the thread which does it. Bytes not used for up to
+ * a second may be used at once later.
+ *
+ * Not thread-safe, used by one defragmentation at a time.
+ */
+class RateLimiter {
+    private static final long MAX_BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long bytesPerSecond;
+    /**
+     * Time when bytes acquired so far are paid for.
+     */
+    private long paidUntilNanos = System.nanoTime();
+
+    RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Waits until {@code bytes} may be transferred.
+     */
+    void acquire(long bytes) throws InterruptedIOException {
+        if (bytes <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        paidUntilNanos = Math.max(paidUntilNanos, now - MAX_BURST_NANOS)
+                + (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+
+        long waitNanos = paidUntilNanos - now;
+        if (waitNanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the rate limit");
+        }
+    }
+}
@@ -0,0 +1,816 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import ru.aqrcx.lib.filefs.FileSource;
+import ru.aqrcx.lib.filefs.FilesystemHandler;
+import ru.aqrcx.lib.filefs.impl.exception.FileFsException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@code FilesystemHandler} which keeps files in a log of segments:
+ * {@link SimpleFilesystemHandler} filesystems in files named
+ * {@code <name>-<id>.seg}. New files go to the active segment, the one
+ * with the biggest id, and a new segment is started when the active one
+ * gets bigger than the segment size. Segments are placed into the directories
+ * from options in turn, so they may be spread across several disks.
+ *
+ * The index maps a filename to its segment, the segment maps it
+ * to the offset of its entry. If a file is found in several segments
+ * on mount (a crash interrupted its update or a compaction), the copy
+ * in the newest segment wins and older ones are deleted.
+ *
+ * Defragmentation compacts segments: live files of every segment
+ * except the active one with a share of live data below the compaction
+ * threshold are copied into the active segment, then the segment file
+ * is deleted whole. Other segments are not touched.
+ *
+ * Changes of a file are applied one at a time in order of calls.
+ * Mount, roll over and compaction don't block threads of the executor:
+ * their steps are chained on futures of segment operations.
+ */
+public class SegmentedFilesystemHandler implements FilesystemHandler {
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    private final String name;
+    private final SegmentedFilesystemOptions options;
+    private final OperationExecutor executor;
+    private final Pattern segmentFilename;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, Segment> fileSegments = new ConcurrentSkipListMap<>();
+    /**
+     * The last change of every file being changed: the next change
+     * of the file starts when it completes.
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> fileChanges = new ConcurrentHashMap<>();
+    private final AtomicReference<CompletableFuture<Void>> runningCompaction = new AtomicReference<>();
+    private volatile Segment active;
+    /**
+     * Guarded by {@code this}.
+     */
+    private long nextSegmentId;
+    /**
+     * The full segment which is being rolled over and the future of the next one.
+     * Guarded by {@code this}.
+     */
+    private Segment rollingFrom;
+    private CompletableFuture<Segment> rollingOver;
+
+    private SegmentedFilesystemHandler(String name, SegmentedFilesystemOptions options, OperationExecutor executor) {
+        this.name = name;
+        this.options = options;
+        this.executor = executor;
+        this.segmentFilename = Pattern.compile(Pattern.quote(name + "-") + "(\\d+)" + Pattern.quote(SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Mounts segments found in the directories from {@code options}
+     * or creates the first segment if there are none.
+     *
+     * @param name Name of the filesystem, a prefix of segment filenames
+     * @param options Options of the handler
+     * @return CompletableFuture with a handler for the segments
+     *         or with an Exception if I/O error occurred
+     */
+    public static CompletableFuture<SegmentedFilesystemHandler> mountAsync(
+            String name, SegmentedFilesystemOptions options) {
+        OperationExecutor executor = options.getSegmentOptions().newOperationExecutor();
+        SegmentedFilesystemHandler handler = new SegmentedFilesystemHandler(name, options, executor);
+        CompletableFuture<SegmentedFilesystemHandler> result = new CompletableFuture<>();
+        SimpleFilesystemHandler.<Map<Long, File>>wrapInFuture(executor, (future) -> {
+            try {
+                future.complete(handler.findSegments());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        })
+                .thenCompose(handler::mountSegments)
+                .thenCompose(ignored -> handler.indexSegments())
+                .thenCompose(ignored -> handler.segments.isEmpty()
+                        ? handler.createSegment(0).thenAccept(first -> handler.segments.put(first.id, first))
+                        : CompletableFuture.completedFuture(null))
+                .whenComplete((ignored, e) -> {
+                    if (e == null) {
+                        synchronized (handler) {
+                            handler.active = handler.segments.lastEntry().getValue();
+                            handler.nextSegmentId = handler.active.id + 1;
+                        }
+                        result.complete(handler);
+                        return;
+                    }
+
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    try {
+                        handler.unmountSegments();
+                    } catch (IOException suppressed) {
+                        cause.addSuppressed(suppressed);
+                    }
+                    executor.shutdown();
+                    result.completeExceptionally(new FileFsException("Exception occurred on segmented FS mount", cause));
+                });
+        return result;
+    }
+
+    /**
+     * @return Segment files found in the directories by ids
+     */
+    private Map<Long, File> findSegments() throws IOException {
+        Map<Long, File> files = new TreeMap<>();
+        for (File directory : options.getDirectories()) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can't create directory " + directory);
+            }
+            File[] directoryFiles = directory.listFiles();
+            if (directoryFiles == null) {
+                throw new IOException("Can't list directory " + directory);
+            }
+
+            for (File file : directoryFiles) {
+                Matcher matcher = segmentFilename.matcher(file.getName());
+                if (!matcher.matches()) {
+                    continue;
+                }
+                long id = Long.parseLong(matcher.group(1));
+                if (files.putIfAbsent(id, file) != null) {
+                    throw new IOException("Segment " + id + " is found both in " + files.get(id) + " and " + file);
+                }
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * Mounts all segments at once. Mounted segments are added
+     * even if others fail, so they are unmounted on failure.
+     */
+    private CompletableFuture<Void> mountSegments(Map<Long, File> files) {
+        List<CompletableFuture<Void>> mounts = new ArrayList<>();
+        for (Map.Entry<Long, File> file : files.entrySet()) {
+            long id = file.getKey();
+            mounts.add(SimpleFilesystemHandler.mountExistingFilesystemAsync(file.getValue(), options.getSegmentOptions())
+                    .thenAccept(handler -> segments.put(id, new Segment(id, file.getValue(), handler))));
+        }
+        return CompletableFuture.allOf(mounts.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Indexes files of segments from the oldest to the newest,
+     * deleting copies which are overridden by newer segments.
+     */
+    private CompletableFuture<Void> indexSegments() {
+        List<CompletableFuture<Void>> deletes = new ArrayList<>();
+        CompletableFuture<Void> indexed = CompletableFuture.completedFuture(null);
+        for (Segment segment : segments.values()) {
+            indexed = indexed.thenCompose(ignored -> segment.handler.listAsync("")).thenAccept(filenames -> {
+                for (String filename : filenames) {
+                    Segment previous = fileSegments.put(filename, segment);
+                    if (previous != null) {
+                        deletes.add(previous.handler.deleteAsync(filename));
+                    }
+                }
+            });
+        }
+        return indexed.thenCompose(ignored -> CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[0])));
+    }
+
+    private CompletableFuture<Segment> createSegment(long id) {
+        List<File> directories = options.getDirectories();
+        File directory = directories.get((int) (id % directories.size()));
+        File file = new File(directory, name + "-" + id + SEGMENT_SUFFIX);
+        return SimpleFilesystemHandler.initThenMountFilesystemAsync(file, options.getSegmentOptions())
+                .thenApply(handler -> new Segment(id, file, handler));
+    }
+
+    /**
+     * @return Future of the active segment, a new one if the active segment is full.
+     *         Its write of {@code bytes} is begun, see {@link Segment#beginWrite(long)}
+     */
+    private CompletableFuture<Segment> beginActiveWrite(long bytes) {
+        Segment segment = active;
+        if (segment.getSize() >= options.getSegmentBytes()) {
+            return rollOver(segment).thenCompose(next -> beginActiveWrite(bytes));
+        }
+        if (segment.beginWrite(bytes)) {
+            return CompletableFuture.completedFuture(segment);
+        }
+        // Only segments which aren't active are sealed, so the active one has changed already
+        return beginActiveWrite(bytes);
+    }
+
+    /**
+     * Starts a new segment once for the full one, writes which find
+     * the full segment at the same time wait for the same new segment.
+     *
+     * @return Future of the next active segment
+     */
+    private synchronized CompletableFuture<Segment> rollOver(Segment full) {
+        if (active != full) {
+            return CompletableFuture.completedFuture(active);
+        }
+        if (rollingFrom != full) {
+            rollingFrom = full;
+            rollingOver = createSegment(nextSegmentId++).whenComplete((next, e) -> {
+                synchronized (this) {
+                    if (e == null) {
+                        segments.put(next.id, next);
+                        active = next;
+                    } else if (rollingFrom == full) {
+                        // The next write tries again
+                        rollingFrom = null;
+                    }
+                }
+            });
+        }
+        return rollingOver;
+    }
+
+    /**
+     * Creates a new file from {@code source} in the active segment.
+     * Completes exceptionally if such {@code filename} already exists.
+     */
+    @Override
+    public CompletableFuture<Void> writeAsync(String filename, InputStream source, long sourceSize) {
+        return changeFiles(Collections.singletonList(filename), () -> {
+            if (fileSegments.containsKey(filename)) {
+                throw new IllegalArgumentException("File \"" + filename + "\" already exists");
+            }
+            return writeActive(filename, sourceSize,
+                    segment -> segment.handler.writeAsync(filename, source, sourceSize));
+        }, "Exception occurred on file \"" + filename + "\" write");
+    }
+
+    /**
+     * Writes all files into the active segment at once.
+     * The batch is all or nothing like in {@link SimpleFilesystemHandler#writeAllAsync(Map)}.
+     */
+    @Override
+    public CompletableFuture<Void> writeAllAsync(Map<String, FileSource> sources) {
+        return changeFiles(sources.keySet(), () -> {
+            for (String filename : sources.keySet()) {
+                if (fileSegments.containsKey(filename)) {
+                    throw new IllegalArgumentException("File \"" + filename + "\" already exists");
+                }
+            }
+
+            long bytes = 0;
+            for (FileSource source : sources.values()) {
+                bytes += source.getSize();
+            }
+            return beginActiveWrite(bytes).thenCompose(segment -> segment.handler.writeAllAsync(sources)
+                    .whenComplete((ignored, e) -> {
+                        if (e == null) {
+                            for (String filename : sources.keySet()) {
+                                fileSegments.put(filename, segment);
+                            }
+                        }
+                        segment.endWrite();
+                    }));
+        }, "Exception occurred on write of " + sources.size() + " files");
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String filename) {
+        return changeFiles(Collections.singletonList(filename), () -> {
+            Segment segment = acquireSegment(filename);
+            if (segment == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return segment.handler.deleteAsync(filename).whenComplete((ignored, e) -> {
+                if (e == null) {
+                    fileSegments.remove(filename, segment);
+                }
+                segment.release();
+            });
+        }, "Exception occurred on file \"" + filename + "\" delete");
+    }
+
+    @Override
+    public CompletableFuture<Void> readAsync(String filename, OutputStream destination) {
+        Segment segment = acquireSegment(filename);
+        if (segment == null) {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            try {
+                destination.close();
+                result.complete(null);
+            } catch (Throwable e) {
+                result.completeExceptionally(
+                        new FileFsException("Exception occurred on file \"" + filename + "\" read", e));
+            }
+            return result;
+        }
+        return segment.handler.readAsync(filename, destination).whenComplete((ignored, e) -> segment.release());
+    }
+
+    @Override
+    public CompletableFuture<Long> readRangeAsync(String filename, long offset, long length,
+                                               WritableByteChannel destination) {
+        Segment segment = acquireSegment(filename);
+        if (segment == null) {
+            CompletableFuture<Long> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new FileFsException("Exception occurred on file \"" + filename
+                    + "\" range read", new FileNotFoundException("No file \"" + filename + "\" in the filesystem")));
+            return failed;
+        }
+        return segment.handler.readRangeAsync(filename, offset, length, destination)
+                .whenComplete((ignored, e) -> segment.release());
+    }
+
+    /**
+     * Appends to the file in its segment, a missing file is written into the active segment.
+     */
+    @Override
+    public CompletableFuture<Void> appendAsync(String filename, InputStream source, long sourceSize) {
+        return changeFiles(Collections.singletonList(filename), () -> {
+            Segment segment = acquireSegment(filename);
+            if (segment == null) {
+                return writeActive(filename, sourceSize,
+                        active -> active.handler.appendAsync(filename, source, sourceSize));
+            }
+            return segment.handler.appendAsync(filename, source, sourceSize)
+                    .whenComplete((ignored, e) -> segment.release());
+        }, "Exception occurred on append to file \"" + filename + "\"");
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAtAsync(String filename, long offset, InputStream source, long sourceSize) {
+        return changeFiles(Collections.singletonList(filename), () -> {
+            Segment segment = acquireSegment(filename);
+            if (segment == null) {
+                throw new FileNotFoundException("No file \"" + filename + "\" in the filesystem");
+            }
+            return segment.handler.writeAtAsync(filename, offset, source, sourceSize)
+                    .whenComplete((ignored, e) -> segment.release());
+        }, "Exception occurred on write to file \"" + filename + "\" at offset " + offset);
+    }
+
+    /**
+     * Writes the new file into the active segment, then deletes the old one
+     * from its segment. A file in the active segment is updated in place.
+     */
+    @Override
+    public CompletableFuture<Void> updateAsync(String filename, InputStream source, long sourceSize) {
+        return changeFiles(Collections.singletonList(filename), () -> {
+            Segment old = fileSegments.get(filename);
+            return writeActive(filename, sourceSize, segment -> {
+                if (segment == old) {
+                    return segment.handler.updateAsync(filename, source, sourceSize);
+                }
+                return segment.handler.writeAsync(filename, source, sourceSize);
+            }).thenCompose(ignored -> {
+                Segment segment = fileSegments.get(filename);
+                if (old == null || old == segment) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                // Files are moved only by changes of the file, so the old segment isn't retired yet
+                return old.handler.deleteAsync(filename);
+            });
+        }, "Exception occurred on file \"" + filename + "\" update");
+    }
+
+    @Override
+    public CompletableFuture<Set<String>> listAsync(String path) {
+        return CompletableFuture.completedFuture(
+                Collections.unmodifiableSet(new LinkedHashSet<>(list(path, null, Integer.MAX_VALUE))));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> listPageAsync(String path, String startAfter, int limit) {
+        if (limit <= 0) {
+            CompletableFuture<List<String>> result = new CompletableFuture<>();
+            result.completeExceptionally(new IllegalArgumentException("Limit must be positive"));
+            return result;
+        }
+        return CompletableFuture.completedFuture(list(path, startAfter, limit));
+    }
+
+    private List<String> list(String path, String startAfter, int limit) {
+        String prefix = path == null ? "" : path;
+        NavigableMap<String, Segment> tail = startAfter != null && startAfter.compareTo(prefix) >= 0
+                ? fileSegments.tailMap(startAfter, false)
+                : fileSegments.tailMap(prefix, true);
+
+        List<String> result = new ArrayList<>(Math.min(limit, 1024));
+        for (String filename : tail.keySet()) {
+            if (result.size() >= limit || !filename.startsWith(prefix)) {
+                break;
+            }
+            result.add(filename);
+        }
+        return result;
+    }
+
+    /**
+     * Compacts segments except the active one with a share of live data
+     * below the compaction threshold: copies their files into the active
+     * segment, forces it to the storage device and deletes the segment files.
+     * Segments are not defragmented one by one, there is no need to:
+     * a segment with much dead space is compacted whole.
+     *
+     * If compaction is already running, returns its future.
+     *
+     * @return CompletableFuture which indicates the result of compaction
+     */
+    @Override
+    public CompletableFuture<Void> defrag() {
+        CompletableFuture<Void> running = runningCompaction.get();
+        if (running != null) {
+            return running;
+        }
+
+        CompletableFuture<Void> compaction = new CompletableFuture<>();
+        if (!runningCompaction.compareAndSet(null, compaction)) {
+            return runningCompaction.get();
+        }
+
+        SimpleFilesystemHandler.<Void>wrapInFuture(executor, (future) -> compact().whenComplete((ignored, e) -> {
+            if (e == null) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(new FileFsException("Exception occurred on compaction",
+                        e instanceof CompletionException && e.getCause() != null ? e.getCause() : e));
+            }
+        })).whenComplete((ignored, e) -> {
+            runningCompaction.set(null);
+            if (e == null) {
+                compaction.complete(null);
+            } else {
+                compaction.completeExceptionally(e);
+            }
+        });
+        return compaction;
+    }
+
+    /**
+     * @return Future of compaction of sparse segments one after another
+     */
+    private CompletableFuture<Void> compact() {
+        CompletableFuture<Void> compacted = CompletableFuture.completedFuture(null);
+        for (Segment segment : segments.values()) {
+            if (segment == active) {
+                continue;
+            }
+            long bytes = segment.file.length() - SimpleFilesystemHandler.VERSION_BYTES;
+            if (bytes <= 0 || segment.handler.getLiveBytes() < bytes * options.getCompactionThreshold()) {
+                compacted = compacted.thenCompose(ignored -> compact(segment));
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Moves files of the segment into the active segment, then deletes the segment.
+     */
+    private CompletableFuture<Void> compact(Segment segment) {
+        Set<Segment> targets = ConcurrentHashMap.newKeySet();
+        // Writes of new files which have chosen the segment before a roll over
+        return segment.seal()
+                .thenCompose(ignored -> segment.handler.listAsync(""))
+                .thenCompose(filenames -> {
+                    CompletableFuture<Void> moved = CompletableFuture.completedFuture(null);
+                    for (String filename : filenames) {
+                        moved = moved.thenCompose(ignored -> move(filename, segment, targets));
+                    }
+                    return moved;
+                })
+                .thenCompose(ignored -> runOnExecutor(() -> {
+                    // Copies must be durable before the only other copy is deleted
+                    for (Segment target : targets) {
+                        target.handler.force();
+                    }
+                }))
+                .thenCompose(ignored -> {
+                    segments.remove(segment.id);
+                    return segment.retire();
+                })
+                .thenCompose(ignored -> runOnExecutor(() -> {
+                    segment.handler.unmount();
+                    OffsetIndexCheckpoint.invalidate(segment.file);
+                    if (!segment.file.delete() && segment.file.exists()) {
+                        throw new IOException("Can't delete segment " + segment.file);
+                    }
+                }));
+    }
+
+    /**
+     * Copies the file from the compacted segment into the active one.
+     * A file which is missing in its segment is dropped from the index,
+     * so reads don't look for it in the retired segment.
+     */
+    private CompletableFuture<Void> move(String filename, Segment segment, Set<Segment> targets) {
+        return changeFiles(Collections.singletonList(filename), () -> {
+            if (fileSegments.get(filename) != segment) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return beginActiveWrite(0).thenCompose(target -> runOnExecutor(() -> {
+                try {
+                    if (segment.handler.copyTo(filename, target.handler)) {
+                        fileSegments.replace(filename, segment, target);
+                        targets.add(target);
+                    } else {
+                        fileSegments.remove(filename, segment);
+                    }
+                } finally {
+                    target.endWrite();
+                }
+            }));
+        }, "Exception occurred on file \"" + filename + "\" move");
+    }
+
+    private CompletableFuture<Void> runOnExecutor(IoAction action) {
+        return SimpleFilesystemHandler.wrapInFuture(executor, (future) -> {
+            try {
+                action.run();
+                future.complete(null);
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * @return Number of segments, e.g. to check that compaction deleted some
+     */
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Waits for running compaction, then unmounts all segments.
+     *
+     * @throws IOException If some I/O error occur
+     */
+    @Override
+    public void unmount() throws IOException {
+        CompletableFuture<Void> running = runningCompaction.get();
+        if (running != null) {
+            running.handle((ignored, e) -> null).join();
+        }
+        try {
+            unmountSegments();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void unmountSegments() throws IOException {
+        IOException failure = null;
+        for (Segment segment : segments.values()) {
+            try {
+                segment.handler.unmount();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Starts a write of the file into the active segment
+     * and indexes the file when it completes successfully.
+     */
+    private CompletableFuture<Void> writeActive(String filename, long bytes,
+                                                Function<Segment, CompletableFuture<Void>> write) {
+        return beginActiveWrite(bytes).thenCompose(segment -> {
+            CompletableFuture<Void> written;
+            try {
+                written = write.apply(segment);
+            } catch (Throwable e) {
+                segment.endWrite();
+                throw e;
+            }
+            return written.whenComplete((ignored, e) -> {
+                if (e == null) {
+                    fileSegments.put(filename, segment);
+                }
+                segment.endWrite();
+            });
+        });
+    }
+
+    /**
+     * @return The acquired segment of the file or null if there is no such file
+     */
+    private Segment acquireSegment(String filename) {
+        while (true) {
+            Segment segment = fileSegments.get(filename);
+            if (segment == null || segment.acquire()) {
+                return segment;
+            }
+            // The segment is compacted: its files are moved or dropped before it is retired,
+            // so the next lookup finds the file elsewhere or doesn't find it
+            fileSegments.remove(filename, segment);
+        }
+    }
+
+    /**
+     * Runs {@code change} after previous changes of the {@code filenames} complete.
+     * A failure of the change is wrapped into {@link FileFsException} with {@code errorMessage}.
+     */
+    private <T> CompletableFuture<T> changeFiles(Collection<String> filenames, Callable<CompletableFuture<T>> change,
+                                                 String errorMessage) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        List<CompletableFuture<Void>> previous = new ArrayList<>();
+        for (String filename : filenames) {
+            CompletableFuture<Void> previousChange = fileChanges.put(filename, done);
+            if (previousChange != null) {
+                previous.add(previousChange);
+            }
+        }
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture.allOf(previous.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            CompletableFuture<T> changed;
+            try {
+                changed = change.call();
+            } catch (Throwable e) {
+                changed = new CompletableFuture<>();
+                changed.completeExceptionally(e);
+            }
+            changed.whenComplete((value, e) -> {
+                for (String filename : filenames) {
+                    fileChanges.remove(filename, done);
+                }
+                done.complete(null);
+                if (e == null) {
+                    result.complete(value);
+                } else {
+                    result.completeExceptionally(new FileFsException(errorMessage, e));
+                }
+            });
+        });
+        return result;
+    }
+
+    @FunctionalInterface
+    private interface IoAction {
+        void run() throws IOException;
+    }
+
+    /**
+     * Segment file with the handler of its filesystem.
+     * Usage counters are guarded by the segment lock, futures of sealing
+     * and retirement are completed outside of it when counters drop to zero.
+     */
+    private static class Segment {
+        final long id;
+        final File file;
+        final SimpleFilesystemHandler handler;
+        /**
+         * Writes of new files, which choose the segment as the active one.
+         */
+        private int writes;
+        /**
+         * All operations which use the segment, including writes.
+         */
+        private int users;
+        /**
+         * Size of the segment with writes which are begun but may be not finished yet.
+         * It is counted from the committed tail of the handler, so the file
+         * isn't asked for its length on every write.
+         */
+        private long size;
+        /**
+         * Completes when the segment is sealed and running writes end, null if it isn't sealed.
+         */
+        private CompletableFuture<Void> sealed;
+        /**
+         * Completes when the segment is retired and running operations end, null if it isn't retired.
+         */
+        private CompletableFuture<Void> retired;
+
+        Segment(long id, File file, SimpleFilesystemHandler handler) {
+            this.id = id;
+            this.file = file;
+            this.handler = handler;
+        }
+
+        /**
+         * @return Size of the segment file or a bigger one if begun writes are not finished yet
+         */
+        synchronized long getSize() {
+            size = Math.max(size, handler.getCommittedTail());
+            return size;
+        }
+
+        /**
+         * @return False if the segment is being compacted and can't take new files
+         */
+        synchronized boolean beginWrite(long bytes) {
+            if (sealed != null) {
+                return false;
+            }
+            size = Math.max(size, handler.getCommittedTail()) + bytes;
+            writes++;
+            users++;
+            return true;
+        }
+
+        void endWrite() {
+            CompletableFuture<Void> sealedNow;
+            CompletableFuture<Void> retiredNow;
+            synchronized (this) {
+                writes--;
+                users--;
+                sealedNow = writes == 0 ? sealed : null;
+                retiredNow = users == 0 ? retired : null;
+            }
+            complete(sealedNow);
+            complete(retiredNow);
+        }
+
+        /**
+         * @return False if the segment is compacted and its files are moved
+         */
+        synchronized boolean acquire() {
+            if (retired != null) {
+                return false;
+            }
+            users++;
+            return true;
+        }
+
+        void release() {
+            CompletableFuture<Void> retiredNow;
+            synchronized (this) {
+                users--;
+                retiredNow = users == 0 ? retired : null;
+            }
+            complete(retiredNow);
+        }
+
+        /**
+         * Stops writes of new files.
+         *
+         * @return Future which completes when running writes end
+         */
+        CompletableFuture<Void> seal() {
+            CompletableFuture<Void> result;
+            synchronized (this) {
+                if (sealed == null) {
+                    sealed = new CompletableFuture<>();
+                }
+                result = sealed;
+                if (writes > 0) {
+                    return result;
+                }
+            }
+            result.complete(null);
+            return result;
+        }
+
+        /**
+         * Stops all operations.
+         *
+         * @return Future which completes when running operations end
+         */
+        CompletableFuture<Void> retire() {
+            CompletableFuture<Void> result;
+            synchronized (this) {
+                if (retired == null) {
+                    retired = new CompletableFuture<>();
+                }
+                result = retired;
+                if (users > 0) {
+                    return result;
+                }
+            }
+            result.complete(null);
+            return result;
+        }
+
+        private static void complete(CompletableFuture<Void> future) {
+            if (future != null) {
+                future.complete(null);
+            }
+        }
+    }
+}
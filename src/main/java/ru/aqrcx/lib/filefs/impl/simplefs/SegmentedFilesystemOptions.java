@@ -0,0 +1,116 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Options of a {@link SegmentedFilesystemHandler} which are set on mount.
+ * Instances are immutable and created with {@link #builder()}.
+ */
+public class SegmentedFilesystemOptions {
+    public static final long DEFAULT_SEGMENT_BYTES = 256L * 1024 * 1024;
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private final List<File> directories;
+    private final long segmentBytes;
+    private final double compactionThreshold;
+    private final SimpleFilesystemOptions segmentOptions;
+
+    private SegmentedFilesystemOptions(Builder builder) {
+        this.directories = Collections.unmodifiableList(new ArrayList<>(builder.directories));
+        this.segmentBytes = builder.segmentBytes;
+        this.compactionThreshold = builder.compactionThreshold;
+        this.segmentOptions = builder.segmentOptions;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public List<File> getDirectories() {
+        return directories;
+    }
+
+    public long getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    public double getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    public SimpleFilesystemOptions getSegmentOptions() {
+        return segmentOptions;
+    }
+
+    public static class Builder {
+        private final List<File> directories = new ArrayList<>();
+        private long segmentBytes = DEFAULT_SEGMENT_BYTES;
+        private double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+        private SimpleFilesystemOptions segmentOptions = SimpleFilesystemOptions.DEFAULT;
+
+        private Builder() {
+        }
+
+        /**
+         * Adds a directory for segment files. Segments are placed
+         * into directories in turn, in the order they are added,
+         * so they may be spread across several disks.
+         * The set of directories must not change between mounts.
+         */
+        public Builder directory(File directory) {
+            if (directory == null) {
+                throw new IllegalArgumentException("Directory must not be null");
+            }
+            this.directories.add(directory);
+            return this;
+        }
+
+        /**
+         * Size after which a new segment is started. A segment may get
+         * bigger than it by the size of files written while it is reached.
+         */
+        public Builder segmentBytes(long segmentBytes) {
+            if (segmentBytes <= 0) {
+                throw new IllegalArgumentException("Segment size must be positive");
+            }
+            this.segmentBytes = segmentBytes;
+            return this;
+        }
+
+        /**
+         * Share of live data below which a segment is compacted on defragmentation:
+         * its files are moved into the active segment and the segment file is deleted.
+         *
+         * @param compactionThreshold Share from 0 (only empty segments) to 1 (all segments)
+         */
+        public Builder compactionThreshold(double compactionThreshold) {
+            if (!(compactionThreshold >= 0 && compactionThreshold <= 1)) {
+                throw new IllegalArgumentException("Compaction threshold must be from 0 to 1");
+            }
+            this.compactionThreshold = compactionThreshold;
+            return this;
+        }
+
+        /**
+         * Options every segment is mounted with. Operations of segments run
+         * on the executor from them, as do mount and compaction.
+         */
+        public Builder segmentOptions(SimpleFilesystemOptions segmentOptions) {
+            if (segmentOptions == null) {
+                throw new IllegalArgumentException("Segment options must not be null");
+            }
+            this.segmentOptions = segmentOptions;
+            return this;
+        }
+
+        public SegmentedFilesystemOptions build() {
+            if (directories.isEmpty()) {
+                throw new IllegalStateException("At least one directory must be set");
+            }
+            return new SegmentedFilesystemOptions(this);
+        }
+    }
+}
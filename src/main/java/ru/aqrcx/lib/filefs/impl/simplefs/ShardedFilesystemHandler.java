@@ -0,0 +1,291 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import ru.aqrcx.lib.filefs.FileSource;
+import ru.aqrcx.lib.filefs.FilesystemHandler;
+import ru.aqrcx.lib.filefs.impl.exception.FileFsException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@code FilesystemHandler} which partitions files by hash of their names
+ * across several {@link SimpleFilesystemHandler} containers (shards),
+ * so writes to different shards don't contend for one channel, lock and index.
+ *
+ * Shards are files named {@code <name>-<index>-of-<count>.shard} in one directory.
+ * The number of shards is part of the names: a filesystem can't be mounted
+ * with another number of shards, since files would be looked up in wrong ones.
+ *
+ * Listing merges results of all shards. Batches of {@link #writeAllAsync(Map)}
+ * are all or nothing within a shard only.
+ */
+public class ShardedFilesystemHandler implements FilesystemHandler {
+    static final String SHARD_SUFFIX = ".shard";
+
+    private final SimpleFilesystemHandler[] shards;
+
+    private ShardedFilesystemHandler(SimpleFilesystemHandler[] shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * Mounts the shards in {@code directory} in parallel,
+     * shards which don't exist yet are created.
+     *
+     * @param directory Directory with shard files, created if missing
+     * @param name Name of the filesystem, a prefix of shard filenames
+     * @param shardCount Number of shards
+     * @param options Options every shard is mounted with
+     * @return CompletableFuture with a handler for the shards
+     *         or with an Exception if I/O error occurred
+     *         or the filesystem has another number of shards
+     */
+    public static CompletableFuture<ShardedFilesystemHandler> mountAsync(
+            File directory, String name, int shardCount, SimpleFilesystemOptions options) {
+        if (shardCount <= 0) {
+            CompletableFuture<ShardedFilesystemHandler> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalArgumentException("Number of shards must be positive"));
+            return failed;
+        }
+
+        File[] files;
+        try {
+            files = shardFiles(directory, name, shardCount);
+        } catch (IOException e) {
+            CompletableFuture<ShardedFilesystemHandler> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new FileFsException("Exception occurred on sharded FS mount", e));
+            return failed;
+        }
+
+        List<CompletableFuture<SimpleFilesystemHandler>> mounts = new ArrayList<>(shardCount);
+        for (File file : files) {
+            mounts.add(file.exists()
+                    ? SimpleFilesystemHandler.mountExistingFilesystemAsync(file, options)
+                    : SimpleFilesystemHandler.initThenMountFilesystemAsync(file, options));
+        }
+
+        CompletableFuture<ShardedFilesystemHandler> result = new CompletableFuture<>();
+        CompletableFuture.allOf(mounts.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, e) -> {
+            if (e == null) {
+                SimpleFilesystemHandler[] shards = new SimpleFilesystemHandler[shardCount];
+                for (int i = 0; i < shardCount; i++) {
+                    shards[i] = mounts.get(i).join();
+                }
+                result.complete(new ShardedFilesystemHandler(shards));
+                return;
+            }
+
+            // Shards mounted successfully are unmounted, the first failure is reported
+            for (CompletableFuture<SimpleFilesystemHandler> mount : mounts) {
+                if (!mount.isCompletedExceptionally()) {
+                    try {
+                        mount.join().unmount();
+                    } catch (IOException suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
+                }
+            }
+            result.completeExceptionally(new FileFsException("Exception occurred on sharded FS mount", e));
+        });
+        return result;
+    }
+
+    /**
+     * @return Files of the shards in order of their indexes
+     * @throws IOException If the directory contains shards of the filesystem
+     *                     with another number of shards
+     */
+    private static File[] shardFiles(File directory, String name, int shardCount) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+        File[] directoryFiles = directory.listFiles();
+        if (directoryFiles == null) {
+            throw new IOException("Can't list directory " + directory);
+        }
+
+        Pattern shardFilename = Pattern.compile(
+                Pattern.quote(name + "-") + "\\d+-of-(\\d+)" + Pattern.quote(SHARD_SUFFIX));
+        for (File file : directoryFiles) {
+            Matcher matcher = shardFilename.matcher(file.getName());
+            if (matcher.matches() && !matcher.group(1).equals(String.valueOf(shardCount))) {
+                throw new IOException("Filesystem \"" + name + "\" has " + matcher.group(1)
+                        + " shards, not " + shardCount);
+            }
+        }
+
+        File[] files = new File[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            files[i] = new File(directory, name + "-" + i + "-of-" + shardCount + SHARD_SUFFIX);
+        }
+        return files;
+    }
+
+    /**
+     * @return The shard of the file. Bits of the hash are spread,
+     *         so names which differ only in the last characters
+     *         land in different shards for any number of shards
+     */
+    SimpleFilesystemHandler shard(String filename) {
+        int hash = filename.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        return shards[(hash & Integer.MAX_VALUE) % shards.length];
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(String filename, InputStream source, long sourceSize) {
+        return shard(filename).writeAsync(filename, source, sourceSize);
+    }
+
+    /**
+     * Splits the batch by shards and writes the parts in parallel.
+     * If some part fails, parts written into other shards are kept.
+     */
+    @Override
+    public CompletableFuture<Void> writeAllAsync(Map<String, FileSource> sources) {
+        Map<SimpleFilesystemHandler, Map<String, FileSource>> parts = new LinkedHashMap<>();
+        for (Map.Entry<String, FileSource> source : sources.entrySet()) {
+            parts.computeIfAbsent(shard(source.getKey()), ignored -> new LinkedHashMap<>())
+                    .put(source.getKey(), source.getValue());
+        }
+
+        List<CompletableFuture<Void>> writes = new ArrayList<>(parts.size());
+        for (Map.Entry<SimpleFilesystemHandler, Map<String, FileSource>> part : parts.entrySet()) {
+            writes.add(part.getKey().writeAllAsync(part.getValue()));
+        }
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String filename) {
+        return shard(filename).deleteAsync(filename);
+    }
+
+    @Override
+    public CompletableFuture<Void> readAsync(String filename, OutputStream destination) {
+        return shard(filename).readAsync(filename, destination);
+    }
+
+    @Override
+    public CompletableFuture<Long> readRangeAsync(String filename, long offset, long length,
+                                               WritableByteChannel destination) {
+        return shard(filename).readRangeAsync(filename, offset, length, destination);
+    }
+
+    @Override
+    public CompletableFuture<Void> appendAsync(String filename, InputStream source, long sourceSize) {
+        return shard(filename).appendAsync(filename, source, sourceSize);
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAtAsync(String filename, long offset, InputStream source, long sourceSize) {
+        return shard(filename).writeAtAsync(filename, offset, source, sourceSize);
+    }
+
+    @Override
+    public CompletableFuture<Void> updateAsync(String filename, InputStream source, long sourceSize) {
+        return shard(filename).updateAsync(filename, source, sourceSize);
+    }
+
+    /**
+     * Merges filenames of all shards into one set sorted by filenames.
+     */
+    @Override
+    public CompletableFuture<Set<String>> listAsync(String path) {
+        List<CompletableFuture<Set<String>>> lists = new ArrayList<>(shards.length);
+        for (SimpleFilesystemHandler shard : shards) {
+            lists.add(shard.listAsync(path));
+        }
+        return CompletableFuture.allOf(lists.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            TreeSet<String> filenames = new TreeSet<>();
+            for (CompletableFuture<Set<String>> list : lists) {
+                filenames.addAll(list.join());
+            }
+            return Collections.unmodifiableSet(new LinkedHashSet<>(filenames));
+        });
+    }
+
+    /**
+     * Takes a page of up to {@code limit} filenames from every shard
+     * and merges the first {@code limit} of them.
+     */
+    @Override
+    public CompletableFuture<List<String>> listPageAsync(String path, String startAfter, int limit) {
+        if (limit <= 0) {
+            CompletableFuture<List<String>> result = new CompletableFuture<>();
+            result.completeExceptionally(new IllegalArgumentException("Limit must be positive"));
+            return result;
+        }
+
+        List<CompletableFuture<List<String>>> pages = new ArrayList<>(shards.length);
+        for (SimpleFilesystemHandler shard : shards) {
+            pages.add(shard.listPageAsync(path, startAfter, limit));
+        }
+        return CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            TreeSet<String> filenames = new TreeSet<>();
+            for (CompletableFuture<List<String>> page : pages) {
+                filenames.addAll(page.join());
+            }
+            List<String> result = new ArrayList<>(Math.min(limit, filenames.size()));
+            for (String filename : filenames) {
+                if (result.size() >= limit) {
+                    break;
+                }
+                result.add(filename);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Defragments all shards in parallel.
+     */
+    @Override
+    public CompletableFuture<Void> defrag() {
+        List<CompletableFuture<Void>> defrags = new ArrayList<>(shards.length);
+        for (SimpleFilesystemHandler shard : shards) {
+            defrags.add(shard.defrag());
+        }
+        return CompletableFuture.allOf(defrags.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Unmounts all shards, even if some of them fail.
+     *
+     * @throws IOException The first I/O error of shards, others are suppressed
+     */
+    @Override
+    public void unmount() throws IOException {
+        IOException failure = null;
+        for (SimpleFilesystemHandler shard : shards) {
+            try {
+                shard.unmount();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
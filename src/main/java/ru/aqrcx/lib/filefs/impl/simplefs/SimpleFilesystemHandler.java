@@ -1,21 +1,51 @@
 package ru.aqrcx.lib.filefs.impl.simplefs;
 
+import ru.aqrcx.lib.filefs.FileSource;
 import ru.aqrcx.lib.filefs.FilesystemHandler;
 import ru.aqrcx.lib.filefs.impl.exception.FileFsException;
+import ru.aqrcx.lib.filefs.impl.metrics.FilesystemMetrics;
+import ru.aqrcx.lib.filefs.impl.metrics.FilesystemOperation;
+import ru.aqrcx.lib.filefs.impl.metrics.OperationProbe;
 import ru.aqrcx.lib.filefs.internal.util.ByteUtils;
 
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
+import java.util.function.IntFunction;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 /**
  * <code>SimpleFilesystemHandler</code> is an implementation
@@ -38,13 +68,59 @@ import java.util.stream.Collectors;
  * There is no directory structure, but it can be simulated
  * with filenames.
  *
- * Reads and writes happen in the synchronized blocks because
- * we need to protect position in FileChannel from changing during
- * the write or read. Except for methods which are called only on
- * initialization of this object.
+ * All reads and writes are positional, so they don't share
+ * the FileChannel position and run in parallel. A write reserves
+ * its region at the tail in a short synchronized block, copies
+ * its data without locks and is published into the cache in order
+ * of reservation: a write completes only when all the writes
+ * before it are published, so the filesystem never has holes
+ * before the last published file.
  *
  * This implementation have a cache of files in filesystem,
- * which inits on this object creation.
+ * which inits on this object creation. The cache is checkpointed
+ * into a sidecar file on unmount (see {@link OffsetIndexCheckpoint}),
+ * so mount only scans entries written after the checkpoint.
+ *
+ * Operations run on the executor from {@link SimpleFilesystemOptions}
+ * ({@link java.util.concurrent.ForkJoinPool#commonPool()} by default).
+ * Futures of changes complete when the changes are durable
+ * according to the {@link DurabilityMode} from the options.
+ *
+ * Defragmentation relocates entries while the filesystem is in use,
+ * so reads hold the shared side of {@code relocationLock} for their
+ * whole duration and defragmentation takes the exclusive side
+ * only for the short steps where a live entry is overwritten.
+ * Every step also waits until all {@link MappedView}s are closed,
+ * so mapped data is never moved or overwritten while it is viewed.
+ *
+ * With deduplication enabled in options, a file body is stored once
+ * in a blob entry named by its SHA-256 digest, and files are reference
+ * entries holding the digest. References don't store offsets, so
+ * defragmentation relocates blobs without rewriting references.
+ * Reference counts of blobs are counted on mount (see {@link BlobIndex}).
+ *
+ * With reuse of free space enabled in options, deleted entries are tracked
+ * in a {@link FreeSpaceMap} and a write goes into the best fitting one
+ * instead of the tail, so files are not necessarily in order of writes.
+ *
+ * With asynchronous I/O enabled in options, files can also be read and written
+ * from buffers through an {@link AsynchronousFileIo}, whose futures complete
+ * from completion handlers. Such reads hold no lock while their I/O
+ * is in flight, so steps which move or reuse data wait until they end.
+ *
+ * Appends and patches change files in place when there is space after
+ * the entry (see {@link #appendAsync(String, InputStream, long)}).
+ * They wait for running defragmentation, and deletes of a file wait
+ * for its modifications.
+ *
+ * A {@link FilesystemSnapshot} from {@link #snapshot()} reads files as they were
+ * when it was taken. Entries it references are changed copy-on-write:
+ * they are neither reused nor moved by defragmentation until it's closed.
+ *
+ * One process writes the filesystem, others may mount it read-only
+ * (see {@link #mountReadOnlyAsync(File, SimpleFilesystemOptions)}) if the writer
+ * publishes its tail with shared reads. Readers follow the published tail
+ * and hold a shared lock which keeps the writer from defragmenting.
  */
 public class SimpleFilesystemHandler implements FilesystemHandler {
     public final static Long VERSION = 1L;
@@ -52,83 +128,336 @@ public class SimpleFilesystemHandler implements FilesystemHandler {
     final static int FILE_SIZE_BYTES = Long.BYTES;
     final static int FILE_NAME_SIZE_BYTES = Integer.BYTES;
     final static int FLAGS_SIZE_BYTES = Integer.BYTES;
+    final static int DELETED_FLAG = 1;
+    /**
+     * Data of the entry is compressed with deflate by {@link CompressingFilesystemProxy}.
+     */
+    final static int COMPRESSED_FLAG = 1 << 1;
+    /**
+     * The entry holds a deduplicated file body, its name is the hex SHA-256 digest of the body.
+     * Blobs are not files: they are indexed in {@link BlobIndex} and never listed.
+     */
+    final static int BLOB_FLAG = 1 << 2;
+    /**
+     * Data of the entry is the SHA-256 digest of the blob with the file body.
+     */
+    final static int REFERENCE_FLAG = 1 << 3;
+    final static int DIGEST_BYTES = 32;
+    final static int BLOB_NAME_BYTES = DIGEST_BYTES * 2;
+    /**
+     * Deduplicated files up to this size are hashed in memory before they are written,
+     * so a duplicate costs only its reference entry. Bigger files are hashed
+     * while they are written and a duplicate blob becomes dead space.
+     */
+    final static int DEDUP_BUFFER_BYTES = 1024 * 1024;
+    /**
+     * Size of the smallest possible entry: a deleted one with an empty name.
+     * Used as a filler to keep dead space parseable during defragmentation.
+     */
+    final static int FILLER_ENTRY_BYTES = getFilePropertiesSize(0);
+    final static int DEFRAG_CHUNK_BYTES = 1 << 20;
+    /**
+     * Bounds of free space reserved after a file which is relocated
+     * by an append, so next appends extend it in place.
+     */
+    final static long MIN_APPEND_SLACK_BYTES = 4 * 1024;
+    final static long MAX_APPEND_SLACK_BYTES = 64 * 1024 * 1024;
+    private final static long APPEND = -1;
+    final static int BATCH_INLINE_BYTES = 64 * 1024;
+    final static int BATCH_GATHER_BYTES = 4 * 1024 * 1024;
+    /**
+     * Below the usual IOV_MAX, so one gathering write is one syscall.
+     */
+    final static int BATCH_GATHER_BUFFERS = 1024;
+    /**
+     * Size of chunks published by {@link #readPublisher(String)}.
+     */
+    final static int STREAM_CHUNK_BYTES = 64 * 1024;
+    /**
+     * Byte the writer locks exclusively for its whole mount. Locks are taken
+     * past any possible entry, so they don't lock data of the filesystem.
+     */
+    final static long WRITER_LOCK_POSITION = Long.MAX_VALUE - 1;
+    /**
+     * Byte read-only mounts lock shared for their whole mount
+     * and defragmentation locks exclusively while it runs.
+     */
+    final static long READERS_LOCK_POSITION = Long.MAX_VALUE - 2;
 
+    private final File file;
+    /**
+     * True if the filesystem is mounted by {@link #mountReadOnlyAsync(File, SimpleFilesystemOptions)}.
+     */
+    private final boolean readOnly;
+    /**
+     * True if read-only mounts in other processes may follow the files written by this handler.
+     */
+    private final boolean sharedReads;
+    /**
+     * Tail followed by a read-only mount or published by a writer with shared reads, null otherwise.
+     */
+    private final PublishedTail publishedTail;
     private final RandomAccessFile fs;
     private final FileChannel channel;
-    private final HashMap<String, Long> fileOffsetsCache;
+    private final FileOffsetIndex fileOffsetsCache;
+    private final Supplier<FileOffsetIndex> indexFactory;
+    private final BlobIndex blobs = new BlobIndex();
+    private final boolean deduplication;
+    private final OperationExecutor executor;
+    private final FilesystemSync sync;
+    private final FilesystemMetrics metrics;
+    /**
+     * Gauges registered in {@code metrics} on mount, unregistered on unmount.
+     */
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+    /**
+     * Total size of entries of files and indexed blobs, everything
+     * else before {@code committedTail} is dead space.
+     */
+    private final AtomicLong liveBytes = new AtomicLong();
+    /**
+     * Null if automatic defragmentation is not enabled in options.
+     */
+    private final CompactionScheduler compactionScheduler;
+    /**
+     * Bytes per second defragmentation copies, 0 if not limited.
+     */
+    private final long compactionRateLimit;
+    private final ReadWriteLock relocationLock = new ReentrantReadWriteLock();
+    /**
+     * Null if asynchronous I/O is not enabled in options.
+     */
+    private final AsynchronousFileIo asynchronousIo;
+    private final Object asynchronousReadsLock = new Object();
+    /**
+     * Number of asynchronous reads which are in progress. They hold no lock
+     * while their I/O is in flight, so the exclusive side of {@code relocationLock}
+     * is taken only when there are none. Guarded by {@code asynchronousReadsLock}.
+     */
+    private int asynchronousReads;
+    private final Object mappedViewsLock = new Object();
+    /**
+     * Number of {@link MappedView}s which are not closed yet. Guarded by {@code mappedViewsLock}.
+     */
+    private int openMappedViews;
+    /**
+     * True while a step of defragmentation moves data. Guarded by {@code mappedViewsLock}.
+     */
+    private boolean relocatingMappedData;
+    /**
+     * Null if memory-mapped reads are not enabled in options.
+     */
+    private final MappedRegions mappedRegions;
+    private final AtomicReference<CompletableFuture<Void>> runningDefrag = new AtomicReference<>();
+    /**
+     * Stops the running defragmentation between steps, null if it runs to the end.
+     */
+    private volatile BooleanSupplier defragYield;
+    /**
+     * Names of files which are being written, but not published yet.
+     */
+    private final Set<String> pendingFilenames = ConcurrentHashMap.newKeySet();
+    /**
+     * Writes in order of their offsets. Guarded by {@code publishLock}.
+     */
+    private final ArrayDeque<PendingWrite> pendingWrites = new ArrayDeque<>();
+    private final Object publishLock = new Object();
+    private final Object positionLock = new Object();
+    /**
+     * Deleted regions which writes may reuse. Null if reuse of free space
+     * is not enabled in options. Guarded by {@code this}.
+     */
+    private final FreeSpaceMap freeSpace;
+    /**
+     * False while defragmentation runs: it moves entries over free regions,
+     * so they are not reused and files are not modified in place. Guarded by {@code this}.
+     */
+    private boolean freeSpaceReusable = true;
+    /**
+     * Number of writes into free regions and modifications of files
+     * which are not finished yet. Guarded by {@code this}.
+     */
+    private int inPlaceWrites;
+    /**
+     * Files which are being appended to, patched or deleted. Guarded by {@code this}.
+     */
+    private final Set<String> modifiedFilenames = new HashSet<>();
+    /**
+     * Regions which streamed writes of unknown length fill, by their offsets.
+     * They are dead until the write ends, but defragmentation doesn't move
+     * anything over them. Guarded by {@code this}.
+     */
+    private final TreeMap<Long, Long> streamedRegions = new TreeMap<>();
+    /**
+     * Snapshots which are not closed yet. Guarded by {@code this}.
+     */
+    private final List<FilesystemSnapshot> snapshots = new ArrayList<>();
+    /**
+     * Snapshots whose index is being copied. Changed under {@code this}.
+     */
+    private final List<PendingSnapshot> pendingSnapshots = new CopyOnWriteArrayList<>();
+    /**
+     * True while a snapshot waits for modifications of files in progress,
+     * new ones wait until it's taken. Guarded by {@code this}.
+     */
+    private boolean snapshotting;
+    /**
+     * Number of appends and patches which are not finished yet. Guarded by {@code this}.
+     */
+    private int modifications;
+    /**
+     * End of the region reserved by writes. Guarded by {@code this}.
+     */
+    private long tail;
+    /**
+     * End of the last published write, everything before it is parseable.
+     */
+    private volatile long committedTail;
+    /**
+     * Offset up to which the checkpoint on disk describes the filesystem,
+     * or 0 if there is no valid checkpoint. Guarded by {@code this}.
+     */
+    private long checkpointedOffset;
 
     /**
      * Initializes a {@code SimpleFilesystemHandler}
      * with an already existing filesystem from a {@code file}.
-     * Scans the whole file, caches offsets into {@code fileOffsetsCache}.
+     * Loads the checkpoint of offsets if there is a valid one, then scans
+     * the rest of file, caches offsets into {@code fileOffsetsCache}.
+     *
+     * A read-only mount scans entries only up to the tail published by the writer.
      *
      * @param file A valid and existing file
+     * @param options Options of this handler
+     * @param executor Executor of operations of this handler
+     * @param readOnly True to mount the filesystem read-only
      * @throws IOException When {@code file} not found or other I/O error occurs
      */
-    private SimpleFilesystemHandler(File file) throws IOException {
-        this.fs = new RandomAccessFile(file, "rw");
+    private SimpleFilesystemHandler(File file, SimpleFilesystemOptions options, OperationExecutor executor,
+                                    boolean readOnly) throws IOException {
+        this.file = file;
+        this.executor = executor;
+        this.readOnly = readOnly;
+        this.sharedReads = options.isSharedReads() && !readOnly;
+        this.fs = new RandomAccessFile(file, readOnly ? "r" : "rw");
         this.channel = fs.getChannel();
-        this.channel.tryLock(); // TODO handle properly
+        PublishedTail followedTail = null;
+        try {
+            lockFilesystem();
+            if (readOnly) {
+                followedTail = PublishedTail.open(file);
+            }
+        } catch (Throwable e) {
+            fs.close();
+            throw e;
+        }
+        this.mappedRegions = options.isMemoryMappedReads() ? new MappedRegions(channel) : null;
+        this.asynchronousIo = options.isAsynchronousIo() ? new AsynchronousFileIo(this, file, readOnly) : null;
+        this.deduplication = options.isDeduplication();
+        this.freeSpace = options.isFreeSpaceReuse() && !readOnly ? new FreeSpaceMap() : null;
+        this.sync = new FilesystemSync(channel, options.getDurabilityMode(), options.getGroupCommitWindowNanos());
+        this.metrics = options.getMetrics();
+        this.compactionRateLimit = options.getCompactionRateLimit();
+        this.indexFactory = options.getIndexFactory();
 
         Long fsVersion = getVersion();
         if (!VERSION.equals(fsVersion)) {
             // TODO something for back compatibility, maybe a factory
         }
-        this.fileOffsetsCache = getFileOffsets();
-    }
-
-    private HashMap<String, Long> getFileOffsets() throws IOException {
-        HashMap<String, Long> fileOffsets = new HashMap<>();
-
-        ByteBuffer flagsBuffer = ByteBuffer.allocate(FLAGS_SIZE_BYTES);
-        ByteBuffer filenameSizeBuffer = ByteBuffer.allocate(FILE_NAME_SIZE_BYTES);
-        ByteBuffer fileSizeBuffer = ByteBuffer.allocate(FILE_SIZE_BYTES);
 
-        long nextFileOffset = VERSION_BYTES;
+        long end;
+        long limit = readOnly ? Math.min(followedTail.get(), channel.size()) : channel.size();
+        OffsetIndexCheckpoint checkpoint =
+                OffsetIndexCheckpoint.read(file, channel.size(), indexFactory);
+        if (checkpoint != null && checkpoint.coveredOffset <= limit) {
+            this.fileOffsetsCache = checkpoint.fileOffsets;
+            this.checkpointedOffset = checkpoint.coveredOffset;
+            liveBytes.set(checkpoint.liveBytes);
+            end = getFileOffsets(checkpoint.coveredOffset, limit, fileOffsetsCache);
+        } else {
+            this.fileOffsetsCache = indexFactory.get();
+            end = getFileOffsets(VERSION_BYTES, limit, fileOffsetsCache);
+        }
 
-        while (nextFileOffset < channel.size()) {
-            channel.position(nextFileOffset);
+        blobs.finishLoad();
+        liveBytes.addAndGet(blobs.getEntryBytes(getFilePropertiesSize(BLOB_NAME_BYTES)));
 
-            readAndFlip(flagsBuffer);
-            int flags = flagsBuffer.getInt();
+        if (!readOnly && end < channel.size()) {
+            // Writes which were in progress on crash
+            channel.truncate(end);
+        }
+        this.tail = end;
+        this.committedTail = end;
+        if (sharedReads) {
+            this.publishedTail = PublishedTail.create(file, end);
+        } else {
+            if (!readOnly) {
+                PublishedTail.delete(file);
+            }
+            this.publishedTail = followedTail;
+        }
 
-            readAndFlip(filenameSizeBuffer);
-            int filenameLen = filenameSizeBuffer.getInt();
+        this.compactionScheduler = options.isAutoCompaction() && !readOnly
+                ? new CompactionScheduler(this, options)
+                : null;
 
-            if (isFileDeleted(flags)) {
-                channel.position(channel.position() + filenameLen);
-                readAndFlip(fileSizeBuffer);
-                long fileSize = fileSizeBuffer.getLong();
-                nextFileOffset += getFilePropertiesSize(filenameLen) + fileSize;
-                flagsBuffer.clear();
-                filenameSizeBuffer.clear();
-                fileSizeBuffer.clear();
-                continue;
+        if (metrics.isEnabled()) {
+            gauges.put("filefs.files", fileOffsetsCache::size);
+            gauges.put("filefs.bytes", () -> committedTail);
+            gauges.put("filefs.free.bytes", this::getFreeBytes);
+            gauges.put("filefs.live.bytes", this::getLiveBytes);
+            gauges.put("filefs.dead.bytes", this::getDeadBytes);
+            if (compactionScheduler != null) {
+                compactionScheduler.registerGauges(gauges);
             }
+            gauges.forEach(metrics::registerGauge);
+        }
+
+        if (compactionScheduler != null) {
+            compactionScheduler.start();
+        }
+    }
 
-            ByteBuffer filenameBuffer = ByteBuffer.allocate(filenameLen);
-            readAndFlip(filenameBuffer);
-            String filename = StandardCharsets.UTF_8.decode(filenameBuffer).toString();
-            fileOffsets.put(filename, nextFileOffset);
+    /**
+     * Scans entries from {@code fromOffset} to {@code limit}
+     * and puts offsets of not deleted files into {@code fileOffsets},
+     * blobs and references to them into {@code blobs}
+     * and deleted entries into {@code freeSpace}. Sizes of entries
+     * of files are added to live bytes, blobs are counted after the scan.
+     * Scan stops on the first entry which is not complete.
+     *
+     * @return Offset of the end of the last complete entry
+     */
+    private long getFileOffsets(long fromOffset, long limit, FileOffsetIndex fileOffsets) throws IOException {
+        long nextFileOffset = fromOffset;
 
-            readAndFlip(fileSizeBuffer);
-            nextFileOffset += getFilePropertiesSize(filenameLen) + fileSizeBuffer.getLong();
+        while (nextFileOffset < limit) {
+            Entry entry = readEntry(nextFileOffset, limit);
+            if (entry == null) {
+                break;
+            }
 
-            flagsBuffer.clear();
-            filenameSizeBuffer.clear();
-            fileSizeBuffer.clear();
+            if (entry.isBlob()) {
+                blobs.load(entry.filename, nextFileOffset, entry.fileSize);
+            } else if (entry.deleted) {
+                if (freeSpace != null) {
+                    freeSpace.add(nextFileOffset, entry.size());
+                }
+            } else {
+                fileOffsets.put(entry.filename, nextFileOffset);
+                liveBytes.addAndGet(entry.size());
+                if ((entry.flags & REFERENCE_FLAG) != 0) {
+                    blobs.loadReference(readDigest(nextFileOffset + getFilePropertiesSize(entry.filenameLen)));
+                }
+            }
+            nextFileOffset += entry.size();
         }
 
-        return fileOffsets;
-    }
-
-    private void readAndFlip(ByteBuffer buffer) throws IOException {
-        channel.read(buffer);
-        buffer.flip();
+        return nextFileOffset;
     }
 
     private boolean isFileDeleted(int flags) {
-        return (flags >> 0 & 1) == 1;
+        return (flags & DELETED_FLAG) == DELETED_FLAG;
     }
 
     /**
@@ -143,22 +472,43 @@ public class SimpleFilesystemHandler implements FilesystemHandler {
      *         or with an Exception if I/O error occurred
      */
     public static CompletableFuture<SimpleFilesystemHandler> initThenMountFilesystemAsync(File file) {
-        return wrapInFuture((future) -> {
+        return initThenMountFilesystemAsync(file, SimpleFilesystemOptions.DEFAULT);
+    }
+
+    /**
+     * Same as {@link #initThenMountFilesystemAsync(File)},
+     * but mounts the filesystem with the specified {@code options}.
+     *
+     * @param file An existing file which will contain the filesystem
+     * @param options Options of the handler
+     * @return CompletableFuture with a handler for the {@code file}'s filesystem
+     *         or with an Exception if I/O error occurred
+     */
+    public static CompletableFuture<SimpleFilesystemHandler> initThenMountFilesystemAsync(
+            File file, SimpleFilesystemOptions options) {
+        OperationExecutor executor = options.newOperationExecutor();
+        OperationProbe probe = OperationProbe.start(options.getMetrics(), FilesystemOperation.MOUNT, file.getPath(), 0);
+        return measure(probe, wrapInFuture(executor, (future) -> {
             try {
-                future.complete(initFileSystem(file));
+                future.complete(initFileSystem(file, options, executor));
             } catch (Throwable e) {
+                executor.shutdown();
                 future.completeExceptionally(
                         new FileFsException("Exception occurred on FS init", e));
             }
-        });
+        }));
     }
 
     /**
      * @param file An existing file which will contain the filesystem
+     * @param options Options of the handler
+     * @param executor Executor of operations of the handler
      * @return Handler for the {@code file}'s filesystem
      * @throws IOException When {@code file} not found or other I/O error occurs
      */
-    private static SimpleFilesystemHandler initFileSystem(File file) throws IOException {
+    private static SimpleFilesystemHandler initFileSystem(
+            File file, SimpleFilesystemOptions options, OperationExecutor executor) throws IOException {
+        OffsetIndexCheckpoint.invalidate(file);
         try (RandomAccessFile filesystem = new RandomAccessFile(file, "rw")) {
             try (FileChannel channel = filesystem.getChannel()) {
                 channel.truncate(VERSION_BYTES);
@@ -171,7 +521,7 @@ public class SimpleFilesystemHandler implements FilesystemHandler {
             }
         }
 
-        return new SimpleFilesystemHandler(file);
+        return new SimpleFilesystemHandler(file, options, executor, false);
     }
 
     /**
@@ -183,24 +533,157 @@ public class SimpleFilesystemHandler implements FilesystemHandler {
      *         or with an Exception if I/O error occurred
      */
     public static CompletableFuture<SimpleFilesystemHandler> mountExistingFilesystemAsync(File file) {
-        return wrapInFuture((future) -> {
+        return mountExistingFilesystemAsync(file, SimpleFilesystemOptions.DEFAULT);
+    }
+
+    /**
+     * Same as {@link #mountExistingFilesystemAsync(File)},
+     * but mounts the filesystem with the specified {@code options}.
+     *
+     * @param file An existing file which already contains a filesystem
+     * @param options Options of the handler
+     * @return CompletableFuture with a handler for the {@code file}'s filesystem
+     *         or with an Exception if I/O error occurred
+     */
+    public static CompletableFuture<SimpleFilesystemHandler> mountExistingFilesystemAsync(
+            File file, SimpleFilesystemOptions options) {
+        OperationExecutor executor = options.newOperationExecutor();
+        OperationProbe probe = OperationProbe.start(options.getMetrics(), FilesystemOperation.MOUNT, file.getPath(), 0);
+        return measure(probe, wrapInFuture(executor, (future) -> {
             try {
-                future.complete(new SimpleFilesystemHandler(file));
+                future.complete(new SimpleFilesystemHandler(file, options, executor, false));
             } catch (Throwable e) {
+                executor.shutdown();
                 future.completeExceptionally(
                         new FileFsException("Exception occurred on FS mount", e));
             }
+        }));
+    }
+
+    /**
+     * Same as {@link #mountReadOnlyAsync(File, SimpleFilesystemOptions)} with default options.
+     */
+    public static CompletableFuture<SimpleFilesystemHandler> mountReadOnlyAsync(File file) {
+        return mountReadOnlyAsync(file, SimpleFilesystemOptions.DEFAULT);
+    }
+
+    /**
+     * Opens the filesystem for reads, e.g. in worker processes which read
+     * files written by a single writer process mounted with shared reads
+     * (see {@link SimpleFilesystemOptions.Builder#sharedReads()}).
+     * Any number of processes may mount the filesystem read-only,
+     * each of them takes a shared lock, so the writer doesn't defragment
+     * the filesystem while they are mounted. The mount waits
+     * for defragmentation which is running.
+     *
+     * The handler follows the tail published by the writer: reads and listings
+     * first scan only entries appended since the last of them (see {@link #refreshAsync()}).
+     * Reads of files deleted by the writer find no file, but such files
+     * are listed until the filesystem is mounted again. Files written
+     * from publishers are seen after the filesystem is mounted again.
+     * Writes, deletes and defragmentation fail with {@link UnsupportedOperationException}.
+     *
+     * Options which change writes, like durability or reuse of free space, are ignored.
+     * A filesystem can be mounted read-only once per JVM: handlers
+     * of one JVM should share the mount.
+     *
+     * @param file An existing file which already contains a filesystem
+     * @param options Options of the handler
+     * @return CompletableFuture with a read-only handler for the {@code file}'s filesystem
+     *         or with an Exception if I/O error occurred or the filesystem
+     *         was never written with shared reads
+     */
+    public static CompletableFuture<SimpleFilesystemHandler> mountReadOnlyAsync(
+            File file, SimpleFilesystemOptions options) {
+        OperationExecutor executor = options.newOperationExecutor();
+        OperationProbe probe = OperationProbe.start(options.getMetrics(), FilesystemOperation.MOUNT, file.getPath(), 0);
+        return measure(probe, wrapInFuture(executor, (future) -> {
+            try {
+                future.complete(new SimpleFilesystemHandler(file, options, executor, true));
+            } catch (Throwable e) {
+                executor.shutdown();
+                future.completeExceptionally(
+                        new FileFsException("Exception occurred on read-only FS mount", e));
+            }
+        }));
+    }
+
+    /**
+     * Takes the lock of the writer or, for a read-only mount, the shared lock
+     * of readers, waiting while the writer defragments the filesystem.
+     *
+     * @throws IOException If the filesystem is mounted by another writer
+     */
+    private void lockFilesystem() throws IOException {
+        if (readOnly) {
+            channel.lock(READERS_LOCK_POSITION, 1, true);
+        } else if (channel.tryLock(WRITER_LOCK_POSITION, 1, false) == null) {
+            throw new IOException("Filesystem " + file + " is mounted by another process");
+        }
+    }
+
+    /**
+     * Scans entries which the writer published after the last refresh
+     * into the index of a read-only mount. Reads and listings refresh
+     * the index themselves, so a refresh is needed only to pick up
+     * new files ahead of them.
+     *
+     * @return CompletableFuture which indicates the result of refresh
+     *         (contains an Exception if I/O error occurred)
+     * @throws IllegalStateException If the filesystem is not mounted read-only
+     */
+    public CompletableFuture<Void> refreshAsync() {
+        if (!readOnly) {
+            throw new IllegalStateException("Filesystem is not mounted read-only");
+        }
+        return wrapInFuture(executor, (future) -> {
+            try {
+                followTail();
+                future.complete(null);
+            } catch (Throwable e) {
+                future.completeExceptionally(
+                        new FileFsException("Exception occurred on FS refresh", e));
+            }
         });
     }
 
+    /**
+     * Indexes entries up to the tail published by the writer if it has moved.
+     * Does nothing if the filesystem is not mounted read-only.
+     */
+    void followTail() throws IOException {
+        if (!readOnly || publishedTail.get() <= committedTail) {
+            return;
+        }
+        synchronized (this) {
+            long limit = Math.min(publishedTail.get(), channel.size());
+            if (limit <= committedTail) {
+                return;
+            }
+            long end = getFileOffsets(committedTail, limit, fileOffsetsCache);
+            blobs.finishLoad();
+            tail = end;
+            committedTail = end;
+        }
+    }
+
+    /**
+     * @return Future failed because the filesystem is mounted read-only
+     */
+    private static <T> CompletableFuture<T> readOnlyFailure() {
+        CompletableFuture<T> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new UnsupportedOperationException("Filesystem is mounted read-only"));
+        return failed;
+    }
+
     /**
      * @return Version of this filesystem
      * @throws IOException If some I/O error occur
      */
     Long getVersion() throws IOException {
-        channel.position(0);
         ByteBuffer versionBuffer = ByteBuffer.allocate(VERSION_BYTES);
-        readAndFlip(versionBuffer);
+        channel.read(versionBuffer, 0);
+        versionBuffer.flip();
         return versionBuffer.getLong();
     }
 
@@ -213,7 +696,8 @@ public class SimpleFilesystemHandler implements FilesystemHandler {
      *         is not found in the cache
      */
     Long getFileOffset(String filename) {
-        return this.fileOffsetsCache.get(filename);
+        long fileOffset = this.fileOffsetsCache.get(filename);
+        return fileOffset == FileOffsetIndex.NOT_FOUND ? null : fileOffset;
     }
 
     /**
@@ -232,7 +716,8 @@ public class SimpleFilesystemHandler implements FilesystemHandler {
      *  - length of file's data (long, 8 bytes)
      *  - file's content (from {@code source})
      *
-     * Completes exceptionally if such {@code filename} already exists.
+     * Completes exceptionally if such {@code filename} already exists
+     * or is empty: fillers of dead space are entries with the empty name.
      * Use {@link #updateAsync(String, InputStream, long)} to override
      * existing files.
      *
@@ -240,14 +725,25 @@ public class SimpleFilesystemHandler implements FilesystemHandler {
      * @param source File data
      * @param sourceSize Length of file data in bytes
      * @return CompletableFuture which indicates the result of write
-     *         (contains an Exception if I/O error occurred or file already exists)
+     *         (contains an Exception if I/O error occurred, file already exists
+     *         or its name is empty)
      */
     @Override
     public CompletableFuture<Void> writeAsync(String filename, InputStream source, long sourceSize){
-        return wrapInFuture((future) -> {
+        return writeAsync(filename, source, sourceSize, 0);
+    }
+
+    /**
+     * Like {@link #writeAsync(String, InputStream, long)}, but sets {@code flags} of the entry.
+     */
+    CompletableFuture<Void> writeAsync(String filename, InputStream source, long sourceSize, int flags) {
+        if (readOnly) {
+            return readOnlyFailure();
+        }
+        return submit(probe(FilesystemOperation.WRITE, filename, sourceSize), (future) -> {
             try {
-                write(filename, source, sourceSize);
-                future.complete(null);
+                writeFile(filename, source, sourceSize, flags);
+                completeAfterSync(future, "Exception occurred on file \"" + filename + "\" write");
             } catch (Throwable e) {
                 future.completeExceptionally(
                         new FileFsException("Exception occurred on file \"" + filename + "\" write", e));
@@ -255,195 +751,2778 @@ public class SimpleFilesystemHandler implements FilesystemHandler {
         });
     }
 
-    private void write(String filename, InputStream source, long sourceSize) throws IOException {
-        int filenameLen = filename.getBytes(StandardCharsets.UTF_8).length;
-        int filePropertiesSize = getFilePropertiesSize(filenameLen);
-        long fsLen;
-        int flags = 0;
+    /**
+     * Writes the file like {@link #writeAsync(String, InputStream, long)} does,
+     * but from the remaining bytes of {@code source} with asynchronous I/O:
+     * the space is reserved on the calling thread, then the entry is written
+     * and published from completion handlers, so no thread waits for the I/O.
+     * With deduplication enabled, the file is hashed and written
+     * on the executor as usual.
+     *
+     * {@code source} must not be changed until the future completes.
+     *
+     * @param filename Name which will be assigned to file inside filesystem
+     * @param source File data
+     * @return CompletableFuture which indicates the result of write
+     *         (contains an Exception if I/O error occurred or file already exists)
+     * @throws IllegalStateException If asynchronous I/O is not enabled in options
+     */
+    public CompletableFuture<Void> writeAsync(String filename, ByteBuffer source) {
+        if (readOnly) {
+            return readOnlyFailure();
+        }
+        if (asynchronousIo == null) {
+            throw new IllegalStateException("Asynchronous I/O is not enabled for this filesystem");
+        }
+        if (deduplication) {
+            byte[] data = new byte[source.remaining()];
+            source.get(data);
+            return writeAsync(filename, new ByteArrayInputStream(data), data.length);
+        }
 
-        ByteBuffer filePropertiesBuffer =
-                ByteBuffer.allocate(filePropertiesSize)
-                        .put(ByteUtils.intToBytes(flags))
-                        .put(ByteUtils.intToBytes(filenameLen))
-                        .put(filename.getBytes(StandardCharsets.UTF_8))
-                        .put(ByteUtils.longToBytes(sourceSize));
-        filePropertiesBuffer.flip();
+        OperationProbe probe = probe(FilesystemOperation.WRITE, filename, source.remaining());
+        operationSubmitted();
+        return measure(probe, asynchronousIo.writeFile(filename, source));
+    }
+
+    /**
+     * Writes the file from chunks of {@code source}, whose total length
+     * is not known up front. A chunk is requested only after the previous one
+     * is written on the executor, so a slow publisher holds no thread.
+     *
+     * The file is written into a region reserved at the tail, which is dead space
+     * until the stream ends. When the region is full, the next one is reserved
+     * right after it if nothing was reserved after it meanwhile, otherwise
+     * the data is copied into a bigger region and the old one is freed.
+     * When the stream completes, the size is patched into the header of the entry
+     * and the file is published; if it fails, the regions stay dead space.
+     * Defragmentation doesn't move anything over the region while it's written.
+     *
+     * Completes exceptionally if such {@code filename} already exists.
+     *
+     * @param filename Name which will be assigned to file inside filesystem
+     * @param source Publisher of file data, buffers must not be changed after they are published
+     * @return CompletableFuture which indicates the result of write
+     *         (contains an Exception if I/O error occurred, the source failed
+     *         or file already exists)
+     */
+    public CompletableFuture<Void> writeAsync(String filename, Flow.Publisher<ByteBuffer> source) {
+        if (readOnly) {
+            return readOnlyFailure();
+        }
+        OperationProbe probe = probe(FilesystemOperation.WRITE, filename, 0);
+        operationSubmitted();
+        StreamedWrite streamedWrite = new StreamedWrite(this, filename, probe);
+        source.subscribe(streamedWrite);
+        return measure(probe, streamedWrite.result);
+    }
+
+    /**
+     * Claims the name of a new file for a write which doesn't reserve
+     * its entry at once, see {@link StreamedWrite}.
+     *
+     * @throws IllegalArgumentException If such file already exists or is being written
+     */
+    synchronized void claimNewFile(String filename) {
+        if (fileOffsetsCache.contains(filename) || !pendingFilenames.add(filename)) {
+            throw new IllegalArgumentException("File \"" + filename + "\" already exists");
+        }
+    }
+
+    synchronized void releaseNewFile(String filename) {
+        pendingFilenames.remove(filename);
+    }
 
+    /**
+     * Reserves a region of {@code length} bytes for a streamed write. The region
+     * is dead space described by a filler until the write is committed, and
+     * defragmentation doesn't move anything over it. The current region is extended
+     * if nothing was reserved after it, otherwise a new one is reserved at the tail:
+     * then the caller copies its data and releases the current region.
+     *
+     * @param regionOffset Offset of the current region of the write
+     * @param regionLength Length of the current region, 0 if there is none
+     * @return Offset of the region, {@code regionOffset} if the current one was extended
+     */
+    long reserveStreamedRegion(long regionOffset, long regionLength, long length) throws IOException {
+        PendingWrite[] pendingWrites;
+        boolean contiguous;
         synchronized (this) {
-            if (fileOffsetsCache.containsKey(filename)) {
-                throw new IllegalArgumentException("File \"" + filename + "\" already exists");
+            // Readers in other processes may have scanned up to the end of the region
+            contiguous = !sharedReads && regionLength > 0 && tail == regionOffset + regionLength;
+            pendingWrites = reserveLocked(new String[]{null},
+                    new long[]{contiguous ? length - regionLength : length});
+            if (contiguous) {
+                streamedRegions.put(regionOffset, length);
+            } else {
+                streamedRegions.put(pendingWrites[0].offset, length);
             }
+        }
+        // The new region is dead space until the write ends
+        try {
+            putFiller(pendingWrites[0].offset, pendingWrites[0].length);
+        } catch (Throwable e) {
+            publish(pendingWrites, true);
+            throw e;
+        }
+        // Waits for writes before the region, so no checkpoint ends inside it later
+        publish(pendingWrites, false);
 
-            fsLen = channel.size();
-            channel.position(fsLen);
-            channel.write(filePropertiesBuffer);
+        if (!contiguous) {
+            return pendingWrites[0].offset;
+        }
+        synchronized (this) {
+            // Data is written over the head of the new filler, the first one covers both
+            invalidateCheckpointBefore(regionOffset);
+            putFiller(regionOffset, length);
+        }
+        return regionOffset;
+    }
 
-            try (ReadableByteChannel sourceChannel = Channels.newChannel(source)) {
-                channel.transferFrom(sourceChannel, channel.size(), sourceSize);
-            }
+    /**
+     * Frees a region of a streamed write which was moved or failed.
+     */
+    synchronized void releaseStreamedRegion(long regionOffset, long regionLength) {
+        streamedRegions.remove(regionOffset);
+        freed(regionOffset, regionLength);
+    }
+
+    /**
+     * Writes the header of a streamed file after its data, its head last,
+     * so the region stays dead until the entry is complete, then publishes the file.
+     * The rest of the region after the entry is freed.
+     */
+    void commitStreamedWrite(String filename, byte[] filenameBytes, long regionOffset, long regionLength,
+                             long written) throws IOException {
+        long entryLength = getFilePropertiesSize(filenameBytes.length) + written;
+        long rest = regionLength - entryLength;
+        if (rest > 0) {
+            putFiller(regionOffset + entryLength, rest);
+        }
+        ByteBuffer filePropertiesBuffer = fileProperties(filenameBytes, written, 0);
+        ByteBuffer headBuffer = filePropertiesBuffer.duplicate();
+        headBuffer.limit(FILLER_ENTRY_BYTES);
+        filePropertiesBuffer.position(FILLER_ENTRY_BYTES);
+        writeFully(filePropertiesBuffer, regionOffset);
 
-            fileOffsetsCache.put(filename, fsLen);
+        synchronized (this) {
+            // The region may have been checkpointed as dead space
+            invalidateCheckpointBefore(regionOffset);
+            writeFully(headBuffer, regionOffset);
+            streamedRegions.remove(regionOffset);
+            if (rest > 0) {
+                freed(regionOffset + entryLength, rest);
+            }
+            synchronized (publishLock) {
+                journalIndexChange(filename, FileOffsetIndex.NOT_FOUND);
+                fileOffsetsCache.put(filename, regionOffset);
+                liveBytes.addAndGet(entryLength);
+                pendingFilenames.remove(filename);
+            }
         }
     }
 
     /**
-     * Method marks the file with {@code filename} as deleted
-     * and removes it from cache. Or does nothing if the file
-     * with such {@code filename} doesn't exist in cache.
-     * Eventually consistent.
+     * Writes all files from {@code sources} like
+     * {@link #writeAsync(String, InputStream, long)} does, but reserves
+     * space for them at once, writes small files with gathering writes
+     * and publishes them all at once.
      *
-     * @param filename File to delete
-     * @return CompletableFuture which indicates the result of delete
-     *         (contains an Exception if I/O error occurred)
+     * The batch is all or nothing: if any file already exists
+     * or any source fails, none of files is written.
+     * Sources' streams are closed after they are written.
+     *
+     * @param sources Names which will be assigned to files inside filesystem
+     *                mapped to the files' data
+     * @return CompletableFuture which indicates the result of write
+     *         (contains an Exception if I/O error occurred or any file already exists)
      */
     @Override
-    public CompletableFuture<Void> deleteAsync(String filename) {
-        return wrapInFuture((future) -> {
+    public CompletableFuture<Void> writeAllAsync(Map<String, FileSource> sources) {
+        if (readOnly) {
+            return readOnlyFailure();
+        }
+        if (sources.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        long sourcesSize = 0;
+        for (FileSource source : sources.values()) {
+            sourcesSize += source.getSize();
+        }
+        return submit(probe(FilesystemOperation.WRITE_ALL, null, sourcesSize), (future) -> {
             try {
-                delete(filename);
-                future.complete(null);
+                writeAll(sources);
+                completeAfterSync(future, "Exception occurred on write of " + sources.size() + " files");
             } catch (Throwable e) {
                 future.completeExceptionally(
-                        new FileFsException("Exception occurred on file \"" + filename + "\" deletion", e));
+                        new FileFsException("Exception occurred on write of " + sources.size() + " files", e));
             }
         });
     }
 
-    private void delete(String filename) throws IOException {
-        Long fileOffset = fileOffsetsCache.get(filename);
-
-        if (fileOffset == null) {
-            return;
+    private void writeFile(String filename, InputStream source, long sourceSize, int flags) throws IOException {
+        if (deduplication) {
+            writeDeduplicated(filename, source, sourceSize, flags);
+        } else {
+            write(filename, source, sourceSize, flags);
         }
+    }
 
-        ByteBuffer flagsBuffer = ByteUtils.intToBytes(1);
+    void write(String filename, InputStream source, long sourceSize, int flags) throws IOException {
+        byte[] filenameBytes = filenameBytes(filename);
+        ByteBuffer filePropertiesBuffer = fileProperties(filenameBytes, sourceSize, flags);
 
-        synchronized (this) {
-            channel.position(fileOffset);
-            channel.write(flagsBuffer);
+        PendingWrite[] pendingWrites = reserve(
+                new String[]{filename}, new long[]{filePropertiesBuffer.remaining() + sourceSize});
+        PendingWrite pendingWrite = pendingWrites[0];
+        if (pendingWrite.inPlace) {
+            writeInPlace(pendingWrite, filePropertiesBuffer, source, sourceSize);
+            return;
+        }
+        try {
+            // Header goes first: transferFrom doesn't write past the end of channel
+            long dataOffset = pendingWrite.offset + filePropertiesBuffer.remaining();
+            writeFully(filePropertiesBuffer, pendingWrite.offset);
+            transferFully(source, dataOffset, sourceSize);
+        } catch (Throwable e) {
+            // Reserved region stays in the filesystem as dead space
+            putFiller(pendingWrite.offset, pendingWrite.length);
+            publish(pendingWrites, true);
+            throw e;
+        }
+        publish(pendingWrites, false);
+    }
+
+    /**
+     * Writes an entry into a free region reserved by {@code pendingWrite}.
+     * The region is already a filler and the head of the entry
+     * is written last, so the region stays dead until the entry is complete.
+     */
+    void writeInPlace(PendingWrite pendingWrite, ByteBuffer filePropertiesBuffer,
+                      InputStream source, long sourceSize) throws IOException {
+        long offset = pendingWrite.offset;
+        try {
+            ByteBuffer headBuffer = filePropertiesBuffer.duplicate();
+            headBuffer.limit(FILLER_ENTRY_BYTES);
+            filePropertiesBuffer.position(FILLER_ENTRY_BYTES);
+            long dataOffset = offset + filePropertiesBuffer.limit();
+            // Positions of buffers are relative to the offset
+            writeFully(filePropertiesBuffer, offset);
+            transferFully(source, dataOffset, sourceSize);
+            writeFully(headBuffer, offset);
+        } catch (Throwable e) {
+            publishInPlace(pendingWrite, true);
+            throw e;
+        }
+        publishInPlace(pendingWrite, false);
+    }
+
+    /**
+     * If the checkpoint can't be invalidated, the file is not published
+     * and its region stays out of free space until the next mount.
+     */
+    void publishInPlace(PendingWrite pendingWrite, boolean failed) throws IOException {
+        synchronized (this) {
+            try {
+                if (failed) {
+                    freed(pendingWrite.offset, pendingWrite.length);
+                } else {
+                    // The region may have been checkpointed as dead space
+                    invalidateCheckpointBefore(pendingWrite.offset);
+                    synchronized (publishLock) {
+                        journalIndexChange(pendingWrite.filename, FileOffsetIndex.NOT_FOUND);
+                        fileOffsetsCache.put(pendingWrite.filename, pendingWrite.offset);
+                        liveBytes.addAndGet(pendingWrite.length);
+                    }
+                }
+            } finally {
+                synchronized (publishLock) {
+                    pendingFilenames.remove(pendingWrite.filename);
+                }
+                inPlaceWrites--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Marks the region of a deleted entry as free if reuse of free space is enabled.
+     * Entries referenced by snapshots are not tracked until the next mount.
+     * Must be called under {@code this} lock.
+     */
+    private void freed(long offset, long length) {
+        if (freeSpace != null && freeSpaceReusable && !isSnapshotted(offset)) {
+            freeSpace.add(offset, length);
+        }
+    }
+
+    /**
+     * Writes the file as a reference to a blob with its body.
+     * The blob is written only if there is no blob with the same digest yet.
+     */
+    private void writeDeduplicated(String filename, InputStream source, long sourceSize, int flags)
+            throws IOException {
+        if (sourceSize > DEDUP_BUFFER_BYTES) {
+            writeBlobAndReference(filename, source, sourceSize, flags);
+            return;
+        }
+
+        byte[] data = new byte[(int) sourceSize];
+        try (DataInputStream input = new DataInputStream(source)) {
+            input.readFully(data);
+        }
+        byte[] digest = newDigest().digest(data);
+        String blobName = toHex(digest);
+        if (!blobs.acquire(blobName)) {
+            writeBlobAndReference(filename, new ByteArrayInputStream(data), sourceSize, flags);
+            return;
+        }
+
+        try {
+            write(filename, new ByteArrayInputStream(digest), DIGEST_BYTES, flags | REFERENCE_FLAG);
+        } catch (Throwable e) {
+            synchronized (this) {
+                releaseBlob(blobName);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a blob from {@code source} and a reference to it with {@code filename}
+     * in one reserved region. The body is copied through the heap to be hashed.
+     * If a blob with the same digest already exists, the new blob is marked
+     * as deleted before it is published and the reference points to the existing one.
+     */
+    private void writeBlobAndReference(String filename, InputStream source, long sourceSize, int flags)
+            throws IOException {
+        byte[] filenameBytes = filenameBytes(filename);
+        long blobDataOffsetInEntry = getFilePropertiesSize(BLOB_NAME_BYTES);
+        ByteBuffer referenceBuffer = ByteBuffer.allocate(getFilePropertiesSize(filenameBytes.length) + DIGEST_BYTES);
+
+        PendingWrite[] pendingWrites = reserve(new String[]{null, filename},
+                new long[]{blobDataOffsetInEntry + sourceSize, referenceBuffer.capacity()});
+        PendingWrite blobWrite = pendingWrites[0];
+        PendingWrite referenceWrite = pendingWrites[1];
+        try {
+            MessageDigest messageDigest = newDigest();
+            byte[] chunk = new byte[(int) Math.min(DEFRAG_CHUNK_BYTES, Math.max(1, sourceSize))];
+            long copied = 0;
+            try (InputStream input = source) {
+                while (copied < sourceSize) {
+                    int read = input.read(chunk, 0, (int) Math.min(chunk.length, sourceSize - copied));
+                    if (read < 0) {
+                        throw new EOFException("Source ended after " + copied + " of " + sourceSize + " bytes");
+                    }
+                    messageDigest.update(chunk, 0, read);
+                    writeFully(ByteBuffer.wrap(chunk, 0, read), blobWrite.offset + blobDataOffsetInEntry + copied);
+                    copied += read;
+                }
+            }
+
+            byte[] digest = messageDigest.digest();
+            String blobName = toHex(digest);
+            boolean duplicate = blobs.acquire(blobName);
+            writeFully(fileProperties(blobName.getBytes(StandardCharsets.UTF_8), sourceSize,
+                    duplicate ? DELETED_FLAG : BLOB_FLAG), blobWrite.offset);
+            if (!duplicate) {
+                blobWrite.blobName = blobName;
+            }
+
+            referenceBuffer.put(fileProperties(filenameBytes, DIGEST_BYTES, flags | REFERENCE_FLAG)).put(digest);
+            referenceBuffer.flip();
+            try {
+                writeFully(referenceBuffer, referenceWrite.offset);
+            } catch (Throwable e) {
+                if (duplicate) {
+                    synchronized (this) {
+                        releaseBlob(blobName);
+                    }
+                }
+                throw e;
+            }
+        } catch (Throwable e) {
+            blobWrite.blobName = null;
+            putFiller(blobWrite.offset, blobWrite.length);
+            putFiller(referenceWrite.offset, referenceWrite.length);
+            publish(pendingWrites, true);
+            throw e;
+        }
+        publish(pendingWrites, false);
+    }
+
+    /**
+     * Must be called under {@code this} lock.
+     */
+    private void releaseBlob(String blobName) throws IOException {
+        BlobIndex.Blob released = blobs.release(blobName);
+        if (released != null) {
+            invalidateCheckpointBefore(released.offset);
+            channel.write(ByteUtils.intToBytes(DELETED_FLAG), released.offset);
+            long entrySize = getFilePropertiesSize(BLOB_NAME_BYTES) + released.size;
+            liveBytes.addAndGet(-entrySize);
+            freed(released.offset, entrySize);
+        }
+    }
+
+    private String readDigest(long offset) throws IOException {
+        ByteBuffer digestBuffer = ByteBuffer.allocate(DIGEST_BYTES);
+        readFully(digestBuffer, offset);
+        return toHex(digestBuffer.array());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[2 * i + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @return Filename encoded as it's stored in entries
+     * @throws IllegalArgumentException If the filename is empty: fillers have the empty name
+     */
+    static byte[] filenameBytes(String filename) {
+        byte[] filenameBytes = filename.getBytes(StandardCharsets.UTF_8);
+        if (filenameBytes.length == 0) {
+            throw new IllegalArgumentException("Filename must not be empty");
+        }
+        return filenameBytes;
+    }
+
+    static ByteBuffer fileProperties(byte[] filenameBytes, long fileSize, int flags) {
+        ByteBuffer filePropertiesBuffer =
+                ByteBuffer.allocate(getFilePropertiesSize(filenameBytes.length))
+                        .put(ByteUtils.intToBytes(flags))
+                        .put(ByteUtils.intToBytes(filenameBytes.length))
+                        .put(filenameBytes)
+                        .put(ByteUtils.longToBytes(fileSize));
+        filePropertiesBuffer.flip();
+        return filePropertiesBuffer;
+    }
+
+    /**
+     * Transfers exactly {@code size} bytes from {@code source}
+     * to the filesystem at {@code offset}, then closes {@code source}.
+     */
+    private void transferFully(InputStream source, long offset, long size) throws IOException {
+        try (ReadableByteChannel sourceChannel = Channels.newChannel(source)) {
+            transferFully(sourceChannel, offset, size);
+        }
+    }
+
+    private void transferFully(ReadableByteChannel source, long offset, long size) throws IOException {
+        long transferred = 0;
+        while (transferred < size) {
+            long count = channel.transferFrom(source, offset + transferred, size - transferred);
+            if (count <= 0) {
+                throw new EOFException("Source ended after " + transferred + " of " + size + " bytes");
+            }
+            transferred += count;
+        }
+    }
+
+    /**
+     * Writes files from {@code sources} into one region reserved at once.
+     * Headers and data of small files are collected into groups
+     * of up to {@link #BATCH_GATHER_BYTES} and written with one gathering
+     * write per group. Data of files bigger than {@link #BATCH_INLINE_BYTES}
+     * is transferred from its stream directly, like in a single write.
+     * All files are published at once.
+     *
+     * If any file fails, none of them is published.
+     */
+    private void writeAll(Map<String, FileSource> sources) throws IOException {
+        int count = sources.size();
+        String[] filenames = new String[count];
+        FileSource[] fileSources = new FileSource[count];
+        ByteBuffer[] fileProperties = new ByteBuffer[count];
+        long[] lengths = new long[count];
+
+        int index = 0;
+        for (Map.Entry<String, FileSource> source : sources.entrySet()) {
+            byte[] filenameBytes = filenameBytes(source.getKey());
+            filenames[index] = source.getKey();
+            fileSources[index] = source.getValue();
+            fileProperties[index] = fileProperties(filenameBytes, source.getValue().getSize(), 0);
+            lengths[index] = fileProperties[index].remaining() + source.getValue().getSize();
+            index++;
+        }
+
+        PendingWrite[] pendingWrites = reserve(filenames, lengths);
+        long batchOffset = pendingWrites[0].offset;
+        long batchLength = pendingWrites[count - 1].offset + pendingWrites[count - 1].length - batchOffset;
+        try {
+            int i = 0;
+            while (i < count) {
+                long groupOffset = pendingWrites[i].offset;
+                List<ByteBuffer> group = new ArrayList<>();
+                long groupBytes = 0;
+                int streamed = -1;
+
+                while (i < count && groupBytes < BATCH_GATHER_BYTES && group.size() + 2 <= BATCH_GATHER_BUFFERS) {
+                    group.add(fileProperties[i]);
+                    if (fileSources[i].getSize() > BATCH_INLINE_BYTES) {
+                        streamed = i++;
+                        break;
+                    }
+                    group.add(readFully(fileSources[i]));
+                    groupBytes += lengths[i];
+                    i++;
+                }
+
+                gatheringWrite(group.toArray(new ByteBuffer[0]), groupOffset);
+                if (streamed >= 0) {
+                    transferFully(fileSources[streamed].getStream(),
+                            pendingWrites[streamed].offset + fileProperties[streamed].capacity(),
+                            fileSources[streamed].getSize());
+                }
+            }
+        } catch (Throwable e) {
+            // The whole batch stays in the filesystem as dead space
+            putFiller(batchOffset, batchLength);
+            publish(pendingWrites, true);
+            throw e;
+        }
+        publish(pendingWrites, false);
+    }
+
+    /**
+     * Reads exactly {@code source.getSize()} bytes from {@code source},
+     * then closes it.
+     */
+    private static ByteBuffer readFully(FileSource source) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) source.getSize());
+        try (ReadableByteChannel sourceChannel = Channels.newChannel(source.getStream())) {
+            while (buffer.hasRemaining()) {
+                if (sourceChannel.read(buffer) < 0) {
+                    throw new EOFException("Source ended after " + buffer.position()
+                            + " of " + source.getSize() + " bytes");
+                }
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * FileChannel has no positional gathering write, so gathering
+     * writes are the only users of the channel position
+     * and are serialized on {@code positionLock}.
+     */
+    void gatheringWrite(ByteBuffer[] buffers, long offset) throws IOException {
+        synchronized (positionLock) {
+            long written = 0;
+            int first = 0;
+            while (first < buffers.length) {
+                channel.position(offset + written);
+                written += channel.write(buffers, first, buffers.length - first);
+                while (first < buffers.length && !buffers[first].hasRemaining()) {
+                    first++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reserves a region at the tail of filesystem
+     * for every file, one after another. A null filename
+     * reserves a region for a blob. A single file is put
+     * into the best fitting free region if there is one.
+     *
+     * @throws IllegalArgumentException If any of files already exists or is being written
+     */
+    PendingWrite[] reserve(String[] filenames, long[] lengths) throws IOException {
+        if (!metrics.isEnabled()) {
+            return reserveLocked(filenames, lengths);
+        }
+        long waitStart = System.nanoTime();
+        synchronized (this) {
+            metrics.lockWaited(System.nanoTime() - waitStart);
+            return reserveLocked(filenames, lengths);
+        }
+    }
+
+    private synchronized PendingWrite[] reserveLocked(String[] filenames, long[] lengths) throws IOException {
+        Set<String> reserved = new HashSet<>();
+        for (String filename : filenames) {
+            if (filename == null) {
+                // Region of a blob
+                continue;
+            }
+            if (fileOffsetsCache.contains(filename) || pendingFilenames.contains(filename)
+                    || !reserved.add(filename)) {
+                throw new IllegalArgumentException("File \"" + filename + "\" already exists");
+            }
+        }
+
+        if (filenames.length == 1 && filenames[0] != null && freeSpace != null && freeSpaceReusable) {
+            FreeSpaceMap.Region region = freeSpace.allocate(lengths[0], FILLER_ENTRY_BYTES);
+            if (region != null) {
+                splitFreeRegion(region, lengths[0]);
+                inPlaceWrites++;
+                pendingFilenames.addAll(reserved);
+                return new PendingWrite[]{new PendingWrite(filenames[0], region.offset, lengths[0], true)};
+            }
+        }
+
+        PendingWrite[] result = new PendingWrite[filenames.length];
+        for (int i = 0; i < filenames.length; i++) {
+            result[i] = new PendingWrite(filenames[i], tail, lengths[i], false);
+            tail += lengths[i];
+        }
+        pendingFilenames.addAll(reserved);
+        synchronized (publishLock) {
+            pendingWrites.addAll(Arrays.asList(result));
+        }
+        return result;
+    }
+
+    /**
+     * Covers the head of the free {@code region} with a filler of {@code length}
+     * and gives the rest back as a free region, so concurrent writes may use it
+     * right away: the rest must not be covered by a filler which starts before it.
+     * Must be called under {@code this} lock.
+     */
+    private void splitFreeRegion(FreeSpaceMap.Region region, long length) throws IOException {
+        try {
+            invalidateCheckpointBefore(region.offset);
+            if (region.length > length) {
+                putFiller(region.offset + length, region.length - length);
+            }
+            putFiller(region.offset, length);
+        } catch (Throwable e) {
+            freeSpace.add(region.offset, region.length);
+            throw e;
+        }
+        if (region.length > length) {
+            freeSpace.add(region.offset + length, region.length - length);
+        }
+    }
+
+    /**
+     * Marks {@code writes} as done, publishes all done writes
+     * which have no unfinished writes before them and waits
+     * until {@code writes} themselves are published.
+     */
+    void publish(PendingWrite[] writes, boolean failed) throws InterruptedIOException {
+        completePublished(markDone(writes, failed, null));
+        if (failed) {
+            return;
+        }
+
+        PendingWrite last = writes[writes.length - 1];
+        synchronized (publishLock) {
+            while (!last.published) {
+                try {
+                    publishLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for publish of previous writes");
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #publish(PendingWrite[], boolean)}, but doesn't wait:
+     * the future completes when {@code writes} are published,
+     * on the thread which publishes the last write before them.
+     */
+    CompletableFuture<Void> publishAsync(PendingWrite[] writes, boolean failed) {
+        CompletableFuture<Void> published = new CompletableFuture<>();
+        completePublished(markDone(writes, failed, failed ? null : published));
+        if (failed) {
+            published.complete(null);
+        }
+        return published;
+    }
+
+    /**
+     * @param onPublished Future to complete when the last of {@code writes} is published or null
+     * @return Futures of writes published by this call, they are completed
+     *         after {@code publishLock} is released
+     */
+    private List<CompletableFuture<Void>> markDone(PendingWrite[] writes, boolean failed,
+                                                   CompletableFuture<Void> onPublished) {
+        List<CompletableFuture<Void>> published = new ArrayList<>();
+        synchronized (publishLock) {
+            writes[writes.length - 1].onPublished = onPublished;
+            for (PendingWrite write : writes) {
+                write.done = true;
+                write.failed = failed;
+            }
+            while (!pendingWrites.isEmpty() && pendingWrites.peekFirst().done) {
+                PendingWrite first = pendingWrites.pollFirst();
+                if (first.filename != null) {
+                    if (!first.failed) {
+                        journalIndexChange(first.filename, FileOffsetIndex.NOT_FOUND);
+                        fileOffsetsCache.put(first.filename, first.offset);
+                        liveBytes.addAndGet(first.length);
+                    }
+                    pendingFilenames.remove(first.filename);
+                } else if (!first.failed && first.blobName != null
+                        && !blobs.add(first.blobName, first.offset, first.length - getFilePropertiesSize(BLOB_NAME_BYTES))) {
+                    // Same body was written concurrently: this blob is left unindexed
+                    // as dead space, defragmentation removes it
+                    first.blobName = null;
+                } else if (first.blobName != null) {
+                    liveBytes.addAndGet(first.length);
+                }
+                committedTail = first.offset + first.length;
+                if (sharedReads) {
+                    publishedTail.publish(committedTail);
+                }
+                first.published = true;
+                if (first.onPublished != null) {
+                    published.add(first.onPublished);
+                }
+            }
+            publishLock.notifyAll();
+        }
+        return published;
+    }
+
+    private static void completePublished(List<CompletableFuture<Void>> published) {
+        for (CompletableFuture<Void> future : published) {
+            future.complete(null);
+        }
+    }
+
+    /**
+     * Waits until a write ending after {@code offset} is published
+     * or there are no writes in progress.
+     */
+    private void awaitCommittedAfter(long offset) throws InterruptedIOException {
+        synchronized (publishLock) {
+            while (committedTail <= offset && !pendingWrites.isEmpty()) {
+                try {
+                    publishLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for writes in progress");
+                }
+            }
+        }
+    }
+
+    void writeFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    /**
+     * Method marks the file with {@code filename} as deleted
+     * and removes it from cache. Or does nothing if the file
+     * with such {@code filename} doesn't exist in cache.
+     * Eventually consistent.
+     *
+     * @param filename File to delete
+     * @return CompletableFuture which indicates the result of delete
+     *         (contains an Exception if I/O error occurred)
+     */
+    @Override
+    public CompletableFuture<Void> deleteAsync(String filename) {
+        if (readOnly) {
+            return readOnlyFailure();
+        }
+        return submit(probe(FilesystemOperation.DELETE, filename, 0), (future) -> {
+            try {
+                delete(filename);
+                completeAfterSync(future, "Exception occurred on file \"" + filename + "\" deletion");
+            } catch (Throwable e) {
+                future.completeExceptionally(
+                        new FileFsException("Exception occurred on file \"" + filename + "\" deletion", e));
+            }
+        });
+    }
+
+    private void delete(String filename) throws IOException {
+        claim(filename);
+        try {
+            if (freeSpace != null) {
+                // The region may be reused right after it's freed, so reads of the file must end first
+                lockRelocation();
+            }
+            try {
+                markDeleted(filename);
+            } finally {
+                if (freeSpace != null) {
+                    relocationLock.writeLock().unlock();
+                }
+            }
+        } finally {
+            release(filename);
+        }
+    }
+
+    private void markDeleted(String filename) throws IOException {
+        synchronized (this) {
+            // Offset is taken under the lock, because defrag may relocate the file
+            long fileOffset = fileOffsetsCache.get(filename);
+
+            if (fileOffset == FileOffsetIndex.NOT_FOUND) {
+                return;
+            }
+
+            String blobName = null;
+            if (deduplication) {
+                FileData data = locate(filename, fileOffset);
+                blobName = data == null ? null : data.blobName;
+            }
+            int filenameLen = filename.getBytes(StandardCharsets.UTF_8).length;
+            long entrySize = getFilePropertiesSize(filenameLen) + readFileSize(fileOffset, filenameLen);
+
+            invalidateCheckpointBefore(fileOffset);
+            writeDeletedFlag(fileOffset);
+            journalIndexChange(filename, fileOffset);
             fileOffsetsCache.remove(filename, fileOffset);
+            liveBytes.addAndGet(-entrySize);
+            freed(fileOffset, entrySize);
+            if (blobName != null) {
+                releaseBlob(blobName);
+            }
+        }
+    }
+
+    /**
+     * Marks the file entry at {@code offset} as deleted. An entry referenced
+     * by a snapshot keeps its other flags, so the snapshot still reads its data as is.
+     * Must be called under {@code this} lock.
+     */
+    private void writeDeletedFlag(long offset) throws IOException {
+        int flags = DELETED_FLAG;
+        if (isSnapshotted(offset)) {
+            ByteBuffer flagsBuffer = ByteBuffer.allocate(FLAGS_SIZE_BYTES);
+            readFully(flagsBuffer, offset);
+            flags |= flagsBuffer.getInt(0);
+        }
+        channel.write(ByteUtils.intToBytes(flags), offset);
+    }
+
+    /**
+     * Method finds file in cache by {@code filename}
+     * and writes it in {@code destination} stream.
+     * If file with this name doesn't exist in the filesystem
+     * just closes the stream.
+     *
+     * @param filename File to read from filesystem
+     * @param destination Stream where file data will be written
+     * @return CompletableFuture which indicates the result of read
+     *         (contains an Exception if I/O error occurred)
+     */
+    @Override
+    public CompletableFuture<Void> readAsync(String filename, OutputStream destination) {
+        return readAsync(filename, flags -> destination);
+    }
+
+    /**
+     * Like {@link #readAsync(String, OutputStream)}, but the destination
+     * is chosen by flags of the entry, so it may decode the data.
+     *
+     * @param destinationByFlags Returns the stream for data of an entry with given flags,
+     *                           called with 0 if there is no such file
+     */
+    CompletableFuture<Void> readAsync(String filename, IntFunction<OutputStream> destinationByFlags) {
+        return readAsync(filename, destinationByFlags, false);
+    }
+
+    /**
+     * Like {@link #readAsync(String, IntFunction)}, but completes exceptionally
+     * if there is no such file, like {@link #readRangeAsync}. Used to read ranges
+     * of files which are decoded on read, so they can't be transferred directly.
+     */
+    CompletableFuture<Void> readRangeAsync(String filename, IntFunction<OutputStream> destinationByFlags) {
+        return readAsync(filename, destinationByFlags, true);
+    }
+
+    private CompletableFuture<Void> readAsync(String filename, IntFunction<OutputStream> destinationByFlags,
+                                              boolean range) {
+        OperationProbe probe = probe(range ? FilesystemOperation.READ_RANGE : FilesystemOperation.READ, filename, 0);
+        return submit(probe, (future) -> {
+            try {
+                probe.setBytes(read(filename, destinationByFlags, range));
+                future.complete(null);
+            } catch (Throwable e) {
+                future.completeExceptionally(new FileFsException(
+                        "Exception occurred on file \"" + filename + (range ? "\" range read" : "\" read"), e));
+            }
+        });
+    }
+
+    /**
+     * @param required Whether a missing file is an error rather than an empty one
+     * @return Size of the file data or 0 if there is no such file
+     */
+    private long read(String filename, IntFunction<OutputStream> destinationByFlags, boolean required)
+            throws IOException {
+        OutputStream destination;
+        FileData data;
+        followTail();
+        relocationLock.readLock().lock();
+        try {
+            long fileOffset = fileOffsetsCache.get(filename);
+
+            data = fileOffset == FileOffsetIndex.NOT_FOUND ? null : locate(filename, fileOffset);
+            if (data == null) {
+                if (required) {
+                    throw new FileNotFoundException("No file \"" + filename + "\" in the filesystem");
+                }
+                destinationByFlags.apply(0).close();
+                return 0;
+            }
+
+            destination = destinationByFlags.apply(data.flags);
+            try (WritableByteChannel destinationChannel = Channels.newChannel(destination)) {
+                transferFully(data.offset, data.size, destinationChannel);
+            }
+        } finally {
+            relocationLock.readLock().unlock();
+        }
+        destination.close();
+        return data.size;
+    }
+
+    /**
+     * Returns a publisher of the file data in chunks of up to {@link #STREAM_CHUNK_BYTES},
+     * which are read on the executor only when the subscriber requests them,
+     * so a slow subscriber holds no thread and no data beyond its demand.
+     * Every subscriber reads the file from the start.
+     *
+     * No lock is held between chunks: the file is looked up for every chunk,
+     * so the subscriber gets an error if the file is deleted or its size
+     * changes while it's read. Patches which keep the size may be seen partially.
+     *
+     * @param filename File to read from filesystem
+     * @return Publisher of file data, which signals an error if I/O error occurred
+     *         or there is no file with such {@code filename}
+     */
+    public Flow.Publisher<ByteBuffer> readPublisher(String filename) {
+        return new ChunkPublisher(executor, () -> {
+            operationSubmitted();
+            return new FileChunks(this, filename, probe(FilesystemOperation.READ, filename, 0));
+        }, "Exception occurred on file \"" + filename + "\" read");
+    }
+
+    /**
+     * Locates the file and reads it with {@code read} under the shared side
+     * of {@code relocationLock}, so its data isn't moved meanwhile.
+     *
+     * @return Result of {@code read}
+     * @throws FileNotFoundException If there is no such file
+     */
+    <T> T readLocated(String filename, LocatedRead<T> read) throws IOException {
+        relocationLock.readLock().lock();
+        try {
+            long fileOffset = fileOffsetsCache.get(filename);
+            FileData data = fileOffset == FileOffsetIndex.NOT_FOUND ? null : locate(filename, fileOffset);
+            if (data == null) {
+                throw new FileNotFoundException("No file \"" + filename + "\" in the filesystem");
+            }
+            return read.read(data.offset, data.size);
+        } finally {
+            relocationLock.readLock().unlock();
+        }
+    }
+
+    interface LocatedRead<T> {
+        /**
+         * @param dataOffset Offset of the file data in the filesystem
+         * @param size Size of the file data
+         */
+        T read(long dataOffset, long size) throws IOException;
+    }
+
+    /**
+     * Method finds file in cache by {@code filename} and writes
+     * the range of its data in {@code destination} channel
+     * with {@link FileChannel#transferTo}, so a {@code FileChannel}
+     * or a {@code SocketChannel} destination gets data without
+     * copying it through the heap.
+     *
+     * @param filename File to read from filesystem
+     * @param offset Offset of the first byte to read in the file
+     * @param length Maximum number of bytes to read
+     * @param destination Blocking channel where file data will be written
+     * @return CompletableFuture with the number of bytes written
+     *         (contains an Exception if I/O error occurred
+     *         or there is no file with such {@code filename})
+     */
+    @Override
+    public CompletableFuture<Long> readRangeAsync(String filename, long offset, long length,
+                                               WritableByteChannel destination) {
+        if (offset < 0 || length < 0) {
+            CompletableFuture<Long> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalArgumentException("Offset and length must not be negative"));
+            return failed;
+        }
+
+        OperationProbe probe = probe(FilesystemOperation.READ_RANGE, filename, 0);
+        return submit(probe, (future) -> {
+            try {
+                long read = readRange(filename, offset, length, destination);
+                probe.setBytes(read);
+                future.complete(read);
+            } catch (Throwable e) {
+                future.completeExceptionally(
+                        new FileFsException("Exception occurred on file \"" + filename + "\" range read", e));
+            }
+        });
+    }
+
+    private long readRange(String filename, long offset, long length, WritableByteChannel destination)
+            throws IOException {
+        followTail();
+        relocationLock.readLock().lock();
+        try {
+            long fileOffset = fileOffsetsCache.get(filename);
+
+            FileData data = fileOffset == FileOffsetIndex.NOT_FOUND ? null : locate(filename, fileOffset);
+            if (data == null) {
+                throw new FileNotFoundException("No file \"" + filename + "\" in the filesystem");
+            }
+
+            if (offset >= data.size) {
+                return 0;
+            }
+
+            long rangeLength = Math.min(length, data.size - offset);
+            transferFully(data.offset + offset, rangeLength, destination);
+            return rangeLength;
+        } finally {
+            relocationLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Locates data of the file like {@link #locate(String, long)}, but from offsets
+     * of {@code snapshot}. Entries it references are neither moved nor overwritten
+     * while it's open, so no lock is needed. Flags of such entries
+     * are kept when they are deleted, so only the deleted flag is dropped.
+     *
+     * @return Location of file data or null if there was no such file
+     * @throws IOException If the snapshot is closed or I/O error occurred
+     */
+    FileData locateSnapshotted(FilesystemSnapshot snapshot, String filename) throws IOException {
+        if (snapshot.isClosed()) {
+            throw new IOException("Snapshot is closed");
+        }
+        long fileOffset = snapshot.fileOffsets.get(filename);
+        if (fileOffset == FileOffsetIndex.NOT_FOUND) {
+            return null;
+        }
+
+        int filenameLen = filename.getBytes(StandardCharsets.UTF_8).length;
+        ByteBuffer filePropertiesBuffer = ByteBuffer.allocate(getFilePropertiesSize(filenameLen));
+        readFully(filePropertiesBuffer, fileOffset);
+        filePropertiesBuffer.flip();
+        int flags = filePropertiesBuffer.getInt() & ~DELETED_FLAG;
+        long fileSize = filePropertiesBuffer.getLong(filePropertiesBuffer.limit() - FILE_SIZE_BYTES);
+        long fileDataOffset = fileOffset + filePropertiesBuffer.limit();
+
+        if ((flags & REFERENCE_FLAG) == 0) {
+            return new FileData(fileDataOffset, fileSize, flags, null);
+        }
+
+        String blobName = readDigest(fileDataOffset);
+        Long blobOffset = snapshot.blobOffsets.get(blobName);
+        if (blobOffset == null) {
+            throw new IOException("No blob " + blobName + " of file \"" + filename + "\" in the snapshot");
+        }
+        return new FileData(blobOffset + getFilePropertiesSize(BLOB_NAME_BYTES),
+                readFileSize(blobOffset, BLOB_NAME_BYTES), flags & ~REFERENCE_FLAG, blobName);
+    }
+
+    /**
+     * Method finds file in cache by {@code filename} and reads
+     * the range of its data into {@code destination} with asynchronous I/O:
+     * the file is located on the calling thread, then the future
+     * completes from the completion handler of the read, so no thread
+     * waits for the I/O. The position of {@code destination} is advanced
+     * by the number of bytes read when the future completes.
+     *
+     * @param filename File to read from filesystem
+     * @param offset Offset of the first byte to read in the file
+     * @param destination Buffer to read up to its remaining bytes into
+     * @return CompletableFuture with the number of bytes read
+     *         (contains an Exception if I/O error occurred
+     *         or there is no file with such {@code filename})
+     * @throws IllegalStateException If asynchronous I/O is not enabled in options
+     */
+    public CompletableFuture<Long> readRangeAsync(String filename, long offset, ByteBuffer destination) {
+        if (asynchronousIo == null) {
+            throw new IllegalStateException("Asynchronous I/O is not enabled for this filesystem");
+        }
+        if (offset < 0) {
+            CompletableFuture<Long> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalArgumentException("Offset must not be negative"));
+            return failed;
+        }
+
+        OperationProbe probe = probe(FilesystemOperation.READ_RANGE, filename, 0);
+        operationSubmitted();
+        return measure(probe, asynchronousIo.readRange(filename, offset, destination, probe));
+    }
+
+    /**
+     * Writes the file into {@code destination} as is, keeping its flags.
+     * A deduplicated file is written as a whole copy of its blob.
+     * Used by {@link SegmentedFilesystemHandler} to move live files out of a segment.
+     *
+     * @return False if there is no such file
+     */
+    boolean copyTo(String filename, SimpleFilesystemHandler destination) throws IOException {
+        relocationLock.readLock().lock();
+        try {
+            long fileOffset = fileOffsetsCache.get(filename);
+
+            FileData data = fileOffset == FileOffsetIndex.NOT_FOUND ? null : locate(filename, fileOffset);
+            if (data == null) {
+                return false;
+            }
+
+            destination.writeFile(filename, new RegionInputStream(data.offset, data.size), data.size, data.flags);
+            return true;
+        } finally {
+            relocationLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Total size of entries of files and blobs in the filesystem,
+     *         i.e. bytes which defragmentation would keep
+     */
+    public long getLiveBytes() {
+        return liveBytes.get();
+    }
+
+    /**
+     * @return Executor of operations of this handler, e.g. for work of proxies around it
+     */
+    Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return Metrics from options, where proxies around the handler register their gauges
+     */
+    FilesystemMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return End of published entries: the size of the filesystem file
+     *         without writes which are not finished yet
+     */
+    long getCommittedTail() {
+        return committedTail;
+    }
+
+    /**
+     * @return Bytes which defragmentation would remove: deleted entries,
+     *         regions of failed writes, blobs without references
+     *         and space left for appends which is not used yet
+     */
+    public long getDeadBytes() {
+        return Math.max(0, committedTail - VERSION_BYTES - liveBytes.get());
+    }
+
+    /**
+     * Forces published changes to the storage device regardless of the durability mode.
+     */
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Runs {@link #readMapped(String)} on the executor.
+     *
+     * @param filename File to read from filesystem
+     * @return CompletableFuture with the view of file data or null if there is no such file
+     *         (contains an Exception if I/O error occurred)
+     */
+    public CompletableFuture<MappedView> readMappedAsync(String filename) {
+        return wrapInFuture(executor, (future) -> {
+            try {
+                future.complete(readMapped(filename));
+            } catch (Throwable e) {
+                future.completeExceptionally(
+                        new FileFsException("Exception occurred on file \"" + filename + "\" mapped read", e));
+            }
+        });
+    }
+
+    /**
+     * Method finds file in cache by {@code filename} and returns
+     * a view of its data in the memory-mapped filesystem file.
+     * Data is not copied, so this is the fastest way to read small files.
+     * Runs on the calling thread. The view must be closed after use.
+     *
+     * @param filename File to read from filesystem
+     * @return View of file data or null if there is no such file
+     * @throws IOException If file data can't be mapped
+     * @throws IllegalStateException If memory-mapped reads are not enabled in options
+     */
+    public MappedView readMapped(String filename) throws IOException {
+        if (mappedRegions == null) {
+            throw new IllegalStateException("Memory-mapped reads are not enabled for this filesystem");
+        }
+
+        followTail();
+        openMappedView();
+        boolean viewOpened = false;
+        relocationLock.readLock().lock();
+        try {
+            long fileOffset = fileOffsetsCache.get(filename);
+
+            if (fileOffset == FileOffsetIndex.NOT_FOUND) {
+                return null;
+            }
+
+            long dataOffset;
+            long fileSize;
+            if (deduplication || readOnly) {
+                FileData located = locate(filename, fileOffset);
+                if (located == null) {
+                    return null;
+                }
+                dataOffset = located.offset;
+                fileSize = located.size;
+            } else {
+                int filenameLen = filename.getBytes(StandardCharsets.UTF_8).length;
+                dataOffset = fileOffset + getFilePropertiesSize(filenameLen);
+                fileSize = mappedRegions
+                        .slice(fileOffset + FLAGS_SIZE_BYTES + FILE_NAME_SIZE_BYTES + filenameLen, FILE_SIZE_BYTES)
+                        .getLong();
+            }
+            ByteBuffer data = mappedRegions.slice(dataOffset, fileSize);
+            MappedView view = new MappedView(data, this::closeMappedView);
+            viewOpened = true;
+            return view;
+        } finally {
+            relocationLock.readLock().unlock();
+            if (!viewOpened) {
+                closeMappedView();
+            }
+        }
+    }
+
+    /**
+     * Takes the exclusive side of {@code relocationLock}
+     * and waits until asynchronous reads in flight end.
+     * New ones can't start: they begin under the shared side.
+     */
+    private void lockRelocation() throws InterruptedIOException {
+        relocationLock.writeLock().lock();
+        if (asynchronousIo == null) {
+            return;
+        }
+
+        synchronized (asynchronousReadsLock) {
+            while (asynchronousReads > 0) {
+                try {
+                    asynchronousReadsLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    relocationLock.writeLock().unlock();
+                    throw new InterruptedIOException("Interrupted while waiting for asynchronous reads");
+                }
+            }
+        }
+    }
+
+    /**
+     * Must be called under the shared side of {@code relocationLock}.
+     */
+    void beginAsynchronousRead() {
+        synchronized (asynchronousReadsLock) {
+            asynchronousReads++;
+        }
+    }
+
+    void endAsynchronousRead() {
+        synchronized (asynchronousReadsLock) {
+            if (--asynchronousReads == 0) {
+                asynchronousReadsLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits only for a running step of defragmentation, not for one
+     * which waits for views: a thread may open views while holding others.
+     */
+    private void openMappedView() throws InterruptedIOException {
+        synchronized (mappedViewsLock) {
+            while (relocatingMappedData) {
+                try {
+                    mappedViewsLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for defragmentation step");
+                }
+            }
+            openMappedViews++;
+        }
+    }
+
+    private void closeMappedView() {
+        synchronized (mappedViewsLock) {
+            if (--openMappedViews == 0) {
+                mappedViewsLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until all mapped views are closed and holds off new ones
+     * until {@link #endMappedDataRelocation()}.
+     */
+    private void beginMappedDataRelocation() throws InterruptedIOException {
+        if (mappedRegions == null) {
+            return;
+        }
+
+        synchronized (mappedViewsLock) {
+            while (openMappedViews > 0) {
+                try {
+                    mappedViewsLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for mapped views to be closed");
+                }
+            }
+            relocatingMappedData = true;
+        }
+    }
+
+    private void endMappedDataRelocation() {
+        if (mappedRegions == null) {
+            return;
+        }
+
+        synchronized (mappedViewsLock) {
+            relocatingMappedData = false;
+            mappedViewsLock.notifyAll();
+        }
+    }
+
+    /**
+     * Reads properties of the file entry at {@code fileOffset}
+     * and resolves a reference to the blob with the file body.
+     * Must be called under the shared side of {@code relocationLock} or {@code this} lock.
+     *
+     * @return Location of file data or null if the file was deleted concurrently
+     *         or its blob is already released
+     */
+    private FileData locate(String filename, long fileOffset) throws IOException {
+        int filenameLen = filename.getBytes(StandardCharsets.UTF_8).length;
+        ByteBuffer filePropertiesBuffer = ByteBuffer.allocate(getFilePropertiesSize(filenameLen));
+        readFully(filePropertiesBuffer, fileOffset);
+        filePropertiesBuffer.flip();
+        int flags = filePropertiesBuffer.getInt();
+        if (isFileDeleted(flags)) {
+            // Deleted concurrently or, for a read-only mount, by the writer
+            return null;
+        }
+        long fileSize = filePropertiesBuffer.getLong(filePropertiesBuffer.limit() - FILE_SIZE_BYTES);
+        long fileDataOffset = fileOffset + filePropertiesBuffer.limit();
+
+        if ((flags & REFERENCE_FLAG) == 0) {
+            return new FileData(fileDataOffset, fileSize, flags, null);
+        }
+
+        String blobName = readDigest(fileDataOffset);
+        BlobIndex.Blob blob = blobs.get(blobName);
+        if (blob == null) {
+            return null;
+        }
+        return new FileData(blob.offset + getFilePropertiesSize(BLOB_NAME_BYTES), blob.size,
+                flags & ~REFERENCE_FLAG, blobName);
+    }
+
+    private long readFileSize(long fileOffset, int filenameLen) throws IOException {
+        ByteBuffer fileSizeBuffer = ByteBuffer.allocate(FILE_SIZE_BYTES);
+        readFully(fileSizeBuffer, fileOffset + FLAGS_SIZE_BYTES + FILE_NAME_SIZE_BYTES + filenameLen);
+        fileSizeBuffer.flip();
+        return fileSizeBuffer.getLong();
+    }
+
+    /**
+     * {@link FileChannel#transferTo} may transfer less than asked,
+     * e.g. sendfile moves at most ~2 GB per call on Linux.
+     */
+    void transferFully(long position, long count, WritableByteChannel destination) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long n = channel.transferTo(position + transferred, count - transferred, destination);
+            if (n <= 0 && position + transferred >= channel.size()) {
+                throw new EOFException("Filesystem ends before the end of file data");
+            }
+            transferred += n;
+        }
+    }
+
+    /**
+     * Appends data to the file in place if the region after its entry
+     * is free or the entry is the last one. Otherwise the file is relocated
+     * to the tail with free space reserved after it for next appends.
+     * If there is no such file, it is written like in {@link #writeAsync(String, InputStream, long)}.
+     *
+     * Data of a file deduplicated by the filesystem is copied into a new entry.
+     * Files compressed by {@link CompressingFilesystemProxy} can't be appended to.
+     *
+     * @param filename File to append to
+     * @param source Data to append
+     * @param sourceSize Length of data in bytes
+     * @return CompletableFuture which indicates the result of append
+     *         (contains an Exception if I/O error occurred)
+     */
+    @Override
+    public CompletableFuture<Void> appendAsync(String filename, InputStream source, long sourceSize) {
+        return modifyAsync(filename, APPEND, source, sourceSize, "append");
+    }
+
+    /**
+     * Overwrites data of the file in place. Data which goes past
+     * the end of the file extends it like {@link #appendAsync(String, InputStream, long)}.
+     * Concurrent reads and open {@link MappedView}s of the file
+     * may see the data partially overwritten.
+     *
+     * @param filename File to write to
+     * @param offset Offset in the file where data will be written,
+     *               must not be greater than the size of the file
+     * @param source Data to write
+     * @param sourceSize Length of data in bytes
+     * @return CompletableFuture which indicates the result of write
+     *         (contains an Exception if I/O error occurred
+     *         or there is no file with such {@code filename})
+     */
+    @Override
+    public CompletableFuture<Void> writeAtAsync(String filename, long offset, InputStream source, long sourceSize) {
+        if (offset < 0) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalArgumentException("Offset must not be negative"));
+            return failed;
+        }
+        return modifyAsync(filename, offset, source, sourceSize, "write at offset " + offset);
+    }
+
+    private CompletableFuture<Void> modifyAsync(String filename, long offset, InputStream source, long sourceSize,
+                                                String operation) {
+        if (readOnly) {
+            return readOnlyFailure();
+        }
+        OperationProbe probe = probe(offset == APPEND ? FilesystemOperation.APPEND : FilesystemOperation.WRITE_AT,
+                filename, sourceSize);
+        return submit(probe, (future) -> {
+            try {
+                modify(filename, offset, source, sourceSize);
+                completeAfterSync(future, "Exception occurred on file \"" + filename + "\" " + operation);
+            } catch (Throwable e) {
+                future.completeExceptionally(
+                        new FileFsException("Exception occurred on file \"" + filename + "\" " + operation, e));
+            }
+        });
+    }
+
+    /**
+     * @param offset Offset in the file or {@link #APPEND}
+     */
+    private void modify(String filename, long offset, InputStream source, long sourceSize) throws IOException {
+        beginModification(filename);
+        try (InputStream input = source) {
+            long fileOffset = fileOffsetsCache.get(filename);
+            if (fileOffset == FileOffsetIndex.NOT_FOUND) {
+                if (offset != APPEND) {
+                    throw new FileNotFoundException("No file \"" + filename + "\" in the filesystem");
+                }
+                writeFile(filename, input, sourceSize, 0);
+                return;
+            }
+
+            // The file is neither deleted nor relocated while it's modified, so its blob is not released
+            FileData data = locate(filename, fileOffset);
+            if ((data.flags & COMPRESSED_FLAG) != 0) {
+                throw new UnsupportedOperationException("File \"" + filename + "\" is compressed");
+            }
+            long position = offset == APPEND ? data.size : offset;
+            if (position > data.size) {
+                throw new IllegalArgumentException("Offset " + offset + " is past the end of file \""
+                        + filename + "\" of " + data.size + " bytes");
+            }
+            long newSize = Math.max(data.size, position + sourceSize);
+            boolean snapshotted;
+            synchronized (this) {
+                // Snapshots are not taken while the file is modified
+                snapshotted = isSnapshotted(fileOffset);
+            }
+
+            try (ReadableByteChannel sourceChannel = Channels.newChannel(input)) {
+                if (data.blobName == null && !snapshotted) {
+                    if (newSize == data.size) {
+                        transferFully(sourceChannel, data.offset + position, sourceSize);
+                        return;
+                    }
+                    if (extendInPlace(filename, fileOffset, data, position, newSize, sourceChannel)) {
+                        return;
+                    }
+                }
+                relocateModified(filename, fileOffset, data, position, newSize, sourceChannel, sourceSize);
+            }
+        } finally {
+            endModification(filename);
+        }
+    }
+
+    /**
+     * Writes data which goes past the end of the file into the free region
+     * after its entry or, if the entry is the last one, into a region reserved at the tail.
+     * The head of the free region is written after the size of the file is changed,
+     * so the region stays parseable until then. An extension shorter than
+     * the head of a region would overwrite it before that, so it's done only at the tail.
+     *
+     * @return False if there is no space after the entry
+     */
+    private boolean extendInPlace(String filename, long fileOffset, FileData data, long position, long newSize,
+                                  ReadableByteChannel source) throws IOException {
+        long entryEnd = data.offset + data.size;
+        long extension = newSize - data.size;
+        FreeSpaceMap.Region region = null;
+        PendingWrite[] tailWrites = null;
+        synchronized (this) {
+            // Readers in other processes may have scanned up to the end of the entry
+            if (entryEnd == tail && !sharedReads) {
+                // A short extension is followed by a filler, so a failed one is dead space
+                tailWrites = reserve(new String[]{null},
+                        new long[]{extension < FILLER_ENTRY_BYTES ? extension + FILLER_ENTRY_BYTES : extension});
+            } else if (extension >= FILLER_ENTRY_BYTES) {
+                region = takeFreeRegionAt(entryEnd, extension);
+            }
+        }
+        if (tailWrites == null && region == null) {
+            return false;
+        }
+        if (region != null && freeSpace == null) {
+            // Delete doesn't wait for reads of the file without reuse of free space,
+            // so reads of the deleted neighbour must end before its region is overwritten.
+            // New ones can't find it: it's already removed from the index
+            lockRelocation();
+            relocationLock.writeLock().unlock();
+        }
+
+        long newEnd = entryEnd + extension;
+        ByteBuffer regionHead = ByteBuffer.allocate(region == null ? 0 : FILLER_ENTRY_BYTES);
+        try {
+            if (region != null && region.length > extension) {
+                putFiller(newEnd, region.length - extension);
+            }
+            if (tailWrites != null && tailWrites[0].length > extension) {
+                putFiller(newEnd, FILLER_ENTRY_BYTES);
+            }
+
+            transferFully(source, data.offset + position, entryEnd - data.offset - position);
+            while (regionHead.hasRemaining()) {
+                if (source.read(regionHead) < 0) {
+                    throw new EOFException("Source ended before the end of data");
+                }
+            }
+            regionHead.flip();
+            long written = regionHead.remaining();
+            transferFully(source, entryEnd + written, extension - written);
+        } catch (Throwable e) {
+            if (tailWrites != null) {
+                putFiller(tailWrites[0].offset, tailWrites[0].length);
+                publish(tailWrites, true);
+            } else {
+                synchronized (this) {
+                    freed(region.offset, region.length);
+                }
+            }
+            throw e;
+        }
+
+        int filenameLen = filename.getBytes(StandardCharsets.UTF_8).length;
+        ByteBuffer fileSizeBuffer = ByteBuffer.allocate(FILE_SIZE_BYTES).putLong(newSize);
+        fileSizeBuffer.flip();
+        lockRelocation();
+        try {
+            synchronized (this) {
+                invalidateCheckpointBefore(fileOffset);
+                writeFully(fileSizeBuffer, fileOffset + FLAGS_SIZE_BYTES + FILE_NAME_SIZE_BYTES + filenameLen);
+                writeFully(regionHead, entryEnd);
+                liveBytes.addAndGet(extension);
+                if (region != null && region.length > extension) {
+                    freed(newEnd, region.length - extension);
+                }
+            }
+        } finally {
+            relocationLock.writeLock().unlock();
+        }
+        if (tailWrites != null) {
+            publish(tailWrites, false);
+        }
+        return true;
+    }
+
+    /**
+     * Must be called under {@code this} lock.
+     *
+     * @return The free region which starts at {@code offset} and fits {@code length} bytes
+     *         exactly or with a filler after them or null if there is no such region
+     */
+    private FreeSpaceMap.Region takeFreeRegionAt(long offset, long length) throws IOException {
+        if (freeSpace != null) {
+            return freeSpace.takeAt(offset, length, FILLER_ENTRY_BYTES);
+        }
+
+        // Without reuse of free space only the file before a deleted entry may take it
+        if (streamedRegions.containsKey(offset) || isSnapshotted(offset)) {
+            return null;
+        }
+        Entry entry = readEntry(offset, committedTail);
+        if (entry == null || !entry.deleted
+                || (entry.size() != length && entry.size() < length + FILLER_ENTRY_BYTES)) {
+            return null;
+        }
+        if (sharedReads && entry.filenameLen > 0) {
+            // Readers in other processes may still read the deleted file, only fillers are reused
+            return null;
+        }
+        return new FreeSpaceMap.Region(offset, entry.size());
+    }
+
+    /**
+     * Writes the modified file into a new entry at the tail followed by free space
+     * for next appends and marks the old entry as deleted.
+     */
+    private void relocateModified(String filename, long fileOffset, FileData data, long position, long newSize,
+                                  ReadableByteChannel source, long sourceSize) throws IOException {
+        byte[] filenameBytes = filename.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer filePropertiesBuffer = fileProperties(filenameBytes, newSize, data.flags);
+        long entryLength = filePropertiesBuffer.remaining() + newSize;
+        long slack = newSize == data.size ? 0
+                : Math.min(Math.max(newSize / 2, MIN_APPEND_SLACK_BYTES), MAX_APPEND_SLACK_BYTES);
+
+        PendingWrite[] pendingWrites = reserve(new String[]{null}, new long[]{entryLength + slack});
+        long newOffset = pendingWrites[0].offset;
+        long newDataOffset = newOffset + filePropertiesBuffer.remaining();
+        try {
+            // Header goes first: transferFrom doesn't write past the end of channel
+            writeFully(filePropertiesBuffer, newOffset);
+            copy(data.offset, newDataOffset, position);
+            transferFully(source, newDataOffset + position, sourceSize);
+            long rest = data.size - position - sourceSize;
+            if (rest > 0) {
+                copy(data.offset + position + sourceSize, newDataOffset + position + sourceSize, rest);
+            }
+            if (slack > 0) {
+                putFiller(newOffset + entryLength, slack);
+            }
+        } catch (Throwable e) {
+            putFiller(newOffset, pendingWrites[0].length);
+            publish(pendingWrites, true);
+            throw e;
+        }
+        publish(pendingWrites, false);
+
+        // Reads of the old entry must end before its region may be reused
+        lockRelocation();
+        try {
+            synchronized (this) {
+                invalidateCheckpointBefore(fileOffset);
+                writeDeletedFlag(fileOffset);
+                journalIndexChange(filename, fileOffset);
+                fileOffsetsCache.replace(filename, fileOffset, newOffset);
+                long oldEntrySize = getFilePropertiesSize(filenameBytes.length)
+                        + (data.blobName == null ? data.size : DIGEST_BYTES);
+                liveBytes.addAndGet(entryLength - oldEntrySize);
+                freed(fileOffset, oldEntrySize);
+                if (data.blobName != null) {
+                    releaseBlob(data.blobName);
+                }
+                if (slack > 0) {
+                    freed(newOffset + entryLength, slack);
+                }
+            }
+        } finally {
+            relocationLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Waits until the file is not modified by other threads, defragmentation
+     * doesn't run and no snapshot is being taken, then marks the file as modified.
+     */
+    private synchronized void beginModification(String filename) throws InterruptedIOException {
+        while (!freeSpaceReusable || snapshotting || modifiedFilenames.contains(filename)) {
+            awaitNotification("modification of file \"" + filename + "\"");
+        }
+        modifiedFilenames.add(filename);
+        inPlaceWrites++;
+        modifications++;
+    }
+
+    private synchronized void endModification(String filename) {
+        modifiedFilenames.remove(filename);
+        inPlaceWrites--;
+        modifications--;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the file is not modified by other threads, then marks it as modified.
+     */
+    private synchronized void claim(String filename) throws InterruptedIOException {
+        while (!modifiedFilenames.add(filename)) {
+            awaitNotification("modification of file \"" + filename + "\"");
+        }
+    }
+
+    private synchronized void release(String filename) {
+        modifiedFilenames.remove(filename);
+        notifyAll();
+    }
+
+    /**
+     * Must be called under {@code this} lock.
+     */
+    private void awaitNotification(String awaited) throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + awaited);
+        }
+    }
+
+    /**
+     * Marks existing file with {@code filename} as deleted
+     * and writes new one from {@code source}.
+     *
+     * @param filename Name which will be assigned to file inside filesystem
+     * @param source File data
+     * @param sourceSize Length of file data in bytes
+     * @return CompletableFuture which indicates the result of update
+     *         (contains an Exception if I/O error occurred)
+     */
+    @Override
+    public CompletableFuture<Void> updateAsync(String filename, InputStream source, long sourceSize) {
+        return updateAsync(filename, source, sourceSize, 0);
+    }
+
+    /**
+     * Like {@link #updateAsync(String, InputStream, long)}, but sets {@code flags} of the new entry.
+     */
+    CompletableFuture<Void> updateAsync(String filename, InputStream source, long sourceSize, int flags) {
+        if (readOnly) {
+            return readOnlyFailure();
+        }
+        return submit(probe(FilesystemOperation.UPDATE, filename, sourceSize), (future) -> {
+            try {
+                delete(filename);
+                writeFile(filename, source, sourceSize, flags);
+                completeAfterSync(future, "Exception occurred on file \"" + filename + "\" update");
+            } catch (Throwable e) {
+                future.completeExceptionally(
+                        new FileFsException("Exception occurred on file \"" + filename + "\" update", e));
+            }
+        });
+    }
+
+    /**
+     * Search for filenames with {@code path} prefix
+     * in the cache. If {@code path} is null or empty
+     * returns all filenames.
+     *
+     * Returned set is a snapshot sorted by filenames.
+     * Use {@link #listPageAsync(String, String, int)}
+     * to list large paths in chunks.
+     *
+     * @param path The path of files to list
+     * @return CompletableFuture with the set of filenames
+     *         with {@code path} prefix
+     */
+    @Override
+    public CompletableFuture<Set<String>> listAsync(String path) {
+        CompletableFuture<Set<String>> failed = followTailBeforeList();
+        if (failed != null) {
+            return failed;
+        }
+        List<String> filenames = fileOffsetsCache.list(path == null ? "" : path, null, Integer.MAX_VALUE);
+        return CompletableFuture.completedFuture(Collections.unmodifiableSet(new LinkedHashSet<>(filenames)));
+    }
+
+    /**
+     * Lists filenames with {@code path} prefix in ascending order
+     * in pages of up to {@code limit} filenames. The next page starts
+     * after the last filename of the previous one, so files written
+     * or deleted between pages don't shift pages.
+     *
+     * @param path The path of files to list, null or empty to list all files
+     * @param startAfter The last filename of the previous page, null for the first page
+     * @param limit Maximum number of filenames in the page
+     * @return CompletableFuture with the page of filenames, empty when there are no more files
+     */
+    @Override
+    public CompletableFuture<List<String>> listPageAsync(String path, String startAfter, int limit) {
+        if (limit <= 0) {
+            CompletableFuture<List<String>> result = new CompletableFuture<>();
+            result.completeExceptionally(new IllegalArgumentException("Limit must be positive"));
+            return result;
+        }
+        CompletableFuture<List<String>> failed = followTailBeforeList();
+        if (failed != null) {
+            return failed;
+        }
+        return CompletableFuture.completedFuture(
+                fileOffsetsCache.list(path == null ? "" : path, startAfter, limit));
+    }
+
+    /**
+     * Listings of a read-only mount follow the tail in the calling thread.
+     *
+     * @return Failed future if the tail can't be followed, otherwise null
+     */
+    private <T> CompletableFuture<T> followTailBeforeList() {
+        try {
+            followTail();
+            return null;
+        } catch (Throwable e) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new FileFsException("Exception occurred on FS list", e));
+            return failed;
+        }
+    }
+
+    /**
+     * Performs defragmentation by shifting not deleted files up
+     * over previous files marked as deleted, then truncates the filesystem.
+     *
+     * Defragmentation is online and incremental: every step relocates
+     * at most one file and locks are released between steps, so reads
+     * and writes keep running. Files written during defragmentation
+     * are compacted too, since the pass goes on until it reaches the
+     * current end of filesystem.
+     *
+     * Dead space between compacted and not yet visited files is always
+     * described by a filler entry (marked as deleted), so the filesystem
+     * stays mountable after every step.
+     *
+     * Only one defragmentation runs at a time: if it is already running,
+     * the future of the running one is returned.
+     *
+     * @return CompletableFuture which indicates the result of defragmentation
+     *         (contains an Exception if I/O error occurred)
+     */
+    @Override
+    public CompletableFuture<Void> defrag() {
+        return defrag(null);
+    }
+
+    /**
+     * Like {@link #defrag()}, but the pass stops between steps once {@code yield}
+     * returns true and leaves the rest to the next pass. A full defragmentation
+     * requested while it runs clears {@code yield}, so the pass goes on to the end.
+     *
+     * @param yield Checked before every step, null for a full pass
+     */
+    CompletableFuture<Void> defrag(BooleanSupplier yield) {
+        if (readOnly) {
+            return readOnlyFailure();
+        }
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        synchronized (runningDefrag) {
+            CompletableFuture<Void> running = runningDefrag.get();
+            if (running != null) {
+                if (yield == null) {
+                    defragYield = null;
+                }
+                return running;
+            }
+            runningDefrag.set(result);
+            defragYield = yield;
+        }
+
+        CompletableFuture<Void> measured = measure(probe(FilesystemOperation.DEFRAG, null, 0), result);
+        wrapInFuture(executor, (future) -> {
+            try {
+                doDefrag();
+                runningDefrag.set(null);
+                result.complete(null);
+            } catch (Throwable e) {
+                runningDefrag.set(null);
+                result.completeExceptionally(
+                        new FileFsException("Exception occurred on FS defragmentation", e));
+            }
+        }).exceptionally(e -> {
+            // Defragmentation couldn't be submitted
+            runningDefrag.set(null);
+            result.completeExceptionally(e);
+            return null;
+        });
+        return measured;
+    }
+
+    /**
+     * Free regions are not reused and files are not modified in place
+     * while defragmentation runs, it compacts them away. Regions
+     * of files deleted meanwhile are not tracked until the next mount.
+     * Read-only mounts in other processes are locked out while it runs.
+     */
+    private void doDefrag() throws IOException {
+        FileLock lock = lockOutReaders();
+        try {
+            defragLocked();
+        } finally {
+            lock.release();
+        }
+    }
+
+    private void defragLocked() throws IOException {
+        synchronized (this) {
+            freeSpaceReusable = false;
+            if (freeSpace != null) {
+                freeSpace.clear();
+            }
+            while (inPlaceWrites > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    freeSpaceReusable = true;
+                    notifyAll();
+                    throw new InterruptedIOException("Interrupted while waiting for writes into free space");
+                }
+            }
+        }
+        try {
+            compact();
+        } finally {
+            synchronized (this) {
+                freeSpaceReusable = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return Exclusive lock of readers, so no read-only mount sees entries moved
+     * @throws IOException If the filesystem is mounted read-only
+     */
+    private FileLock lockOutReaders() throws IOException {
+        FileLock lock = tryLockOutReaders();
+        if (lock == null) {
+            throw new IOException("Filesystem " + file + " is mounted read-only by other handlers");
         }
+        return lock;
     }
 
     /**
-     * Method finds file in cache by {@code filename}
-     * and writes it in {@code destination} stream.
-     * If file with this name doesn't exist in the filesystem
-     * just closes the stream.
+     * @return Exclusive lock of readers or null if the filesystem is mounted read-only
+     */
+    private FileLock tryLockOutReaders() throws IOException {
+        try {
+            return channel.tryLock(READERS_LOCK_POSITION, 1, false);
+        } catch (OverlappingFileLockException e) {
+            // Mounted read-only in this JVM
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether the filesystem is mounted read-only by other handlers,
+     *         so defragmentation would fail
+     */
+    boolean isMountedByReaders() throws IOException {
+        FileLock lock = tryLockOutReaders();
+        if (lock == null) {
+            return true;
+        }
+        lock.release();
+        return false;
+    }
+
+    /**
+     * Moves entries of files over dead space towards the start of the filesystem.
+     * With a rate limit in options, copying waits outside of locks
+     * until the bytes it moved so far fit the limit.
      *
-     * @param filename File to read from filesystem
-     * @param destination Stream where file data will be written
-     * @return CompletableFuture which indicates the result of read
-     *         (contains an Exception if I/O error occurred)
+     * An entry which overlaps the space before it is moved under locks
+     * only if it fits a chunk, a bigger one is first copied to the tail
+     * without locks like other entries. It's moved down from there
+     * when compaction reaches it, the space it left makes the room.
      */
-    @Override
-    public CompletableFuture<Void> readAsync(String filename, OutputStream destination) {
-        return wrapInFuture((future) -> {
+    private void compact() throws IOException {
+        long readOffset = VERSION_BYTES;
+        long writeOffset = VERSION_BYTES;
+        long compactionEnd;
+        synchronized (this) {
+            // Entries after it were written meanwhile or moved to the tail by this compaction
+            compactionEnd = tail;
+        }
+        RateLimiter rateLimiter = compactionRateLimit > 0 ? new RateLimiter(compactionRateLimit) : null;
+        // Bytes copied under locks, they are waited for before the locks are taken again
+        long copiedUnderLock = 0;
+
+        while (true) {
+            BooleanSupplier yield = defragYield;
+            if (yield != null && yield.getAsBoolean()) {
+                // Every step leaves the filesystem consistent, the next pass starts over
+                return;
+            }
+            if (rateLimiter != null) {
+                rateLimiter.acquire(copiedUnderLock);
+            }
+            copiedUnderLock = 0;
+
+            Entry entry;
+            boolean overlapping = false;
+            // Before relocationLock: a thread with an open view may still need it to read
+            beginMappedDataRelocation();
             try {
-                read(filename, destination);
-                future.complete(null);
+                lockRelocation();
+                try {
+                    synchronized (this) {
+                        if (readOffset >= committedTail) {
+                            if (tail == committedTail) {
+                                // No writes in progress and no new ones while the lock is held
+                                if (writeOffset < readOffset) {
+                                    invalidateCheckpointBefore(writeOffset);
+                                    channel.truncate(writeOffset);
+                                    if (mappedRegions != null) {
+                                        mappedRegions.truncated(writeOffset);
+                                    }
+                                    tail = writeOffset;
+                                    committedTail = writeOffset;
+                                    if (sharedReads) {
+                                        // No readers are mounted while defragmentation runs
+                                        publishedTail.publish(writeOffset);
+                                    }
+                                }
+                                return;
+                            }
+                            entry = null;
+                        } else {
+                            Map.Entry<Long, Long> streamed = streamedRegions.floorEntry(readOffset);
+                            if (streamed != null && readOffset < streamed.getKey() + streamed.getValue()) {
+                                // A streamed write fills the region: it stays in place
+                                // and entries after it are moved up to its end
+                                writeFiller(writeOffset, readOffset - writeOffset);
+                                readOffset = streamed.getKey() + streamed.getValue();
+                                writeOffset = readOffset;
+                                continue;
+                            }
+
+                            entry = readEntry(readOffset, committedTail);
+                            if (entry == null) {
+                                throw new IOException("Corrupted entry at offset " + readOffset);
+                            }
+
+                            if (isSnapshotted(readOffset)) {
+                                // A snapshot reads the entry: it stays in place, even if it's deleted
+                                writeFiller(writeOffset, readOffset - writeOffset);
+                                readOffset += entry.size();
+                                writeOffset = readOffset;
+                                continue;
+                            }
+
+                            boolean dead = entry.deleted || !isIndexed(entry, readOffset);
+                            if (dead || writeOffset == readOffset) {
+                                readOffset += entry.size();
+                                if (!dead) {
+                                    writeOffset = readOffset;
+                                } else {
+                                    writeFiller(writeOffset, readOffset - writeOffset);
+                                }
+                                continue;
+                            }
+
+                            if (readOffset - writeOffset < entry.size()) {
+                                if (entry.size() <= DEFRAG_CHUNK_BYTES) {
+                                    // Regions overlap: a small file is moved in one step
+                                    invalidateCheckpointBefore(writeOffset);
+                                    copy(readOffset, writeOffset, entry.size());
+                                    copiedUnderLock = entry.size();
+                                    relocate(entry, readOffset, writeOffset);
+                                    readOffset += entry.size();
+                                    writeOffset += entry.size();
+                                    writeFiller(writeOffset, readOffset - writeOffset);
+                                    continue;
+                                }
+                                if (readOffset >= compactionEnd) {
+                                    // It may have been moved to the tail already: it stays in place
+                                    writeFiller(writeOffset, readOffset - writeOffset);
+                                    readOffset += entry.size();
+                                    writeOffset = readOffset;
+                                    continue;
+                                }
+                                overlapping = true;
+                            }
+                        }
+                    }
+                } finally {
+                    relocationLock.writeLock().unlock();
+                }
+
+                if (entry != null && overlapping) {
+                    long tailOffset = copyToTail(entry, readOffset, rateLimiter);
+                    lockRelocation();
+                    try {
+                        synchronized (this) {
+                            long sourceOffset = readOffset;
+                            readOffset += entry.size();
+                            if (isSnapshotted(sourceOffset)) {
+                                // A snapshot was taken while the file was being copied,
+                                // the copy stays dead space
+                                writeFiller(writeOffset, sourceOffset - writeOffset);
+                                writeOffset = readOffset;
+                                continue;
+                            }
+                            // The copy stays dead space if the file was deleted or updated meanwhile
+                            invalidateCheckpointBefore(writeOffset);
+                            if (isIndexed(entry, sourceOffset)) {
+                                copy(sourceOffset, tailOffset, FILLER_ENTRY_BYTES);
+                                relocate(entry, sourceOffset, tailOffset);
+                            }
+                            writeFiller(writeOffset, readOffset - writeOffset);
+                        }
+                    } finally {
+                        relocationLock.writeLock().unlock();
+                    }
+                    continue;
+                }
+
+                if (entry != null) {
+                    // Regions don't overlap: everything except the head of the file is copied
+                    // chunk by chunk without locks, the filler in the head keeps the space dead
+                    long copied = FILLER_ENTRY_BYTES;
+                    while (copied < entry.size()) {
+                        long chunk = Math.min(DEFRAG_CHUNK_BYTES, entry.size() - copied);
+                        copy(readOffset + copied, writeOffset + copied, chunk);
+                        copied += chunk;
+                        if (rateLimiter != null) {
+                            rateLimiter.acquire(chunk);
+                        }
+                    }
+
+                    lockRelocation();
+                    try {
+                        synchronized (this) {
+                            long sourceOffset = readOffset;
+                            readOffset += entry.size();
+                            if (isSnapshotted(sourceOffset)) {
+                                // A snapshot was taken while the file was being copied
+                                writeFiller(writeOffset, sourceOffset - writeOffset);
+                                writeOffset = readOffset;
+                                continue;
+                            }
+                            if (!isIndexed(entry, sourceOffset)) {
+                                // File was deleted or updated while it was being copied
+                                writeFiller(writeOffset, readOffset - writeOffset);
+                                continue;
+                            }
+                            invalidateCheckpointBefore(writeOffset);
+                            copy(sourceOffset, writeOffset, FILLER_ENTRY_BYTES);
+                            relocate(entry, sourceOffset, writeOffset);
+                            writeOffset += entry.size();
+                            writeFiller(writeOffset, readOffset - writeOffset);
+                        }
+                    } finally {
+                        relocationLock.writeLock().unlock();
+                    }
+                    continue;
+                }
+            } finally {
+                endMappedDataRelocation();
+            }
+
+            // Reached writes which are still in progress
+            awaitCommittedAfter(readOffset);
+        }
+    }
+
+    /**
+     * Copies the entry at {@code offset} into a region reserved at the tail without locks.
+     * The head of the copy is a filler, so the region is published as dead space.
+     *
+     * @return Offset of the copy
+     */
+    private long copyToTail(Entry entry, long offset, RateLimiter rateLimiter) throws IOException {
+        PendingWrite[] pendingWrites = reserve(new String[]{null}, new long[]{entry.size()});
+        long tailOffset = pendingWrites[0].offset;
+        try {
+            putFiller(tailOffset, entry.size());
+            long copied = FILLER_ENTRY_BYTES;
+            while (copied < entry.size()) {
+                long chunk = Math.min(DEFRAG_CHUNK_BYTES, entry.size() - copied);
+                copy(offset + copied, tailOffset + copied, chunk);
+                copied += chunk;
+                if (rateLimiter != null) {
+                    rateLimiter.acquire(chunk);
+                }
+            }
+        } catch (Throwable e) {
+            putFiller(tailOffset, entry.size());
+            publish(pendingWrites, true);
+            throw e;
+        }
+        publish(pendingWrites, false);
+        return tailOffset;
+    }
+
+    /**
+     * Reads header of the entry at {@code offset}.
+     *
+     * @param offset Offset of the entry
+     * @param limit Offset which the entry must not cross
+     * @return Header of the entry or null if the entry is not complete
+     *         or not valid (like a region of interrupted write)
+     */
+    private Entry readEntry(long offset, long limit) throws IOException {
+        if (offset + FILLER_ENTRY_BYTES > limit) {
+            return null;
+        }
+
+        ByteBuffer headBuffer = ByteBuffer.allocate(FLAGS_SIZE_BYTES + FILE_NAME_SIZE_BYTES);
+        readFully(headBuffer, offset);
+        headBuffer.flip();
+        int flags = headBuffer.getInt();
+        int filenameLen = headBuffer.getInt();
+        boolean deleted = isFileDeleted(flags);
+
+        if (filenameLen < 0 || (filenameLen == 0 && !deleted)
+                || offset + getFilePropertiesSize(filenameLen) > limit) {
+            return null;
+        }
+
+        ByteBuffer tailBuffer = ByteBuffer.allocate(filenameLen + FILE_SIZE_BYTES);
+        readFully(tailBuffer, offset + headBuffer.capacity());
+        tailBuffer.flip();
+        byte[] filenameBytes = new byte[filenameLen];
+        tailBuffer.get(filenameBytes);
+        long fileSize = tailBuffer.getLong();
+
+        Entry entry = new Entry(flags, deleted, new String(filenameBytes, StandardCharsets.UTF_8), filenameLen, fileSize);
+        if (fileSize < 0 || offset + entry.size() > limit) {
+            return null;
+        }
+        return entry;
+    }
+
+    void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private void relocate(Entry entry, long from, long to) {
+        if (entry.isBlob()) {
+            blobs.replace(entry.filename, from, to);
+        } else {
+            journalIndexChange(entry.filename, from);
+            fileOffsetsCache.replace(entry.filename, from, to);
+        }
+    }
+
+    /**
+     * @return True if the not deleted entry at {@code offset} is indexed:
+     *         unindexed entries are duplicate or unreferenced blobs
+     */
+    private boolean isIndexed(Entry entry, long offset) {
+        return entry.isBlob()
+                ? blobs.offset(entry.filename) == offset
+                : fileOffsetsCache.get(entry.filename) == offset;
+    }
+
+    /**
+     * Writes a deleted entry with an empty name which covers
+     * {@code length} bytes from {@code offset}.
+     */
+    private void writeFiller(long offset, long length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+
+        invalidateCheckpointBefore(offset);
+        putFiller(offset, length);
+    }
+
+    void putFiller(long offset, long length) throws IOException {
+        ByteBuffer fillerBuffer = ByteBuffer.allocate(FILLER_ENTRY_BYTES)
+                .putInt(DELETED_FLAG)
+                .putInt(0)
+                .putLong(length - FILLER_ENTRY_BYTES);
+        fillerBuffer.flip();
+        writeFully(fillerBuffer, offset);
+    }
+
+    /**
+     * Copies {@code length} bytes inside the channel. Copying goes forward,
+     * so it is safe for overlapping regions only when {@code to < from}.
+     */
+    void copy(long from, long to, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(DEFRAG_CHUNK_BYTES, length));
+        long copied = 0;
+        while (copied < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - copied));
+            while (buffer.hasRemaining()) {
+                channel.read(buffer, from + copied + buffer.position());
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, to + copied + buffer.position());
+            }
+            copied += buffer.limit();
+        }
+    }
+
+    /**
+     * Location of file data found by {@link #locate(String, long)}.
+     */
+    static class FileData {
+        final long offset;
+        final long size;
+        final int flags;
+        /**
+         * Digest of the blob with the data or null if data is in the file entry.
+         */
+        final String blobName;
+
+        FileData(long offset, long size, int flags, String blobName) {
+            this.offset = offset;
+            this.size = size;
+            this.flags = flags;
+            this.blobName = blobName;
+        }
+    }
+
+    /**
+     * Reads {@code length} bytes of the filesystem from {@code offset}
+     * with positional reads. Must be read under the shared side of {@code relocationLock}.
+     */
+    private class RegionInputStream extends InputStream {
+        private final long end;
+        private long position;
+
+        RegionInputStream(long offset, long length) {
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Filesystem ends before the end of file data");
+            }
+            position += read;
+            return read;
+        }
+    }
+
+    /**
+     * Snapshot whose index is being copied, see {@link #takeSnapshot()}.
+     */
+    private static class PendingSnapshot {
+        final long tail;
+        /**
+         * Offsets of files changed since the snapshot was taken, before their first change.
+         */
+        final Map<String, Long> previousOffsets = new ConcurrentHashMap<>();
+        /**
+         * Set under {@code this} and {@code publishLock}, read under any of them.
+         */
+        boolean journaling = true;
+
+        PendingSnapshot(long tail) {
+            this.tail = tail;
+        }
+    }
+
+    /**
+     * Region reserved by a write which is not published yet.
+     * Fields except final ones are guarded by {@code publishLock}.
+     */
+    static class PendingWrite {
+        /**
+         * Null for a blob.
+         */
+        final String filename;
+        final long offset;
+        final long length;
+        /**
+         * True if the write goes into a free region instead of the tail.
+         */
+        final boolean inPlace;
+        /**
+         * Digest of a blob to add to the index on publish, set by the writer.
+         */
+        String blobName;
+        boolean done;
+        boolean failed;
+        boolean published;
+        /**
+         * Completed on publish, set by writers which don't wait for it.
+         */
+        CompletableFuture<Void> onPublished;
+
+        PendingWrite(String filename, long offset, long length, boolean inPlace) {
+            this.filename = filename;
+            this.offset = offset;
+            this.length = length;
+            this.inPlace = inPlace;
+        }
+    }
+
+    /**
+     * Header of a file entry.
+     */
+    private static class Entry {
+        final int flags;
+        final boolean deleted;
+        final String filename;
+        final int filenameLen;
+        final long fileSize;
+
+        Entry(int flags, boolean deleted, String filename, int filenameLen, long fileSize) {
+            this.flags = flags;
+            this.deleted = deleted;
+            this.filename = filename;
+            this.filenameLen = filenameLen;
+            this.fileSize = fileSize;
+        }
+
+        long size() {
+            return getFilePropertiesSize(filenameLen) + fileSize;
+        }
+
+        boolean isBlob() {
+            return !deleted && (flags & BLOB_FLAG) != 0;
+        }
+    }
+
+    /**
+     * Takes a point-in-time snapshot of files without blocking writes:
+     * the index is copied, and entries it references are kept in place
+     * until the snapshot is closed, e.g. to back the files up while
+     * they are changed. The snapshot waits only for appends and patches
+     * in progress, so it never sees a file changed partially.
+     *
+     * @return CompletableFuture with a read-only handler over the snapshot
+     *         (contains an Exception if the handler is unmounted)
+     */
+    public CompletableFuture<FilesystemSnapshot> snapshot() {
+        return wrapInFuture(executor, (future) -> {
+            try {
+                future.complete(takeSnapshot());
             } catch (Throwable e) {
                 future.completeExceptionally(
-                        new FileFsException("Exception occurred on file \"" + filename + "\" read", e));
+                        new FileFsException("Exception occurred on FS snapshot", e));
             }
         });
     }
 
-    private void read(String filename, OutputStream destination) throws IOException {
-        Long fileOffset = fileOffsetsCache.get(filename);
+    /**
+     * Only the point of the snapshot is taken under locks. The index is copied
+     * after that, while the snapshot is pending: it references every entry
+     * before its tail, and files changed meanwhile get their previous offsets
+     * back in the copy. Regions freed while it's pending are not tracked until the next mount.
+     */
+    FilesystemSnapshot takeSnapshot() throws IOException {
+        PendingSnapshot pending;
+        Map<String, Long> blobOffsets;
+        synchronized (this) {
+            if (!channel.isOpen()) {
+                throw new ClosedChannelException();
+            }
+            snapshotting = true;
+            try {
+                while (modifications > 0) {
+                    awaitNotification("modifications of files");
+                }
+                synchronized (publishLock) {
+                    pending = new PendingSnapshot(committedTail);
+                    pendingSnapshots.add(pending);
+                }
+                blobOffsets = blobs.offsets();
+            } finally {
+                snapshotting = false;
+                notifyAll();
+            }
+        }
 
-        if (fileOffset == null) {
-            destination.close();
-            return;
+        try {
+            FileOffsetIndex fileOffsets = indexFactory.get();
+            fileOffsetsCache.forEach(fileOffsets::put);
+            synchronized (this) {
+                synchronized (publishLock) {
+                    pending.journaling = false;
+                }
+            }
+            for (Map.Entry<String, Long> change : pending.previousOffsets.entrySet()) {
+                if (change.getValue() == FileOffsetIndex.NOT_FOUND) {
+                    fileOffsets.remove(change.getKey(), fileOffsets.get(change.getKey()));
+                } else {
+                    fileOffsets.put(change.getKey(), change.getValue());
+                }
+            }
+            FilesystemSnapshot snapshot = new FilesystemSnapshot(this, fileOffsets, blobOffsets, pending.tail);
+            synchronized (this) {
+                snapshots.add(snapshot);
+            }
+            return snapshot;
+        } finally {
+            synchronized (this) {
+                pendingSnapshots.remove(pending);
+            }
         }
+    }
 
-        int filenameLen = filename.getBytes(StandardCharsets.UTF_8).length;
-        ByteBuffer fileSizeBuffer = ByteBuffer.allocate(FILE_SIZE_BYTES);
+    /**
+     * Must be called under {@code this} or {@code publishLock} before a change
+     * of the file in the index.
+     *
+     * @param previousOffset Offset of the file before the change or {@link FileOffsetIndex#NOT_FOUND}
+     */
+    private void journalIndexChange(String filename, long previousOffset) {
+        for (PendingSnapshot pending : pendingSnapshots) {
+            if (pending.journaling) {
+                pending.previousOffsets.putIfAbsent(filename, previousOffset);
+            }
+        }
+    }
 
-        synchronized (this) {
-            channel.position(fileOffset + FILE_NAME_SIZE_BYTES + filenameLen);
-            channel.read(fileSizeBuffer);
+    synchronized void releaseSnapshot(FilesystemSnapshot snapshot) {
+        snapshots.remove(snapshot);
+    }
+
+    /**
+     * Must be called under {@code this} lock.
+     *
+     * @return True if an open snapshot references the entry at {@code offset}
+     */
+    private boolean isSnapshotted(long offset) {
+        for (PendingSnapshot pending : pendingSnapshots) {
+            if (offset < pending.tail) {
+                return true;
+            }
         }
-        fileSizeBuffer.flip();
-        long fileSize = fileSizeBuffer.getLong();
-        long fileDataOffset = fileOffset + getFilePropertiesSize(filenameLen);
-        try (WritableByteChannel destinationChannel = Channels.newChannel(destination)) {
-            channel.transferTo(fileDataOffset, fileSize, destinationChannel);
+        for (FilesystemSnapshot snapshot : snapshots) {
+            if (snapshot.references(offset)) {
+                return true;
+            }
         }
-        destination.close();
+        return false;
     }
 
     /**
-     * Marks existing file with {@code filename} as deleted
-     * and writes new one from {@code source}.
+     * Writes files with names starting with {@code prefix} into {@code destination}
+     * as an archive (see {@link FilesystemArchive}), e.g. to move them
+     * to another filesystem with {@link #importAsync(ReadableByteChannel)}.
+     * Files are exported from a snapshot, so writes are not blocked
+     * and the archive holds the files as they were when the export started.
      *
-     * @param filename Name which will be assigned to file inside filesystem
-     * @param source File data
-     * @param sourceSize Length of file data in bytes
-     * @return CompletableFuture which indicates the result of update
+     * Files are visited in the order of their data in the filesystem file
+     * and transferred with {@link FileChannel#transferTo}, adjacent entries
+     * with one transfer. Data is exported as it is stored, e.g. files compressed
+     * by {@link CompressingFilesystemProxy} stay compressed, files deduplicated
+     * by the filesystem are exported with the data of their blobs.
+     *
+     * @param prefix Prefix of filenames to export, empty string exports all files
+     * @param destination Channel to write the archive to, it's not closed
+     * @return CompletableFuture with the number of exported files
      *         (contains an Exception if I/O error occurred)
      */
-    @Override
-    public CompletableFuture<Void> updateAsync(String filename, InputStream source, long sourceSize) {
-        return wrapInFuture((future) -> {
+    public CompletableFuture<Long> exportAsync(String prefix, WritableByteChannel destination) {
+        OperationProbe probe = probe(FilesystemOperation.EXPORT, prefix, 0);
+        return submit(probe, (future) -> {
             try {
-                delete(filename);
-                write(filename, source, sourceSize);
-                future.complete(null);
+                future.complete(FilesystemArchive.export(this, prefix == null ? "" : prefix, destination, probe));
             } catch (Throwable e) {
                 future.completeExceptionally(
-                        new FileFsException("Exception occurred on file \"" + filename + "\" update", e));
+                        new FileFsException("Exception occurred on export of files \"" + prefix + "\"", e));
             }
         });
     }
 
     /**
-     * Search for filenames with {@code path} prefix
-     * in the cache. If {@code path} is null or empty
-     * returns all filenames.
+     * Writes files from an archive written by {@link #exportAsync(String, WritableByteChannel)},
+     * e.g. to move files from another filesystem. Files are appended at the tail in batches:
+     * headers and data of small files are collected into batches of up to {@link #BATCH_GATHER_BYTES},
+     * each batch is written with one gathering write into one region reserved at once
+     * and published at once. Data of files bigger than {@link #BATCH_INLINE_BYTES}
+     * is transferred from {@code source} directly, like in a single write.
      *
-     * @param path The path of files to list
-     * @return CompletableFuture with the set of filenames
-     *         with {@code path} prefix
+     * Files keep the compressed flag, so files compressed by {@link CompressingFilesystemProxy}
+     * are read decompressed by the proxy. Imported files are not deduplicated.
+     * Import stops on the first file which already exists or can't be written,
+     * files of the batches published before stay in the filesystem.
+     *
+     * @param source Channel to read the archive from, it's read up to the end of the archive
+     *               and not closed
+     * @return CompletableFuture with the number of imported files
+     *         (contains an Exception if I/O error occurred, the archive is corrupted
+     *         or any of files already exists)
      */
-    @Override
-    public CompletableFuture<Set<String>> listAsync(String path) {
-        if (path == null || path.isEmpty()) {
-            return CompletableFuture.completedFuture(fileOffsetsCache.keySet());
+    public CompletableFuture<Long> importAsync(ReadableByteChannel source) {
+        if (readOnly) {
+            return readOnlyFailure();
         }
-
-        return CompletableFuture.completedFuture(
-                fileOffsetsCache.keySet().stream()
-                        .filter(filename -> filename.startsWith(path))
-                        .collect(Collectors.toSet())
-        );
+        OperationProbe probe = probe(FilesystemOperation.IMPORT, null, 0);
+        return submit(probe, (future) -> {
+            try {
+                long imported = FilesystemArchive.importArchive(this, source, probe);
+                completeAfterSync(future, imported, "Exception occurred on import of files");
+            } catch (Throwable e) {
+                future.completeExceptionally(new FileFsException("Exception occurred on import of files", e));
+            }
+        });
     }
 
     /**
-     * Performs defragmentation by simply shifting not deleted files up
-     * over previous files marked as deleted.
+     * Writes a checkpoint of the offsets cache, so the next mount
+     * needs to scan only files written after it.
+     * Writes are blocked while the checkpoint is written.
      *
-     * NOT IMPLEMENTED YET
-     *
-     * @return CompletableFuture which indicates the result of update
+     * @return CompletableFuture which indicates the result of checkpoint
      *         (contains an Exception if I/O error occurred)
      */
-    @Override
-    public CompletableFuture<Void> defrag() {
-        throw new RuntimeException("Not yet implemented");
+    public CompletableFuture<Void> checkpointAsync() {
+        if (readOnly) {
+            return readOnlyFailure();
+        }
+        return wrapInFuture(executor, (future) -> {
+            try {
+                checkpoint();
+                future.complete(null);
+            } catch (Throwable e) {
+                future.completeExceptionally(
+                        new FileFsException("Exception occurred on FS checkpoint", e));
+            }
+        });
+    }
+
+    private synchronized void checkpoint() throws IOException {
+        if (!blobs.isEmpty()) {
+            // Reference counts of blobs are not checkpointed, they are counted on mount
+            return;
+        }
+        synchronized (publishLock) {
+            long coveredOffset = committedTail;
+            // Entries the checkpoint points to must be on disk before the checkpoint itself
+            channel.force(false);
+            OffsetIndexCheckpoint.write(file, fileOffsetsCache, coveredOffset, liveBytes.get());
+            checkpointedOffset = coveredOffset;
+        }
+    }
+
+    /**
+     * Must be called under {@code this} lock before an in-place change
+     * of the filesystem at {@code offset}: entries before the checkpointed
+     * offset are not rescanned on mount, so such change makes checkpoint stale.
+     */
+    private void invalidateCheckpointBefore(long offset) throws IOException {
+        if (offset < checkpointedOffset) {
+            OffsetIndexCheckpoint.invalidate(file);
+            checkpointedOffset = 0;
+        }
+    }
+
+    /**
+     * @return Bytes of free regions which new files may be written into,
+     *         0 if free space is not reused
+     */
+    synchronized long getFreeBytes() {
+        return freeSpace == null ? 0 : freeSpace.getFreeBytes();
+    }
+
+    /**
+     * @return Statistics of syncs made according to the durability mode
+     *         since mount, e.g. to tune the group commit window
+     */
+    public SyncStatistics getSyncStatistics() {
+        return sync.getStatistics();
+    }
+
+    /**
+     * Completes {@code future} of a change when the change is durable
+     * according to the durability mode.
+     */
+    void completeAfterSync(CompletableFuture<Void> future, String errorMessage) {
+        completeAfterSync(future, null, errorMessage);
+    }
+
+    private <T> void completeAfterSync(CompletableFuture<T> future, T result, String errorMessage) {
+        sync.sync().whenComplete((ignored, e) -> {
+            if (e == null) {
+                future.complete(result);
+            } else {
+                future.completeExceptionally(new FileFsException(errorMessage, e));
+            }
+        });
     }
 
     /**
-     * Forces data to be written on storage device,
-     * then closes the channel and the file.
+     * Checkpoints the offsets cache, forces data to be written
+     * on storage device, then closes the channel and the file.
+     * Shuts down the executor of operations if it is owned by this handler.
      *
      * @throws IOException If some I/O error occur
      */
     @Override
     public void unmount() throws IOException {
-        channel.force(true);
+        if (!channel.isOpen()) {
+            return;
+        }
+
+        if (compactionScheduler != null) {
+            compactionScheduler.shutdown();
+        }
+        gauges.forEach(metrics::unregisterGauge);
+        synchronized (this) {
+            snapshots.clear();
+        }
+        sync.close();
+        if (asynchronousIo != null) {
+            asynchronousIo.close();
+        }
+        if (!readOnly) {
+            checkpoint();
+            channel.force(true);
+        }
+        if (publishedTail != null) {
+            publishedTail.close();
+        }
         channel.close();
         fs.close();
+        executor.shutdown();
     }
 
     @Override
@@ -451,9 +3530,62 @@ public class SimpleFilesystemHandler implements FilesystemHandler {
         unmount();
     }
 
-    private static <T> CompletableFuture<T> wrapInFuture(Consumer<CompletableFuture<T>> consumer) {
+    OperationProbe probe(FilesystemOperation operation, String filename, long bytes) {
+        return OperationProbe.start(metrics, operation, filename, bytes);
+    }
+
+    /**
+     * Same as {@link #wrapInFuture(Executor, Consumer)} on the executor
+     * of this handler, but the operation is measured with {@code probe}.
+     */
+    <T> CompletableFuture<T> submit(OperationProbe probe, Consumer<CompletableFuture<T>> consumer) {
+        operationSubmitted();
+        if (!probe.isActive()) {
+            return wrapInFuture(executor, consumer);
+        }
+        return measure(probe, wrapInFuture(executor, (future) -> {
+            probe.started();
+            consumer.accept(future);
+        }));
+    }
+
+    /**
+     * Called on every submitted operation, including ones which don't run on the executor.
+     */
+    private void operationSubmitted() {
+        if (compactionScheduler != null) {
+            compactionScheduler.operationSubmitted();
+        }
+    }
+
+    /**
+     * @return Future which completes like {@code future} after the probe is completed,
+     *         so measurements are taken when the caller sees the result
+     */
+    private static <T> CompletableFuture<T> measure(OperationProbe probe, CompletableFuture<T> future) {
+        if (!probe.isActive()) {
+            return future;
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((value, e) -> {
+            probe.completed(e != null);
+            if (e == null) {
+                result.complete(value);
+            } else {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    static <T> CompletableFuture<T> wrapInFuture(Executor executor, Consumer<CompletableFuture<T>> consumer) {
         CompletableFuture<T> result = new CompletableFuture<>();
-        CompletableFuture.runAsync(() -> consumer.accept(result));
+        try {
+            executor.execute(() -> consumer.accept(result));
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(
+                    new FileFsException("Operation is rejected by executor", e));
+        }
         return result;
     }
 }
@@ -0,0 +1,354 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import ru.aqrcx.lib.filefs.impl.metrics.FilesystemMetrics;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Options of a {@link SimpleFilesystemHandler} which are set on mount.
+ * Instances are immutable and created with {@link #builder()}.
+ */
+public class SimpleFilesystemOptions {
+    /**
+     * Options used when none are passed on mount:
+     * operations run on {@link ForkJoinPool#commonPool()} without a queue limit,
+     * changes are forced to the storage device only on unmount,
+     * files are indexed by {@link SortedFileOffsetIndex}, nothing is measured.
+     */
+    public static final SimpleFilesystemOptions DEFAULT = builder().build();
+
+    private final Executor executor;
+    private final boolean virtualThreads;
+    private final int maxQueuedOperations;
+    private final DurabilityMode durabilityMode;
+    private final long groupCommitWindowNanos;
+    private final Supplier<FileOffsetIndex> indexFactory;
+    private final boolean memoryMappedReads;
+    private final boolean asynchronousIo;
+    private final boolean deduplication;
+    private final boolean freeSpaceReuse;
+    private final boolean sharedReads;
+    private final FilesystemMetrics metrics;
+    private final double compactionDeadRatio;
+    private final long compactionDeadBytes;
+    private final long compactionQuietNanos;
+    private final long compactionRateLimit;
+
+    private SimpleFilesystemOptions(Builder builder) {
+        this.executor = builder.executor;
+        this.virtualThreads = builder.virtualThreads;
+        this.maxQueuedOperations = builder.maxQueuedOperations;
+        this.durabilityMode = builder.durabilityMode;
+        this.groupCommitWindowNanos = builder.groupCommitWindowNanos;
+        this.indexFactory = builder.indexFactory;
+        this.memoryMappedReads = builder.memoryMappedReads;
+        this.asynchronousIo = builder.asynchronousIo;
+        this.deduplication = builder.deduplication;
+        this.freeSpaceReuse = builder.freeSpaceReuse;
+        this.sharedReads = builder.sharedReads;
+        this.metrics = builder.metrics;
+        this.compactionDeadRatio = builder.compactionDeadRatio;
+        this.compactionDeadBytes = builder.compactionDeadBytes;
+        this.compactionQuietNanos = builder.compactionQuietNanos;
+        this.compactionRateLimit = builder.compactionRateLimit;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getMaxQueuedOperations() {
+        return maxQueuedOperations;
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    public long getGroupCommitWindowNanos() {
+        return groupCommitWindowNanos;
+    }
+
+    public Supplier<FileOffsetIndex> getIndexFactory() {
+        return indexFactory;
+    }
+
+    public boolean isMemoryMappedReads() {
+        return memoryMappedReads;
+    }
+
+    public boolean isAsynchronousIo() {
+        return asynchronousIo;
+    }
+
+    public boolean isDeduplication() {
+        return deduplication;
+    }
+
+    public boolean isFreeSpaceReuse() {
+        return freeSpaceReuse;
+    }
+
+    public boolean isSharedReads() {
+        return sharedReads;
+    }
+
+    public FilesystemMetrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean isAutoCompaction() {
+        return compactionQuietNanos > 0;
+    }
+
+    public double getCompactionDeadRatio() {
+        return compactionDeadRatio;
+    }
+
+    public long getCompactionDeadBytes() {
+        return compactionDeadBytes;
+    }
+
+    public long getCompactionQuietNanos() {
+        return compactionQuietNanos;
+    }
+
+    /**
+     * @return Bytes per second defragmentation may copy, 0 if not limited
+     */
+    public long getCompactionRateLimit() {
+        return compactionRateLimit;
+    }
+
+    /**
+     * @return A new executor for operations of a handler mounted with these options
+     */
+    OperationExecutor newOperationExecutor() {
+        return virtualThreads
+                ? OperationExecutor.virtualThreadPerOperation(maxQueuedOperations)
+                : OperationExecutor.of(executor, maxQueuedOperations);
+    }
+
+    public static class Builder {
+        private Executor executor = ForkJoinPool.commonPool();
+        private boolean virtualThreads;
+        private int maxQueuedOperations;
+        private DurabilityMode durabilityMode = DurabilityMode.NONE;
+        private long groupCommitWindowNanos = TimeUnit.MILLISECONDS.toNanos(5);
+        private Supplier<FileOffsetIndex> indexFactory = SortedFileOffsetIndex::new;
+        private boolean memoryMappedReads;
+        private boolean asynchronousIo;
+        private boolean deduplication;
+        private boolean freeSpaceReuse;
+        private boolean sharedReads;
+        private FilesystemMetrics metrics = FilesystemMetrics.DISABLED;
+        private double compactionDeadRatio;
+        private long compactionDeadBytes;
+        private long compactionQuietNanos;
+        private long compactionRateLimit;
+
+        private Builder() {
+        }
+
+        /**
+         * Executor which runs blocking I/O of handler operations.
+         * The handler doesn't shut it down on unmount.
+         */
+        public Builder executor(Executor executor) {
+            if (executor == null) {
+                throw new IllegalArgumentException("Executor must not be null");
+            }
+            this.executor = executor;
+            this.virtualThreads = false;
+            return this;
+        }
+
+        /**
+         * Runs every operation on its own virtual thread (requires Java 21+).
+         * The executor is owned by the handler and shut down on unmount.
+         */
+        public Builder virtualThreads() {
+            this.virtualThreads = true;
+            return this;
+        }
+
+        /**
+         * Limits the number of operations which are submitted but not finished yet.
+         * When the limit is reached, a call which submits an operation
+         * (like {@code writeAsync}) blocks until some operation finishes.
+         * Steps which running operations submit on the executor, like chunks
+         * of streamed reads and writes, are not limited.
+         *
+         * @param maxQueuedOperations Limit of operations in flight, 0 means no limit
+         */
+        public Builder maxQueuedOperations(int maxQueuedOperations) {
+            if (maxQueuedOperations < 0) {
+                throw new IllegalArgumentException("Limit of queued operations must not be negative");
+            }
+            this.maxQueuedOperations = maxQueuedOperations;
+            return this;
+        }
+
+        /**
+         * Sets when changes are forced to the storage device.
+         */
+        public Builder durability(DurabilityMode durabilityMode) {
+            if (durabilityMode == null) {
+                throw new IllegalArgumentException("Durability mode must not be null");
+            }
+            this.durabilityMode = durabilityMode;
+            return this;
+        }
+
+        /**
+         * Sets how long a change waits for other changes to be forced
+         * with them in {@link DurabilityMode#GROUP_COMMIT} mode. 5 ms by default.
+         */
+        public Builder groupCommitWindow(long duration, TimeUnit unit) {
+            if (duration <= 0) {
+                throw new IllegalArgumentException("Group commit window must be positive");
+            }
+            this.groupCommitWindowNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Sets the factory of an empty index of files, called once on mount.
+         * Use {@link CompactFileOffsetIndex} for filesystems with millions of files
+         * when heap usage matters more than speed of listing.
+         */
+        public Builder index(Supplier<FileOffsetIndex> indexFactory) {
+            if (indexFactory == null) {
+                throw new IllegalArgumentException("Index factory must not be null");
+            }
+            this.indexFactory = indexFactory;
+            return this;
+        }
+
+        /**
+         * Maps the filesystem file into memory, so files can be read
+         * without copying with {@link SimpleFilesystemHandler#readMapped(String)}.
+         */
+        public Builder memoryMappedReads() {
+            this.memoryMappedReads = true;
+            return this;
+        }
+
+        /**
+         * Opens the filesystem file as an {@link java.nio.channels.AsynchronousFileChannel} too,
+         * so files can be read and written from buffers with
+         * {@link SimpleFilesystemHandler#readRangeAsync(String, long, java.nio.ByteBuffer)} and
+         * {@link SimpleFilesystemHandler#writeAsync(String, java.nio.ByteBuffer)}
+         * without occupying threads of the executor while the I/O is in progress.
+         */
+        public Builder asynchronousIo() {
+            this.asynchronousIo = true;
+            return this;
+        }
+
+        /**
+         * Stores bodies of files written with {@code writeAsync} and {@code updateAsync}
+         * once per distinct content: a file becomes a reference to a blob
+         * addressed by the SHA-256 digest of its body. Files written
+         * with {@code writeAllAsync} are not deduplicated.
+         */
+        public Builder deduplication() {
+            this.deduplication = true;
+            return this;
+        }
+
+        /**
+         * Writes a file into the best fitting region of deleted entries
+         * instead of the tail when there is one, so updates don't grow
+         * the filesystem between defragmentations. Space left in the region
+         * stays deleted. Files written with {@code writeAllAsync} always go
+         * to the tail. Regions deleted before the last checkpoint
+         * are found only by defragmentation.
+         */
+        public Builder freeSpaceReuse() {
+            this.freeSpaceReuse = true;
+            return this;
+        }
+
+        /**
+         * Lets read-only mounts in other processes follow the files written
+         * by this handler (see {@link SimpleFilesystemHandler#mountReadOnlyAsync(java.io.File)}).
+         * The end of published writes is shared through a sidecar file, and regions
+         * of deleted files are never written over, so it can't be combined
+         * with reuse of free space. Defragmentation fails while readers are mounted.
+         */
+        public Builder sharedReads() {
+            this.sharedReads = true;
+            return this;
+        }
+
+        /**
+         * Reports latencies of operations, waits and gauges of the handler
+         * to {@code metrics}. Operations also emit {@code FilesystemOperationEvent}s
+         * when they are enabled in a JFR recording, with or without metrics.
+         */
+        public Builder metrics(FilesystemMetrics metrics) {
+            if (metrics == null) {
+                throw new IllegalArgumentException("Metrics must not be null");
+            }
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Runs defragmentation in the background when dead space (deleted entries,
+         * space left after updates and failed writes) takes {@code deadRatio}
+         * of the filesystem or more, or {@code deadBytes} or more, and no operation
+         * was submitted to the handler for {@code quietPeriod}. Dead space below
+         * 64 KB never triggers it by the ratio. A pass stops when an operation
+         * is submitted and is skipped while the filesystem is mounted read-only
+         * by other handlers, see gauges {@code filefs.compaction.*} in metrics.
+         *
+         * @param deadRatio Share of dead space from 0 to 1
+         * @param deadBytes Amount of dead space which triggers defragmentation whatever its share is
+         */
+        public Builder autoCompaction(double deadRatio, long deadBytes, long quietPeriod, TimeUnit unit) {
+            if (!(deadRatio >= 0 && deadRatio <= 1)) {
+                throw new IllegalArgumentException("Share of dead space must be from 0 to 1");
+            }
+            if (deadBytes <= 0 || quietPeriod <= 0) {
+                throw new IllegalArgumentException("Dead space and quiet period must be positive");
+            }
+            this.compactionDeadRatio = deadRatio;
+            this.compactionDeadBytes = deadBytes;
+            this.compactionQuietNanos = unit.toNanos(quietPeriod);
+            return this;
+        }
+
+        /**
+         * Limits how fast defragmentation copies files, so it leaves
+         * bandwidth of the storage device to other operations.
+         * Not limited by default.
+         */
+        public Builder compactionRateLimit(long bytesPerSecond) {
+            if (bytesPerSecond <= 0) {
+                throw new IllegalArgumentException("Rate limit must be positive");
+            }
+            this.compactionRateLimit = bytesPerSecond;
+            return this;
+        }
+
+        public SimpleFilesystemOptions build() {
+            if (sharedReads && freeSpaceReuse) {
+                throw new IllegalStateException("Free space can't be reused when reads are shared");
+            }
+            return new SimpleFilesystemOptions(this);
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package ru.aqrcx.lib.filefs.impl.simplefs;
 
+import ru.aqrcx.lib.filefs.FileSource;
 import ru.aqrcx.lib.filefs.FilesystemHandler;
 import ru.aqrcx.lib.filefs.FilesystemProxy;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 
@@ -25,6 +29,11 @@ public class SimpleFilesystemProxy implements FilesystemProxy {
         return filesystemHandler.writeAsync(filename, source, sourceSize);
     }
 
+    @Override
+    public CompletableFuture<Void> writeAllAsync(Map<String, FileSource> sources) {
+        return filesystemHandler.writeAllAsync(sources);
+    }
+
     @Override
     public CompletableFuture<Void> deleteAsync(String filename) {
         return filesystemHandler.deleteAsync(filename);
@@ -35,6 +44,22 @@ public class SimpleFilesystemProxy implements FilesystemProxy {
         return filesystemHandler.readAsync(filename, destination);
     }
 
+    @Override
+    public CompletableFuture<Long> readRangeAsync(String filename, long offset, long length,
+                                               WritableByteChannel destination) {
+        return filesystemHandler.readRangeAsync(filename, offset, length, destination);
+    }
+
+    @Override
+    public CompletableFuture<Void> appendAsync(String filename, InputStream source, long sourceSize) {
+        return filesystemHandler.appendAsync(filename, source, sourceSize);
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAtAsync(String filename, long offset, InputStream source, long sourceSize) {
+        return filesystemHandler.writeAtAsync(filename, offset, source, sourceSize);
+    }
+
     @Override
     public CompletableFuture<Void> updateAsync(String filename, InputStream source, long sourceSize) {
         return filesystemHandler.updateAsync(filename, source, sourceSize);
@@ -45,6 +70,11 @@ public class SimpleFilesystemProxy implements FilesystemProxy {
         return filesystemHandler.listAsync(path);
     }
 
+    @Override
+    public CompletableFuture<List<String>> listPageAsync(String path, String startAfter, int limit) {
+        return filesystemHandler.listPageAsync(path, startAfter, limit);
+    }
+
     @Override
     public CompletableFuture<Void> defrag() {
         return filesystemHandler.defrag();
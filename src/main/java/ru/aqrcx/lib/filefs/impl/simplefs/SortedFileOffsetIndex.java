@@ -0,0 +1,79 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * {@link FileOffsetIndex} on a {@link ConcurrentSkipListMap}.
+ * Filenames are sorted, so listing by prefix costs
+ * O(log N + k) instead of a scan of the whole index.
+ */
+public class SortedFileOffsetIndex implements FileOffsetIndex {
+    private final ConcurrentSkipListMap<String, Long> offsets = new ConcurrentSkipListMap<>();
+    /**
+     * Size of skip list map is not a constant-time operation.
+     */
+    private final AtomicLong size = new AtomicLong();
+
+    @Override
+    public long get(String filename) {
+        Long offset = offsets.get(filename);
+        return offset == null ? NOT_FOUND : offset;
+    }
+
+    @Override
+    public boolean contains(String filename) {
+        return offsets.containsKey(filename);
+    }
+
+    @Override
+    public void put(String filename, long offset) {
+        if (offsets.put(filename, offset) == null) {
+            size.incrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean remove(String filename, long expectedOffset) {
+        if (offsets.remove(filename, expectedOffset)) {
+            size.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean replace(String filename, long expectedOffset, long newOffset) {
+        return offsets.replace(filename, expectedOffset, newOffset);
+    }
+
+    @Override
+    public long size() {
+        return size.get();
+    }
+
+    @Override
+    public void forEach(ObjLongConsumer<String> action) {
+        offsets.forEach(action::accept);
+    }
+
+    @Override
+    public List<String> list(String prefix, String startAfter, int limit) {
+        NavigableMap<String, Long> tail = startAfter != null && startAfter.compareTo(prefix) >= 0
+                ? offsets.tailMap(startAfter, false)
+                : offsets.tailMap(prefix, true);
+
+        List<String> result = new ArrayList<>(Math.min(limit, 1024));
+        for (String filename : tail.keySet()) {
+            if (result.size() >= limit || !filename.startsWith(prefix)) {
+                break;
+            }
+            result.add(filename);
+        }
+        return result;
+    }
+}
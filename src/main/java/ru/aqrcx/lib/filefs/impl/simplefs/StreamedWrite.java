@@ -0,0 +1,165 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import ru.aqrcx.lib.filefs.impl.exception.FileFsException;
+import ru.aqrcx.lib.filefs.impl.metrics.OperationProbe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Subscriber which writes a file of unknown length,
+ * see {@link SimpleFilesystemHandler#writeAsync(String, Flow.Publisher)}.
+ * Signals are handled one after another on the executor of the handler.
+ *
+ * The entry is written into a region reserved at the tail, which stays
+ * dead space until the write is committed. Regions are reserved
+ * and published by the handler, see {@link SimpleFilesystemHandler#reserveStreamedRegion}.
+ */
+class StreamedWrite implements Flow.Subscriber<ByteBuffer> {
+    final CompletableFuture<Void> result = new CompletableFuture<>();
+    private final SimpleFilesystemHandler handler;
+    private final String filename;
+    /**
+     * Set when the write claims the filename.
+     */
+    private byte[] filenameBytes;
+    private final OperationProbe probe;
+    private final String errorMessage;
+    private Flow.Subscription subscription;
+    /**
+     * Handling of the last signal, the next one is handled after it.
+     */
+    private CompletableFuture<Void> lastStep = CompletableFuture.completedFuture(null);
+    private boolean claimed;
+    private boolean finished;
+    /**
+     * Offset and length of the region, 0 before the first one is reserved.
+     */
+    private long regionOffset;
+    private long regionLength;
+    private long written;
+
+    StreamedWrite(SimpleFilesystemHandler handler, String filename, OperationProbe probe) {
+        this.handler = handler;
+        this.filename = filename;
+        this.probe = probe;
+        this.errorMessage = "Exception occurred on file \"" + filename + "\" write";
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        step(() -> {
+            claim();
+            subscription.request(1);
+        });
+    }
+
+    @Override
+    public void onNext(ByteBuffer chunk) {
+        step(() -> {
+            write(chunk);
+            subscription.request(1);
+        });
+    }
+
+    @Override
+    public void onError(Throwable e) {
+        step(() -> {
+            throw e;
+        });
+    }
+
+    @Override
+    public void onComplete() {
+        step(this::commit);
+    }
+
+    private synchronized void step(Step step) {
+        lastStep = lastStep.thenRunAsync(() -> {
+            if (finished) {
+                return;
+            }
+            try {
+                step.run();
+            } catch (Throwable e) {
+                fail(e);
+            }
+        }, handler.getExecutor()).exceptionally(e -> {
+            // The step couldn't be submitted
+            fail(e);
+            return null;
+        });
+    }
+
+    private void claim() {
+        filenameBytes = SimpleFilesystemHandler.filenameBytes(filename);
+        handler.claimNewFile(filename);
+        claimed = true;
+    }
+
+    private void write(ByteBuffer chunk) throws IOException {
+        reserve(written + chunk.remaining());
+        handler.writeFully(chunk.slice(), regionOffset + dataOffset() + written);
+        written += chunk.remaining();
+    }
+
+    /**
+     * Makes the region fit an entry with {@code size} bytes of data
+     * and a filler after it: a region which doesn't end with the entry
+     * must stay parseable after it.
+     */
+    private void reserve(long size) throws IOException {
+        long needed = dataOffset() + size + SimpleFilesystemHandler.FILLER_ENTRY_BYTES;
+        if (regionLength >= needed) {
+            return;
+        }
+
+        long length = needed + Math.min(needed / 2, SimpleFilesystemHandler.MAX_APPEND_SLACK_BYTES);
+        long newOffset = handler.reserveStreamedRegion(regionOffset, regionLength, length);
+        if (regionLength > 0 && newOffset != regionOffset) {
+            handler.copy(regionOffset + dataOffset(), newOffset + dataOffset(), written);
+            handler.releaseStreamedRegion(regionOffset, regionLength);
+        }
+        regionOffset = newOffset;
+        regionLength = length;
+    }
+
+    private void commit() throws IOException {
+        reserve(written);
+        handler.commitStreamedWrite(filename, filenameBytes, regionOffset, regionLength, written);
+        finished = true;
+        probe.setBytes(written);
+        handler.completeAfterSync(result, errorMessage);
+    }
+
+    private void fail(Throwable e) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        if (regionLength > 0) {
+            handler.releaseStreamedRegion(regionOffset, regionLength);
+        }
+        if (claimed) {
+            handler.releaseNewFile(filename);
+        }
+        result.completeExceptionally(new FileFsException(errorMessage, e));
+    }
+
+    /**
+     * @return Offset of file data in the entry
+     */
+    private long dataOffset() {
+        return SimpleFilesystemHandler.getFilePropertiesSize(filenameBytes.length);
+    }
+
+    private interface Step {
+        void run() throws Throwable;
+    }
+}
@@ -0,0 +1,65 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+/**
+ * Snapshot of statistics of syncs (forcing changes to the storage device)
+ * made by a {@link SimpleFilesystemHandler} since mount.
+ *
+ * @see DurabilityMode
+ */
+public class SyncStatistics {
+    private final long syncs;
+    private final long syncedOperations;
+    private final long totalSyncNanos;
+    private final long maxSyncNanos;
+    private final long lastSyncNanos;
+
+    SyncStatistics(long syncs, long syncedOperations, long totalSyncNanos, long maxSyncNanos, long lastSyncNanos) {
+        this.syncs = syncs;
+        this.syncedOperations = syncedOperations;
+        this.totalSyncNanos = totalSyncNanos;
+        this.maxSyncNanos = maxSyncNanos;
+        this.lastSyncNanos = lastSyncNanos;
+    }
+
+    /**
+     * @return Number of syncs
+     */
+    public long getSyncs() {
+        return syncs;
+    }
+
+    /**
+     * @return Number of operations covered by syncs. With group commit
+     *         it is bigger than the number of syncs.
+     */
+    public long getSyncedOperations() {
+        return syncedOperations;
+    }
+
+    public long getTotalSyncNanos() {
+        return totalSyncNanos;
+    }
+
+    public long getMaxSyncNanos() {
+        return maxSyncNanos;
+    }
+
+    public long getLastSyncNanos() {
+        return lastSyncNanos;
+    }
+
+    public long getAverageSyncNanos() {
+        return syncs == 0 ? 0 : totalSyncNanos / syncs;
+    }
+
+    @Override
+    public String toString() {
+        return "SyncStatistics{" +
+                "syncs=" + syncs +
+                ", syncedOperations=" + syncedOperations +
+                ", averageSyncNanos=" + getAverageSyncNanos() +
+                ", maxSyncNanos=" + maxSyncNanos +
+                ", lastSyncNanos=" + lastSyncNanos +
+                '}';
+    }
+}
@@ -0,0 +1,126 @@
+package ru.aqrcx.lib.filefs.impl.cache;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.aqrcx.lib.filefs.impl.simplefs.SimpleFilesystemHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CachingFilesystemProxyTest {
+
+    private CachingFilesystemProxy proxy;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    void mountEach() {
+        SimpleFilesystemHandler handler = SimpleFilesystemHandler
+                .initThenMountFilesystemAsync(tempDir.resolve("fs").toFile()).join();
+        proxy = new CachingFilesystemProxy(handler, 100, 50);
+    }
+
+    @AfterEach
+    void cleanUpEach() throws IOException {
+        proxy.unmount();
+    }
+
+    @Test
+    void should_serve_second_read_from_cache() {
+        writeString("file", "cached content");
+
+        assertEquals("cached content", readString("file"));
+        assertEquals("cached content", readString("file"));
+
+        CacheStatistics statistics = proxy.getStatistics();
+        assertEquals(1, statistics.getMisses());
+        assertEquals(1, statistics.getHits());
+        assertEquals(1, statistics.getCachedFiles());
+        assertEquals("cached content".length(), statistics.getCachedBytes());
+
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        assertEquals(7L, proxy.readRangeAsync("file", 7, 100, Channels.newChannel(range)).join());
+        assertEquals("content", new String(range.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(2, proxy.getStatistics().getHits());
+    }
+
+    @Test
+    void should_invalidate_file_on_update_and_delete() {
+        writeString("file", "first version");
+        assertEquals("first version", readString("file"));
+
+        proxy.updateAsync("file", stream("second version"), "second version".length()).join();
+        assertEquals("second version", readString("file"));
+        assertEquals("second version", readString("file"));
+        assertEquals(1, proxy.getStatistics().getHits());
+
+        proxy.deleteAsync("file").join();
+        assertEquals("", readString("file"));
+        assertEquals(0, proxy.getStatistics().getCachedFiles());
+    }
+
+    @Test
+    void should_invalidate_file_on_append_and_write_at_offset() {
+        writeString("file", "log");
+        assertEquals("log", readString("file"));
+
+        proxy.appendAsync("file", stream(" line"), " line".length()).join();
+        assertEquals("log line", readString("file"));
+
+        proxy.writeAtAsync("file", 0, stream("LOG"), 3).join();
+        assertEquals("LOG line", readString("file"));
+        assertEquals(0, proxy.getStatistics().getHits());
+    }
+
+    @Test
+    void should_evict_files_read_once_before_files_read_often() {
+        writeString("hot", "0123456789012345678901234567890123456789");
+        readString("hot");
+        readString("hot");
+
+        for (int i = 0; i < 5; i++) {
+            writeString("cold-" + i, "01234567890123456789");
+            readString("cold-" + i);
+        }
+
+        CacheStatistics statistics = proxy.getStatistics();
+        assertTrue(statistics.getEvictions() > 0);
+        assertTrue(statistics.getCachedBytes() <= statistics.getMaxBytes());
+        long hits = statistics.getHits();
+        readString("hot");
+        assertEquals(hits + 1, proxy.getStatistics().getHits());
+    }
+
+    @Test
+    void should_not_cache_files_bigger_than_limit() {
+        writeString("big", "this file is bigger than fifty bytes, so it is never cached");
+        readString("big");
+        readString("big");
+
+        assertEquals(0, proxy.getStatistics().getHits());
+        assertEquals(0, proxy.getStatistics().getCachedFiles());
+    }
+
+    private void writeString(String filename, String data) {
+        proxy.writeAsync(filename, stream(data), data.getBytes(StandardCharsets.UTF_8).length).join();
+    }
+
+    private String readString(String filename) {
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        proxy.readAsync(filename, destination).join();
+        return new String(destination.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static ByteArrayInputStream stream(String data) {
+        return new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,63 @@
+package ru.aqrcx.lib.filefs.impl.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SegmentedLruCacheTest {
+
+    @Test
+    void should_reuse_buffer_of_evicted_file_only_after_it_is_released() {
+        SegmentedLruCache cache = new SegmentedLruCache(64);
+        put(cache, "first", "first content");
+        SegmentedLruCache.Entry acquired = cache.acquire("first");
+        ByteBuffer firstBuffer = acquired.view();
+
+        cache.remove("first");
+        ByteBuffer second = cache.allocate("first content".length());
+        put(cache, "second", second, "other content");
+        assertEquals("first content", string(acquired.view()));
+
+        cache.release(acquired);
+        ByteBuffer reused = cache.allocate("first content".length());
+        assertEquals(firstBuffer.capacity(), reused.capacity());
+        assertNotSame(second, reused);
+        reused.limit("first content".length());
+        assertEquals("first content", string(reused));
+        assertEquals(1, cache.getStatistics().getCachedFiles());
+    }
+
+    @Test
+    void should_keep_cached_and_pooled_buffers_within_budget() {
+        SegmentedLruCache cache = new SegmentedLruCache(64);
+        for (int i = 0; i < 10; i++) {
+            put(cache, "file-" + i, "content of file " + i);
+        }
+
+        CacheStatistics statistics = cache.getStatistics();
+        assertTrue(statistics.getEvictions() > 0);
+        assertTrue(statistics.getCachedFiles() * SegmentedLruCache.sizeClass(17) <= 64);
+        assertEquals(20, SegmentedLruCache.sizeClass(17));
+        assertEquals(16, SegmentedLruCache.sizeClass(1));
+        assertEquals(1280, SegmentedLruCache.sizeClass(1025));
+    }
+
+    private static void put(SegmentedLruCache cache, String filename, String content) {
+        put(cache, filename, cache.allocate(content.length()), content);
+    }
+
+    private static void put(SegmentedLruCache cache, String filename, ByteBuffer buffer, String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        buffer.put(bytes);
+        cache.put(filename, buffer, bytes.length);
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,102 @@
+package ru.aqrcx.lib.filefs.impl.metrics;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.aqrcx.lib.filefs.impl.simplefs.SimpleFilesystemHandler;
+import ru.aqrcx.lib.filefs.impl.simplefs.SimpleFilesystemOptions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecordingFilesystemMetricsTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void should_report_percentiles_within_bucket_precision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(42);
+        long[] values = new long[10_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * 30);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        assertEquals(values.length, histogram.getCount());
+        assertEquals(values[values.length - 1], histogram.getMax());
+        for (double percentile : new double[]{1, 50, 90, 99, 99.9}) {
+            long expected = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long actual = histogram.getValueAtPercentile(percentile);
+            assertTrue(actual >= expected && actual <= expected + expected / 64 + 1,
+                    percentile + "%: " + actual + " for " + expected);
+        }
+
+        for (long value : new long[]{0, 127, 128, 1000, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(LatencyHistogram.highestValue(index) >= value);
+            assertTrue(index == 0 || LatencyHistogram.highestValue(index - 1) < value);
+        }
+    }
+
+    @Test
+    void should_record_operations_gauges_and_jfr_events() throws IOException {
+        File fsFile = tempDir.resolve("should_record_operations_gauges_and_jfr_events").toFile();
+        RecordingFilesystemMetrics metrics = new RecordingFilesystemMetrics();
+        SimpleFilesystemOptions options = SimpleFilesystemOptions.builder().metrics(metrics).build();
+
+        Path events = tempDir.resolve("events.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(FilesystemOperationEvent.class).withoutThreshold();
+            recording.start();
+
+            SimpleFilesystemHandler handler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile, options).join();
+            byte[] data = new byte[1000];
+            handler.writeAsync("file", new ByteArrayInputStream(data), data.length).join();
+            handler.readAsync("file", new ByteArrayOutputStream()).join();
+            handler.writeAsync("file", new ByteArrayInputStream(data), data.length)
+                    .handle((ignored, e) -> null).join();
+            assertEquals(1L, metrics.getGauges().get("filefs.files"));
+            handler.deleteAsync("file").join();
+            handler.defrag().join();
+            handler.unmount();
+
+            recording.stop();
+            recording.dump(events);
+        }
+
+        assertEquals(2, metrics.getLatency(FilesystemOperation.WRITE).getCount());
+        assertEquals(1, metrics.getFailures(FilesystemOperation.WRITE));
+        assertEquals(1000, metrics.getBytes(FilesystemOperation.WRITE));
+        assertEquals(1000, metrics.getBytes(FilesystemOperation.READ));
+        assertEquals(1, metrics.getLatency(FilesystemOperation.DELETE).getCount());
+        assertEquals(1, metrics.getLatency(FilesystemOperation.MOUNT).getCount());
+        assertEquals(1, metrics.getLatency(FilesystemOperation.DEFRAG).getCount());
+        assertEquals(4, metrics.getQueueWaits().getCount());
+        assertEquals(2, metrics.getLockWaits().getCount());
+        assertTrue(metrics.getGauges().isEmpty(), "Gauges are unregistered on unmount");
+
+        Map<String, List<RecordedEvent>> byOperation = RecordingFile.readAllEvents(events).stream()
+                .filter(event -> event.getEventType().getName().equals("ru.aqrcx.filefs.Operation"))
+                .collect(Collectors.groupingBy(event -> event.getString("operation")));
+        assertEquals(2, byOperation.get("WRITE").size());
+        assertEquals(1000, byOperation.get("READ").get(0).getLong("bytes"));
+        assertEquals("file", byOperation.get("DELETE").get(0).getString("filename"));
+        assertTrue(byOperation.containsKey("MOUNT"));
+        assertTrue(byOperation.containsKey("DEFRAG"));
+    }
+}
@@ -0,0 +1,134 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.aqrcx.lib.filefs.impl.metrics.RecordingFilesystemMetrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompressingFilesystemProxyTest {
+
+    private SimpleFilesystemHandler fsHandler;
+    private CompressingFilesystemProxy proxy;
+
+    @TempDir
+    Path tempDir;
+
+    @AfterEach
+    void cleanUpEach() throws IOException {
+        proxy.unmount();
+    }
+
+    @Test
+    void should_compress_big_files_and_store_small_files_as_is() {
+        File fsFile = tempDir.resolve("should_compress_big_files_and_store_small_files_as_is").toFile();
+        mount(fsFile);
+        String json = repeat("{\"key\": \"value\", \"number\": 12345}\n", 1000);
+
+        long lengthBefore = fsFile.length();
+        writeString("big.json", json);
+        assertTrue(fsFile.length() - lengthBefore < json.length() / 5);
+        writeString("small", "stored as is");
+
+        assertEquals(json, readString("big.json"));
+        assertEquals("stored as is", readString("small"));
+        assertEquals("stored as is", readRaw("small"));
+        assertNotEquals(json, readRaw("big.json"));
+
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        long written = proxy.readRangeAsync("big.json", 36, 20, Channels.newChannel(range)).join();
+        assertEquals(20, written);
+        assertEquals(json.substring(36, 56), new String(range.toByteArray(), StandardCharsets.UTF_8));
+        CompletionException missing = assertThrows(CompletionException.class, () -> proxy
+                .readRangeAsync("missing", 0, 1, Channels.newChannel(new ByteArrayOutputStream())).join());
+        assertTrue(missing.getCause().getCause() instanceof FileNotFoundException);
+
+        String updated = repeat("updated line\n", 500);
+        proxy.updateAsync("big.json", stream(updated), updated.length()).join();
+        assertEquals(updated, readString("big.json"));
+    }
+
+    @Test
+    void should_spill_big_files_while_compressing_then_read_them_after_mount() throws IOException {
+        File fsFile = tempDir.resolve("should_spill_big_files_while_compressing_then_read_them_after_mount").toFile();
+        mount(fsFile);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < 3 * CompressingFilesystemProxy.SPILL_THRESHOLD_BYTES; i++) {
+            builder.append("line ").append(i * 7919 % 100003).append('\n');
+        }
+        String data = builder.toString();
+        writeString("big", data);
+
+        proxy.unmount();
+        mount(fsFile);
+
+        assertEquals(data, readString("big"));
+    }
+
+    @Test
+    void should_count_compressed_bytes_and_time_in_gauges() {
+        File fsFile = tempDir.resolve("should_count_compressed_bytes_and_time_in_gauges").toFile();
+        RecordingFilesystemMetrics metrics = new RecordingFilesystemMetrics();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile,
+                SimpleFilesystemOptions.builder().metrics(metrics).build()).join();
+        proxy = new CompressingFilesystemProxy(fsHandler);
+        String json = repeat("{\"key\": \"value\", \"number\": 12345}\n", 1000);
+
+        writeString("big.json", json);
+        writeString("small", "stored as is");
+
+        Map<String, Long> gauges = metrics.getGauges();
+        assertEquals(1, gauges.get("filefs.compression.files"));
+        assertEquals(json.length(), gauges.get("filefs.compression.uncompressed.bytes"));
+        assertTrue(gauges.get("filefs.compression.compressed.bytes") < json.length() / 5);
+        assertTrue(gauges.get("filefs.compression.nanos") > 0);
+    }
+
+    private void mount(File fsFile) {
+        fsHandler = fsFile.exists()
+                ? SimpleFilesystemHandler.mountExistingFilesystemAsync(fsFile).join()
+                : SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile).join();
+        proxy = new CompressingFilesystemProxy(fsHandler);
+    }
+
+    private void writeString(String filename, String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        proxy.writeAsync(filename, new ByteArrayInputStream(bytes), bytes.length).join();
+    }
+
+    private String readString(String filename) {
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        proxy.readAsync(filename, destination).join();
+        return new String(destination.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private String readRaw(String filename) {
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        fsHandler.readAsync(filename, destination).join();
+        return new String(destination.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static ByteArrayInputStream stream(String data) {
+        return new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String repeat(String line, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(line);
+        }
+        return builder.toString();
+    }
+}
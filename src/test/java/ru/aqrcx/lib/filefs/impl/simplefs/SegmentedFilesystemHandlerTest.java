@@ -0,0 +1,192 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SegmentedFilesystemHandlerTest {
+
+    private SegmentedFilesystemHandler handler;
+
+    @TempDir
+    Path tempDir;
+
+    @AfterEach
+    void cleanUpEach() throws IOException {
+        if (handler != null) {
+            handler.unmount();
+        }
+    }
+
+    @Test
+    void should_roll_over_segments_across_directories_and_compact_sparse_ones() throws IOException {
+        File first = tempDir.resolve("first").toFile();
+        File second = tempDir.resolve("second").toFile();
+        SegmentedFilesystemOptions options = SegmentedFilesystemOptions.builder()
+                .directory(first)
+                .directory(second)
+                .segmentBytes(16 * 1024)
+                .build();
+        handler = SegmentedFilesystemHandler.mountAsync("fs", options).join();
+
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            writes.add(write("file" + i, content(i)));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).join();
+
+        int segmentCount = handler.getSegmentCount();
+        assertTrue(segmentCount > 4);
+        assertTrue(segmentFiles(first) > 0);
+        assertTrue(segmentFiles(second) > 0);
+
+        for (int i = 0; i < 200; i++) {
+            if (i % 10 == 0) {
+                update("file" + i, "updated " + i);
+            } else if (i % 10 != 1) {
+                handler.deleteAsync("file" + i).join();
+            }
+        }
+        handler.appendAsync("file1", stream("!"), 1).join();
+
+        handler.defrag().join();
+
+        assertTrue(handler.getSegmentCount() < segmentCount);
+        assertEquals(handler.getSegmentCount(), segmentFiles(first) + segmentFiles(second));
+        assertExpectedFiles();
+
+        handler.unmount();
+        handler = SegmentedFilesystemHandler.mountAsync("fs", options).join();
+
+        assertExpectedFiles();
+        assertEquals(List.of("file10", "file100", "file101"), handler.listPageAsync("file10", null, 3).join());
+    }
+
+    @Test
+    void should_keep_the_newest_copy_of_a_file_found_in_several_segments() throws IOException {
+        File directory = tempDir.resolve("segments").toFile();
+        SegmentedFilesystemOptions options = SegmentedFilesystemOptions.builder()
+                .directory(directory)
+                .segmentBytes(1024)
+                .build();
+        handler = SegmentedFilesystemHandler.mountAsync("fs", options).join();
+        write("stale", content(1)).join();
+        write("filler", content(2)).join();
+        update("stale", "newest").join();
+        handler.unmount();
+
+        // An update interrupted before the old copy was deleted
+        SimpleFilesystemHandler firstSegment = SimpleFilesystemHandler.mountExistingFilesystemAsync(
+                new File(directory, "fs-0" + SegmentedFilesystemHandler.SEGMENT_SUFFIX)).join();
+        firstSegment.writeAsync("stale", stream("old"), 3).join();
+        firstSegment.unmount();
+
+        handler = SegmentedFilesystemHandler.mountAsync("fs", options).join();
+
+        assertEquals("newest", read("stale"));
+        handler.deleteAsync("stale").join();
+        handler.unmount();
+        handler = SegmentedFilesystemHandler.mountAsync("fs", options).join();
+        assertEquals("", read("stale"));
+        assertEquals(content(2), read("filler"));
+    }
+
+    @Test
+    void should_roll_over_and_compact_segments_on_one_thread_with_one_queued_operation() throws Exception {
+        ExecutorService thread = Executors.newSingleThreadExecutor();
+        try {
+            SegmentedFilesystemOptions options = SegmentedFilesystemOptions.builder()
+                    .directory(tempDir.toFile())
+                    .segmentBytes(4 * 1024)
+                    .segmentOptions(SimpleFilesystemOptions.builder()
+                            .executor(thread)
+                            .maxQueuedOperations(1)
+                            .build())
+                    .build();
+            handler = SegmentedFilesystemHandler.mountAsync("fs", options).get(10, TimeUnit.SECONDS);
+
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                writes.add(write("file" + i, content(i)));
+            }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+            int segmentCount = handler.getSegmentCount();
+            assertTrue(segmentCount > 2);
+
+            for (int i = 0; i < 50; i++) {
+                if (i % 5 != 0) {
+                    handler.deleteAsync("file" + i).get(10, TimeUnit.SECONDS);
+                }
+            }
+            handler.defrag().get(10, TimeUnit.SECONDS);
+
+            assertTrue(handler.getSegmentCount() < segmentCount);
+            for (int i = 0; i < 50; i++) {
+                assertEquals(i % 5 == 0 ? content(i) : "", read("file" + i), "file" + i);
+            }
+            handler.unmount();
+            handler = null;
+        } finally {
+            thread.shutdownNow();
+        }
+    }
+
+    private void assertExpectedFiles() {
+        for (int i = 0; i < 200; i++) {
+            String expected = i % 10 == 0 ? "updated " + i : i % 10 == 1 ? content(i) : "";
+            if (i == 1) {
+                expected += "!";
+            }
+            assertEquals(expected, read("file" + i), "file" + i);
+        }
+        assertEquals(40, handler.listAsync("file").join().size());
+    }
+
+    private static int segmentFiles(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SegmentedFilesystemHandler.SEGMENT_SUFFIX));
+        return files == null ? 0 : files.length;
+    }
+
+    private static String content(int i) {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 500) {
+            builder.append("content of file ").append(i).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private CompletableFuture<Void> write(String filename, String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        return handler.writeAsync(filename, new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    private CompletableFuture<Void> update(String filename, String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        return handler.updateAsync(filename, new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    private String read(String filename) {
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        handler.readAsync(filename, destination).join();
+        return new String(destination.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static ByteArrayInputStream stream(String data) {
+        return new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,90 @@
+package ru.aqrcx.lib.filefs.impl.simplefs;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShardedFilesystemHandlerTest {
+
+    private ShardedFilesystemHandler handler;
+
+    @TempDir
+    Path tempDir;
+
+    @AfterEach
+    void cleanUpEach() throws IOException {
+        if (handler != null) {
+            handler.unmount();
+        }
+    }
+
+    @Test
+    void should_spread_files_across_shards_and_merge_listings() throws IOException {
+        File directory = tempDir.resolve("shards").toFile();
+        handler = ShardedFilesystemHandler.mountAsync(directory, "fs", 8, SimpleFilesystemOptions.DEFAULT).join();
+
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            String data = "data " + i;
+            writes.add(handler.writeAsync(String.format("dir/file%03d", i), stream(data), data.length()));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).join();
+
+        Set<SimpleFilesystemHandler> used = new HashSet<>();
+        for (int i = 0; i < 500; i++) {
+            used.add(handler.shard(String.format("dir/file%03d", i)));
+        }
+        assertEquals(8, used.size());
+
+        Set<String> listed = handler.listAsync("dir/").join();
+        assertEquals(500, listed.size());
+        assertEquals("dir/file000", listed.iterator().next());
+        assertEquals(List.of("dir/file100", "dir/file101", "dir/file102"),
+                handler.listPageAsync("dir/", "dir/file099", 3).join());
+
+        handler.deleteAsync("dir/file000").join();
+        handler.unmount();
+        handler = ShardedFilesystemHandler.mountAsync(directory, "fs", 8, SimpleFilesystemOptions.DEFAULT).join();
+
+        assertEquals(499, handler.listAsync("dir/").join().size());
+        assertEquals("data 123", read("dir/file123"));
+        assertEquals("", read("dir/file000"));
+    }
+
+    @Test
+    void should_not_mount_with_another_number_of_shards() throws IOException {
+        File directory = tempDir.resolve("shards").toFile();
+        handler = ShardedFilesystemHandler.mountAsync(directory, "fs", 4, SimpleFilesystemOptions.DEFAULT).join();
+        handler.unmount();
+        handler = null;
+
+        CompletionException e = assertThrows(CompletionException.class, () -> ShardedFilesystemHandler
+                .mountAsync(directory, "fs", 2, SimpleFilesystemOptions.DEFAULT).join());
+        assertTrue(e.getCause().getCause() instanceof IOException);
+    }
+
+    private String read(String filename) {
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        handler.readAsync(filename, destination).join();
+        return new String(destination.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static ByteArrayInputStream stream(String data) {
+        return new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -1,7 +1,181 @@
 package ru.aqrcx.lib.filefs.impl.simplefs;
 
-/**
- * TODO test SimpleFilesystemHandler on concurrent threads
- */
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class SimpleFilesystemHandlerConcurrencyTest {
+    private static final int FILES_COUNT = 200;
+
+    private SimpleFilesystemHandler fsHandler;
+
+    @TempDir
+    Path tempDir;
+
+    @AfterEach
+    void cleanUpEach() throws IOException {
+        fsHandler.unmount();
+        fsHandler = null;
+    }
+
+    @Test
+    void should_defrag_while_files_are_written_deleted_and_read() throws IOException {
+        File fsFile = tempDir.resolve("should_defrag_while_files_are_written_deleted_and_read").toFile();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile).join();
+
+        for (int i = 0; i < FILES_COUNT; i++) {
+            writeString("file-" + i, content(i)).join();
+        }
+
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (int i = 0; i < FILES_COUNT; i += 2) {
+            futures.add(fsHandler.deleteAsync("file-" + i));
+        }
+        futures.add(fsHandler.defrag());
+        for (int i = FILES_COUNT; i < 2 * FILES_COUNT; i++) {
+            futures.add(writeString("file-" + i, content(i)));
+        }
+        for (int i = 1; i < FILES_COUNT; i += 2) {
+            final int index = i;
+            futures.add(readString("file-" + i)
+                    .thenAccept(data -> assertEquals(content(index), data)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        fsHandler.defrag().join();
+
+        fsHandler.unmount();
+        fsHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(fsFile).join();
+
+        assertEquals(FILES_COUNT / 2 + FILES_COUNT, fsHandler.listAsync("").join().size());
+        for (int i = 1; i < 2 * FILES_COUNT; i++) {
+            if (i < FILES_COUNT && i % 2 == 0) {
+                assertNull(fsHandler.getFileOffset("file-" + i));
+            } else {
+                assertEquals(content(i), readString("file-" + i).join());
+            }
+        }
+    }
+
+    @Test
+    void should_write_files_concurrently_then_read_and_mount_them() throws IOException {
+        File fsFile = tempDir.resolve("should_write_files_concurrently_then_read_and_mount_them").toFile();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile).join();
+
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (int i = 0; i < FILES_COUNT; i++) {
+            final int index = i;
+            futures.add(CompletableFuture.supplyAsync(() -> writeString("file-" + index, content(index)))
+                    .thenCompose(future -> future));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+
+        long expectedFsFileSize = SimpleFilesystemHandler.VERSION_BYTES;
+        for (int i = 0; i < FILES_COUNT; i++) {
+            assertEquals(content(i), readString("file-" + i).join());
+            expectedFsFileSize += SimpleFilesystemHandler.getFilePropertiesSize(("file-" + i).length())
+                    + content(i).getBytes(StandardCharsets.UTF_8).length;
+        }
+        assertEquals(expectedFsFileSize, fsFile.length());
+
+        fsHandler.unmount();
+        fsHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(fsFile).join();
+        assertEquals(FILES_COUNT, fsHandler.listAsync("").join().size());
+    }
+
+    @Test
+    void should_write_only_one_of_concurrent_files_with_the_same_name() {
+        File fsFile = tempDir.resolve("should_write_only_one_of_concurrent_files_with_the_same_name").toFile();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile).join();
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            futures.add(writeString("the file", content(i)));
+        }
+
+        long succeeded = futures.stream()
+                .filter(future -> {
+                    try {
+                        future.join();
+                        return true;
+                    } catch (CompletionException e) {
+                        return false;
+                    }
+                })
+                .count();
+        assertEquals(1, succeeded);
+        assertEquals(1, fsHandler.listAsync("").join().size());
+    }
+
+    @Test
+    void should_take_consistent_snapshots_while_files_are_written_and_deleted() throws IOException {
+        File fsFile = tempDir.resolve("should_take_consistent_snapshots_while_files_are_written_and_deleted").toFile();
+        SimpleFilesystemOptions options = SimpleFilesystemOptions.builder()
+                .freeSpaceReuse()
+                .build();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile, options).join();
+
+        for (int i = 0; i < FILES_COUNT; i++) {
+            writeString("file-" + i, content(i)).join();
+        }
+
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        List<CompletableFuture<FilesystemSnapshot>> snapshots = new ArrayList<>();
+        for (int i = 0; i < FILES_COUNT; i += 2) {
+            final int index = i;
+            futures.add(fsHandler.deleteAsync("file-" + i)
+                    .thenCompose(ignored -> writeString("file-" + index, content(index))));
+            futures.add(writeString("file-" + (FILES_COUNT + i), content(FILES_COUNT + i)));
+            if (i % 20 == 0) {
+                snapshots.add(fsHandler.snapshot());
+            }
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+
+        for (CompletableFuture<FilesystemSnapshot> future : snapshots) {
+            FilesystemSnapshot snapshot = future.join();
+            for (String filename : snapshot.listAsync("").join()) {
+                int index = Integer.parseInt(filename.substring("file-".length()));
+                ByteArrayOutputStream destination = new ByteArrayOutputStream();
+                snapshot.readAsync(filename, destination).join();
+                assertEquals(content(index), destination.toString(StandardCharsets.UTF_8));
+            }
+            for (int i = 1; i < FILES_COUNT; i += 2) {
+                assertNotEquals(FileOffsetIndex.NOT_FOUND, snapshot.fileOffsets.get("file-" + i),
+                        "Files which are not changed are in every snapshot");
+            }
+            snapshot.unmount();
+        }
+    }
+
+    private CompletableFuture<Void> writeString(String fileName, String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        return fsHandler.writeAsync(fileName, new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    private CompletableFuture<String> readString(String fileName) {
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        return fsHandler.readAsync(fileName, destination)
+                .thenApply(ignored -> new String(destination.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static String content(int i) {
+        StringBuilder builder = new StringBuilder();
+        for (int j = 0; j <= i % 17; j++) {
+            builder.append("content of file ").append(i).append('\n');
+        }
+        return builder.toString();
+    }
 }
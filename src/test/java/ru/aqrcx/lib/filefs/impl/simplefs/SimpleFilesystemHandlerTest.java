@@ -4,14 +4,41 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+import ru.aqrcx.lib.filefs.FileSource;
+import ru.aqrcx.lib.filefs.FilesystemHandler;
+import ru.aqrcx.lib.filefs.impl.exception.FileFsException;
+import ru.aqrcx.lib.filefs.impl.metrics.RecordingFilesystemMetrics;
 
 import java.io.*;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -176,6 +203,1074 @@ public class SimpleFilesystemHandlerTest {
         assertTrue(rootFilenames.contains("/fourth/file"));
     }
 
+    @Test
+    void should_defrag_fs_then_read_and_mount_it() throws IOException {
+        File fsFile = tempDir.resolve("should_defrag_fs_then_read_and_mount_it").toFile();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile).join();
+        long fsFileLenAfterInit = fsFile.length();
+
+        LinkedHashMap<String, String> filenamesToContents = new LinkedHashMap<String, String>() {{
+            put("first file", "will be deleted");
+            put("second-file", "will be updated");
+            put("/third_file", "third file,\nit contains\n3 lines");
+            put("/fourth/file", "just to be sure");
+        }};
+        filenamesToContents.forEach(this::writeStringInFs);
+        fsHandler.deleteAsync("first file").join();
+        updateStringInFs("second-file", "updated");
+
+        fsHandler.defrag()
+                .exceptionally(Assertions::fail)
+                .join();
+
+        long expectedFsFileSize = fsFileLenAfterInit
+                + getEntrySize("second-file", "updated")
+                + getEntrySize("/third_file", filenamesToContents.get("/third_file"))
+                + getEntrySize("/fourth/file", filenamesToContents.get("/fourth/file"));
+        assertEquals(expectedFsFileSize, fsFile.length());
+        assertEquals(SimpleFilesystemHandler.VERSION_BYTES, fsHandler.getFileOffset("/third_file"));
+
+        assertEquals("updated", readStringFromFs("second-file"));
+        assertEquals(filenamesToContents.get("/third_file"), readStringFromFs("/third_file"));
+        assertEquals(filenamesToContents.get("/fourth/file"), readStringFromFs("/fourth/file"));
+
+        fsHandler.unmount();
+        fsHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(fsFile).join();
+
+        Set<String> allFilenames = fsHandler.listAsync("").join();
+        assertEquals(3, allFilenames.size());
+        assertEquals("updated", readStringFromFs("second-file"));
+    }
+
+    @Test
+    void should_defrag_big_file_behind_small_hole_through_the_tail() throws IOException {
+        File fsFile = tempDir.resolve("should_defrag_big_file_behind_small_hole_through_the_tail").toFile();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile).join();
+        long fsFileLenAfterInit = fsFile.length();
+
+        String big = "line of a file bigger than a defrag chunk\n"
+                .repeat(3 * SimpleFilesystemHandler.DEFRAG_CHUNK_BYTES / 40);
+        writeStringInFs("/hole", "will be deleted");
+        writeStringInFs("/big", big);
+        writeStringInFs("/after", "written after the big file");
+        fsHandler.deleteAsync("/hole").join();
+
+        // The big file overlaps the hole, so it's moved to the tail and back
+        fsHandler.defrag().join();
+
+        assertEquals(fsFileLenAfterInit + getEntrySize("/big", big)
+                + getEntrySize("/after", "written after the big file"), fsFile.length());
+        // Files after the big one move into the space it left before it's moved back
+        assertEquals(SimpleFilesystemHandler.VERSION_BYTES, fsHandler.getFileOffset("/after"));
+        assertEquals(SimpleFilesystemHandler.VERSION_BYTES + getEntrySize("/after", "written after the big file"),
+                fsHandler.getFileOffset("/big"));
+        assertEquals(big, readStringFromFs("/big"));
+        assertEquals("written after the big file", readStringFromFs("/after"));
+
+        fsHandler.unmount();
+        fsHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(fsFile).join();
+        assertEquals(Set.of("/big", "/after"), fsHandler.listAsync("").join());
+        assertEquals(big, readStringFromFs("/big"));
+    }
+
+    @Test
+    void should_mount_fs_from_checkpoint_and_replay_files_written_after_it() throws IOException {
+        File fsFile = tempDir.resolve("should_mount_fs_from_checkpoint-FS").toFile();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile).join();
+
+        writeStringInFs("first file", "checkpointed");
+        writeStringInFs("second-file", "will be deleted after checkpoint");
+        fsHandler.checkpointAsync()
+                .exceptionally(Assertions::fail)
+                .join();
+        assertTrue(OffsetIndexCheckpoint.checkpointFile(fsFile).isFile());
+
+        writeStringInFs("/third_file", "written after checkpoint");
+        writeStringInFs("/fourth/file", "deleted after checkpoint");
+        fsHandler.deleteAsync("/fourth/file").join();
+        assertTrue(OffsetIndexCheckpoint.checkpointFile(fsFile).isFile());
+
+        // Copy of a mounted filesystem is the same as a filesystem after crash
+        File copyFile = tempDir.resolve("should_mount_fs_from_checkpoint-COPY").toFile();
+        Files.copy(fsFile.toPath(), copyFile.toPath());
+        Files.copy(OffsetIndexCheckpoint.checkpointFile(fsFile).toPath(),
+                OffsetIndexCheckpoint.checkpointFile(copyFile).toPath());
+
+        SimpleFilesystemHandler copyHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(copyFile).join();
+        try {
+            Set<String> allFilenames = copyHandler.listAsync("").join();
+            assertEquals(3, allFilenames.size());
+            assertEquals(fsHandler.getFileOffset("first file"), copyHandler.getFileOffset("first file"));
+            assertEquals(fsHandler.getFileOffset("second-file"), copyHandler.getFileOffset("second-file"));
+            assertEquals(fsHandler.getFileOffset("/third_file"), copyHandler.getFileOffset("/third_file"));
+        } finally {
+            copyHandler.unmount();
+        }
+    }
+
+    @Test
+    void should_invalidate_checkpoint_on_delete_of_checkpointed_file() throws IOException {
+        File fsFile = tempDir.resolve("should_invalidate_checkpoint_on_delete_of_checkpointed_file").toFile();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile).join();
+
+        writeStringInFs("first file", "checkpointed");
+        writeStringInFs("second-file", "checkpointed, then deleted");
+        fsHandler.checkpointAsync().join();
+
+        fsHandler.deleteAsync("second-file").join();
+        assertFalse(OffsetIndexCheckpoint.checkpointFile(fsFile).exists());
+
+        fsHandler.unmount();
+        assertTrue(OffsetIndexCheckpoint.checkpointFile(fsFile).isFile());
+        fsHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(fsFile).join();
+
+        Set<String> allFilenames = fsHandler.listAsync("").join();
+        assertEquals(1, allFilenames.size());
+        assertEquals("checkpointed", readStringFromFs("first file"));
+    }
+
+    @Test
+    void should_run_operations_on_executor_from_options() {
+        AtomicInteger executed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            SimpleFilesystemOptions options = SimpleFilesystemOptions.builder()
+                    .executor(command -> {
+                        executed.incrementAndGet();
+                        pool.execute(command);
+                    })
+                    .maxQueuedOperations(1)
+                    .build();
+            File fsFile = tempDir.resolve("should_run_operations_on_executor_from_options").toFile();
+            fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile, options).join();
+
+            writeStringInFs("first file", "written on the pool");
+            assertEquals("written on the pool", readStringFromFs("first file"));
+
+            // mount, write and read
+            assertEquals(3, executed.get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void should_stream_files_in_many_chunks_with_one_queued_operation() throws Exception {
+        SimpleFilesystemOptions options = SimpleFilesystemOptions.builder()
+                .maxQueuedOperations(1)
+                .build();
+        File fsFile = tempDir.resolve("should_stream_files_in_many_chunks_with_one_queued_operation").toFile();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile, options).join();
+
+        StringBuilder expected = new StringBuilder();
+        CompletableFuture<Void> streamed;
+        // Buffers every chunk, so a stuck write fails on timeout instead of blocking the submit
+        try (SubmissionPublisher<ByteBuffer> publisher =
+                     new SubmissionPublisher<>(ForkJoinPool.commonPool(), 32 * 1024)) {
+            streamed = fsHandler.writeAsync("/streamed", publisher);
+            for (int i = 0; i < 20000; i++) {
+                String chunk = "chunk " + i + " of the upload\n";
+                expected.append(chunk);
+                publisher.submit(ByteBuffer.wrap(chunk.getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        // Every step of the write submits the next one while it still holds the only permit
+        streamed.get(10, TimeUnit.SECONDS);
+
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        CompletableFuture<Void> completed = new CompletableFuture<>();
+        fsHandler.readPublisher("/streamed").subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer chunk) {
+                read.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                completed.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                completed.complete(null);
+            }
+        });
+        completed.get(10, TimeUnit.SECONDS);
+        assertTrue(expected.length() > SimpleFilesystemHandler.STREAM_CHUNK_BYTES);
+        assertEquals(expected.toString(), read.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void should_write_all_files_in_batch_then_read_and_mount_them() throws IOException {
+        File fsFile = tempDir.resolve("should_write_all_files_in_batch_then_read_and_mount_them").toFile();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile).join();
+        long fsFileLenAfterInit = fsFile.length();
+
+        StringBuilder bigContent = new StringBuilder();
+        while (bigContent.length() <= SimpleFilesystemHandler.BATCH_INLINE_BYTES) {
+            bigContent.append("bigger than inline limit\n");
+        }
+
+        LinkedHashMap<String, String> filenamesToContents = new LinkedHashMap<String, String>() {{
+            put("first file", "this is the first file in this filesystem");
+            put("/big/file", bigContent.toString());
+            put("/third_file", "third file,\nit contains\n3 lines");
+            put("/empty", "");
+        }};
+        LinkedHashMap<String, FileSource> sources = new LinkedHashMap<>();
+        long expectedFsFileSize = fsFileLenAfterInit;
+        for (Map.Entry<String, String> file : filenamesToContents.entrySet()) {
+            byte[] data = file.getValue().getBytes(StandardCharsets.UTF_8);
+            sources.put(file.getKey(), FileSource.of(new ByteArrayInputStream(data), data.length));
+            expectedFsFileSize += getEntrySize(file.getKey(), file.getValue());
+        }
+
+        fsHandler.writeAllAsync(sources)
+                .exceptionally(Assertions::fail)
+                .join();
+
+        assertEquals(expectedFsFileSize, fsFile.length());
+        for (Map.Entry<String, String> file : filenamesToContents.entrySet()) {
+            assertEquals(file.getValue(), readStringFromFs(file.getKey()));
+        }
+
+        fsHandler.unmount();
+        fsHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(fsFile).join();
+        assertEquals(filenamesToContents.keySet(), fsHandler.listAsync("").join());
+    }
+
+    @Test
+    void should_write_none_of_batch_files_if_one_already_exists() {
+        initEmptyFs("should_write_none_of_batch_files_if_one_already_exists");
+        writeStringInFs("second-file", "already exists");
+
+        LinkedHashMap<String, FileSource> sources = new LinkedHashMap<>();
+        sources.put("first file", FileSource.of(new ByteArrayInputStream(new byte[]{1}), 1));
+        sources.put("second-file", FileSource.of(new ByteArrayInputStream(new byte[]{2}), 1));
+
+        assertThrows(CompletionException.class, () -> fsHandler.writeAllAsync(sources).join());
+        assertNull(fsHandler.getFileOffset("first file"));
+        assertEquals("already exists", readStringFromFs("second-file"));
+    }
+
+    @Test
+    void should_reject_empty_filenames() {
+        initEmptyFs("should_reject_empty_filenames");
+
+        CompletionException write = assertThrows(CompletionException.class,
+                () -> fsHandler.writeAsync("", new ByteArrayInputStream(new byte[]{1}), 1).join());
+        assertTrue(write.getCause().getCause() instanceof IllegalArgumentException);
+        LinkedHashMap<String, FileSource> sources = new LinkedHashMap<>();
+        sources.put("file", FileSource.of(new ByteArrayInputStream(new byte[]{1}), 1));
+        sources.put("", FileSource.of(new ByteArrayInputStream(new byte[]{2}), 1));
+        assertThrows(CompletionException.class, () -> fsHandler.writeAllAsync(sources).join());
+
+        assertEquals(Set.of(), fsHandler.listAsync("").join());
+    }
+
+    @ParameterizedTest
+    @EnumSource(DurabilityMode.class)
+    void should_sync_changes_according_to_durability_mode(DurabilityMode durabilityMode) {
+        SimpleFilesystemOptions options = SimpleFilesystemOptions.builder()
+                .durability(durabilityMode)
+                .groupCommitWindow(50, TimeUnit.MILLISECONDS)
+                .build();
+        File fsFile = tempDir.resolve("should_sync_changes_according_to_durability_mode").toFile();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile, options).join();
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            byte[] data = ("file " + i).getBytes(StandardCharsets.UTF_8);
+            futures.add(fsHandler.writeAsync("file " + i, new ByteArrayInputStream(data), data.length));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+
+        SyncStatistics statistics = fsHandler.getSyncStatistics();
+        switch (durabilityMode) {
+            case NONE:
+                assertEquals(0, statistics.getSyncs());
+                break;
+            case GROUP_COMMIT:
+                assertEquals(10, statistics.getSyncedOperations());
+                assertTrue(statistics.getSyncs() >= 1 && statistics.getSyncs() < 10);
+                break;
+            case PER_OPERATION:
+                assertEquals(10, statistics.getSyncs());
+                assertEquals(10, statistics.getSyncedOperations());
+                break;
+        }
+        assertTrue(statistics.getMaxSyncNanos() >= statistics.getAverageSyncNanos());
+    }
+
+    @Test
+    void should_list_files_by_prefix_in_pages() {
+        initEmptyFs("should_list_files_by_prefix_in_pages");
+        for (int i = 0; i < 25; i++) {
+            writeStringInFs(String.format("/dir/file-%02d", i), "file " + i);
+        }
+        writeStringInFs("/dir2/file", "not in /dir/");
+        writeStringInFs("/dia", "before /dir/");
+
+        List<String> listed = new ArrayList<>();
+        String startAfter = null;
+        List<String> page;
+        while (!(page = fsHandler.listPageAsync("/dir/", startAfter, 10).join()).isEmpty()) {
+            assertTrue(page.size() <= 10);
+            listed.addAll(page);
+            startAfter = page.get(page.size() - 1);
+        }
+
+        assertEquals(25, listed.size());
+        for (int i = 0; i < 25; i++) {
+            assertEquals(String.format("/dir/file-%02d", i), listed.get(i));
+        }
+        assertEquals(new ArrayList<>(fsHandler.listAsync("/dir/").join()), listed);
+        assertEquals(27, fsHandler.listAsync(null).join().size());
+    }
+
+    @Test
+    void should_read_range_of_file_into_channel() throws IOException {
+        initEmptyFs("should_read_range_of_file_into_channel");
+        writeStringInFs("file", "0123456789");
+
+        File destinationFile = tempDir.resolve("should_read_range_of_file_into_channel-DEST").toFile();
+        try (FileChannel destination = FileChannel.open(destinationFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            assertEquals(4L, fsHandler.readRangeAsync("file", 3, 4, destination).join());
+            assertEquals(3L, fsHandler.readRangeAsync("file", 7, 100, destination).join());
+            assertEquals(0L, fsHandler.readRangeAsync("file", 10, 5, destination).join());
+        }
+        assertEquals("3456789", new String(Files.readAllBytes(destinationFile.toPath()), StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        CompletionException e = assertThrows(CompletionException.class,
+                () -> fsHandler.readRangeAsync("no such file", 0, 1, Channels.newChannel(destination)).join());
+        assertTrue(e.getCause() instanceof FileFsException);
+        assertThrows(CompletionException.class,
+                () -> fsHandler.readRangeAsync("file", -1, 1, Channels.newChannel(destination)).join());
+    }
+
+    @Test
+    void should_read_mapped_files_while_fs_grows_and_defrag_waits_for_views() throws IOException {
+        File fsFile = tempDir.resolve("should_read_mapped_files_while_fs_grows_and_defrag_waits_for_views").toFile();
+        SimpleFilesystemOptions options = SimpleFilesystemOptions.builder()
+                .memoryMappedReads()
+                .build();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile, options).join();
+        writeStringInFs("first", "will be deleted");
+        writeStringInFs("second", "second file");
+
+        try (MappedView view = fsHandler.readMapped("second")) {
+            assertEquals("second file", StandardCharsets.UTF_8.decode(view.getBuffer()).toString());
+        }
+        writeStringInFs("third", "written after mapping");
+        try (MappedView view = fsHandler.readMappedAsync("third").join()) {
+            assertTrue(view.getBuffer().isReadOnly());
+            assertEquals("written after mapping", StandardCharsets.UTF_8.decode(view.getBuffer()).toString());
+        }
+        assertNull(fsHandler.readMapped("no such file"));
+
+        fsHandler.deleteAsync("first").join();
+        MappedView view = fsHandler.readMapped("second");
+        CompletableFuture<Void> defrag = fsHandler.defrag();
+        assertThrows(TimeoutException.class,
+                () -> defrag.get(200, TimeUnit.MILLISECONDS));
+        assertEquals("second file", StandardCharsets.UTF_8.decode(view.getBuffer()).toString());
+        view.close();
+        defrag.join();
+
+        assertEquals(SimpleFilesystemHandler.VERSION_BYTES, fsHandler.getFileOffset("second"));
+        try (MappedView relocated = fsHandler.readMapped("second")) {
+            assertEquals("second file", StandardCharsets.UTF_8.decode(relocated.getBuffer()).toString());
+        }
+        writeStringInFs("fourth", "written after defrag");
+        try (MappedView appended = fsHandler.readMapped("fourth")) {
+            assertEquals("written after defrag", StandardCharsets.UTF_8.decode(appended.getBuffer()).toString());
+        }
+    }
+
+    @Test
+    void should_write_delete_and_mount_fs_with_compact_index() throws IOException {
+        File fsFile = tempDir.resolve("should_write_delete_and_mount_fs_with_compact_index").toFile();
+        SimpleFilesystemOptions options = SimpleFilesystemOptions.builder()
+                .index(() -> new CompactFileOffsetIndex(16))
+                .build();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile, options).join();
+
+        for (int i = 0; i < 300; i++) {
+            writeStringInFs(String.format("/dir/\u0444\u0430\u0439\u043b-%03d", i), "file " + i);
+        }
+        for (int i = 0; i < 300; i += 3) {
+            fsHandler.deleteAsync(String.format("/dir/\u0444\u0430\u0439\u043b-%03d", i)).join();
+        }
+        updateStringInFs("/dir/\u0444\u0430\u0439\u043b-001", "updated");
+        assertEquals(200, fsHandler.listAsync("/dir/").join().size());
+
+        fsHandler.unmount();
+        fsHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(fsFile, options).join();
+
+        List<String> listed = new ArrayList<>();
+        String startAfter = null;
+        List<String> page;
+        while (!(page = fsHandler.listPageAsync("/dir/", startAfter, 7).join()).isEmpty()) {
+            listed.addAll(page);
+            startAfter = page.get(page.size() - 1);
+        }
+        assertEquals(200, listed.size());
+        for (int i = 1; i < listed.size(); i++) {
+            assertTrue(listed.get(i - 1).compareTo(listed.get(i)) < 0);
+        }
+        assertFalse(listed.contains("/dir/\u0444\u0430\u0439\u043b-000"));
+        assertEquals("updated", readStringFromFs("/dir/\u0444\u0430\u0439\u043b-001"));
+        assertEquals("file 299", readStringFromFs("/dir/\u0444\u0430\u0439\u043b-299"));
+        assertNull(fsHandler.getFileOffset("/dir/\u0444\u0430\u0439\u043b-003"));
+    }
+
+    @Test
+    void should_store_duplicate_contents_once_with_deduplication() throws IOException {
+        File fsFile = tempDir.resolve("should_store_duplicate_contents_once_with_deduplication").toFile();
+        SimpleFilesystemOptions options = SimpleFilesystemOptions.builder()
+                .deduplication()
+                .build();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile, options).join();
+
+        byte[] big = new byte[512 * 1024];
+        for (int i = 0; i < big.length; i++) {
+            big[i] = (byte) (i * 31 / 7);
+        }
+        // Bigger than the dedup buffer, so it's hashed while written
+        byte[] large = new byte[3 * 1024 * 1024];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i * 13 / 5);
+        }
+        String small = "same content";
+
+        writeStringInFs("/a", small);
+        fsHandler.writeAsync("/big-a", new ByteArrayInputStream(big), big.length).join();
+        long sizeAfterFirstCopies = fsFile.length();
+        writeStringInFs("/b", small);
+        writeStringInFs("/c", small);
+        fsHandler.writeAsync("/big-b", new ByteArrayInputStream(big), big.length).join();
+        writeStringInFs("/other", "other content");
+        assertTrue(fsFile.length() - sizeAfterFirstCopies < big.length);
+        fsHandler.writeAsync("/large-a", new ByteArrayInputStream(large), large.length).join();
+        fsHandler.writeAsync("/large-b", new ByteArrayInputStream(large), large.length).join();
+        fsHandler.defrag().join();
+        assertTrue(fsFile.length() < 2L * large.length);
+        ByteArrayOutputStream largeRead = new ByteArrayOutputStream();
+        fsHandler.readAsync("/large-a", largeRead).join();
+        assertArrayEquals(large, largeRead.toByteArray());
+        fsHandler.deleteAsync("/large-a").join();
+        fsHandler.deleteAsync("/large-b").join();
+
+        fsHandler.deleteAsync("/a").join();
+        assertEquals(small, readStringFromFs("/b"));
+        updateStringInFs("/c", "changed");
+        assertEquals(small, readStringFromFs("/b"));
+        assertEquals(Set.of("/b", "/c", "/big-a", "/big-b", "/other"), fsHandler.listAsync("/").join());
+
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        assertEquals(10L, fsHandler.readRangeAsync("/big-b", 1000, 10, Channels.newChannel(range)).join());
+        assertArrayEquals(java.util.Arrays.copyOfRange(big, 1000, 1010), range.toByteArray());
+
+        fsHandler.deleteAsync("/big-a").join();
+        fsHandler.defrag().join();
+        ByteArrayOutputStream bigRead = new ByteArrayOutputStream();
+        fsHandler.readAsync("/big-b", bigRead).join();
+        assertArrayEquals(big, bigRead.toByteArray());
+
+        fsHandler.unmount();
+        fsHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(fsFile, options).join();
+
+        assertEquals(small, readStringFromFs("/b"));
+        assertEquals("changed", readStringFromFs("/c"));
+        fsHandler.deleteAsync("/big-b").join();
+        fsHandler.deleteAsync("/b").join();
+        fsHandler.defrag().join();
+        assertTrue(fsFile.length() < 1024);
+        assertEquals("other content", readStringFromFs("/other"));
+    }
+
+    @Test
+    void should_reuse_deleted_regions_for_updates() throws IOException {
+        File fsFile = tempDir.resolve("should_reuse_deleted_regions_for_updates").toFile();
+        SimpleFilesystemOptions options = SimpleFilesystemOptions.builder()
+                .freeSpaceReuse()
+                .build();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile, options).join();
+
+        for (int i = 0; i < 50; i++) {
+            writeStringInFs("/file-" + i, "x".repeat(100 + i * 10));
+        }
+        long initialSize = fsFile.length();
+
+        for (int round = 0; round < 20; round++) {
+            List<CompletableFuture<Void>> updates = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                String content = (round % 2 == 0 ? "y" : "z").repeat(100 + (i + round) % 50 * 10);
+                updates.add(fsHandler.updateAsync("/file-" + i,
+                        new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), content.length()));
+            }
+            CompletableFuture.allOf(updates.toArray(new CompletableFuture[0])).join();
+        }
+        assertTrue(fsFile.length() < 2 * initialSize);
+        assertEquals("z".repeat(100 + 19 % 50 * 10), readStringFromFs("/file-0"));
+
+        fsHandler.deleteAsync("/file-49").join();
+        writeStringInFs("/small", "fits into a hole");
+        long sizeBeforeRemount = fsFile.length();
+
+        fsHandler.unmount();
+        Files.deleteIfExists(OffsetIndexCheckpoint.checkpointFile(fsFile).toPath());
+        fsHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(fsFile, options).join();
+
+        assertEquals(sizeBeforeRemount, fsFile.length());
+        assertEquals("fits into a hole", readStringFromFs("/small"));
+        for (int i = 0; i < 49; i++) {
+            assertEquals("z".repeat(100 + (i + 19) % 50 * 10), readStringFromFs("/file-" + i));
+        }
+        updateStringInFs("/file-1", "short");
+        assertEquals(sizeBeforeRemount, fsFile.length());
+
+        fsHandler.defrag().join();
+        assertTrue(fsFile.length() < sizeBeforeRemount);
+        writeStringInFs("/after-defrag", "tail");
+        assertEquals("short", readStringFromFs("/file-1"));
+        assertEquals("tail", readStringFromFs("/after-defrag"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void should_append_to_interleaved_files_and_patch_them(boolean freeSpaceReuse) throws IOException {
+        File fsFile = tempDir.resolve("should_append_to_interleaved_files_and_patch_them_" + freeSpaceReuse).toFile();
+        SimpleFilesystemOptions.Builder builder = SimpleFilesystemOptions.builder();
+        if (freeSpaceReuse) {
+            builder.freeSpaceReuse();
+        }
+        SimpleFilesystemOptions options = builder.build();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile, options).join();
+
+        StringBuilder first = new StringBuilder();
+        StringBuilder second = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            String line = i % 500 == 0 ? "x" : "line " + i + " of the log\n";
+            StringBuilder log = i % 2 == 0 ? first : second;
+            String filename = i % 2 == 0 ? "/log-1" : "/log-2";
+            fsHandler.appendAsync(filename, new ByteArrayInputStream(line.getBytes(StandardCharsets.UTF_8)),
+                    line.length()).join();
+            log.append(line);
+        }
+        assertEquals(first.toString(), readStringFromFs("/log-1"));
+        assertEquals(second.toString(), readStringFromFs("/log-2"));
+        // Relocations are amortized by free space reserved after the files
+        assertTrue(fsFile.length() < 6L * (first.length() + second.length()));
+
+        fsHandler.writeAtAsync("/log-1", 5, new ByteArrayInputStream("PATCH".getBytes(StandardCharsets.UTF_8)), 5)
+                .join();
+        first.replace(5, 10, "PATCH");
+        String tail = "overwrites the end and extends the file";
+        fsHandler.writeAtAsync("/log-2", second.length() - 3,
+                new ByteArrayInputStream(tail.getBytes(StandardCharsets.UTF_8)), tail.length()).join();
+        second.replace(second.length() - 3, second.length(), tail);
+        assertEquals(first.toString(), readStringFromFs("/log-1"));
+        assertEquals(second.toString(), readStringFromFs("/log-2"));
+
+        CompletionException pastEnd = assertThrows(CompletionException.class, () -> fsHandler
+                .writeAtAsync("/log-1", first.length() + 1, new ByteArrayInputStream(new byte[1]), 1).join());
+        assertTrue(pastEnd.getCause().getCause() instanceof IllegalArgumentException);
+        CompletionException missing = assertThrows(CompletionException.class, () -> fsHandler
+                .writeAtAsync("/missing", 0, new ByteArrayInputStream(new byte[1]), 1).join());
+        assertTrue(missing.getCause().getCause() instanceof FileNotFoundException);
+
+        fsHandler.defrag().join();
+        fsHandler.appendAsync("/log-1", new ByteArrayInputStream("after defrag".getBytes(StandardCharsets.UTF_8)),
+                12).join();
+        first.append("after defrag");
+
+        fsHandler.unmount();
+        Files.deleteIfExists(OffsetIndexCheckpoint.checkpointFile(fsFile).toPath());
+        fsHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(fsFile, options).join();
+
+        assertEquals(first.toString(), readStringFromFs("/log-1"));
+        assertEquals(second.toString(), readStringFromFs("/log-2"));
+        assertEquals(Set.of("/log-1", "/log-2"), fsHandler.listAsync("/").join());
+    }
+
+    @Test
+    void should_copy_deduplicated_file_on_append() {
+        File fsFile = tempDir.resolve("should_copy_deduplicated_file_on_append").toFile();
+        SimpleFilesystemOptions options = SimpleFilesystemOptions.builder()
+                .deduplication()
+                .build();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile, options).join();
+
+        writeStringInFs("/a", "shared");
+        writeStringInFs("/b", "shared");
+        fsHandler.appendAsync("/a", new ByteArrayInputStream(" and appended".getBytes(StandardCharsets.UTF_8)),
+                13).join();
+        fsHandler.writeAtAsync("/b", 0, new ByteArrayInputStream("S".getBytes(StandardCharsets.UTF_8)), 1).join();
+
+        assertEquals("shared and appended", readStringFromFs("/a"));
+        assertEquals("Shared", readStringFromFs("/b"));
+        writeStringInFs("/c", "shared");
+        assertEquals("shared", readStringFromFs("/c"));
+    }
+
+    @Test
+    void should_track_dead_space_and_compact_it_when_idle() throws IOException, InterruptedException {
+        File fsFile = tempDir.resolve("should_track_dead_space_and_compact_it_when_idle").toFile();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile).join();
+
+        Map<String, String> files = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            files.put("/file-" + i, String.valueOf(i).repeat(1000));
+            writeStringInFs("/file-" + i, files.get("/file-" + i));
+        }
+        for (int i = 0; i < 100; i += 2) {
+            fsHandler.deleteAsync("/file-" + i).join();
+            files.remove("/file-" + i);
+        }
+        updateStringInFs("/file-1", "updated");
+        files.put("/file-1", "updated");
+        fsHandler.appendAsync("/file-3", new ByteArrayInputStream("!".getBytes(StandardCharsets.UTF_8)), 1).join();
+        files.put("/file-3", files.get("/file-3") + "!");
+        writeStringInFs("/last", "after the space left for appends");
+        files.put("/last", "after the space left for appends");
+
+        long liveBytes = files.entrySet().stream().mapToLong(file -> getEntrySize(file.getKey(), file.getValue())).sum();
+        assertEquals(liveBytes, fsHandler.getLiveBytes());
+        long deadBytes = fsHandler.getDeadBytes();
+        // Deleted files, the old copy of the updated file and the space left after the appended one
+        assertTrue(deadBytes > 50 * getEntrySize("/file-10", "1".repeat(1000)) + SimpleFilesystemHandler.MIN_APPEND_SLACK_BYTES);
+
+        fsHandler.unmount();
+        fsHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(fsFile).join();
+        assertEquals(liveBytes, fsHandler.getLiveBytes());
+        assertEquals(deadBytes, fsHandler.getDeadBytes());
+        fsHandler.unmount();
+        Files.deleteIfExists(OffsetIndexCheckpoint.checkpointFile(fsFile).toPath());
+
+        SimpleFilesystemOptions options = SimpleFilesystemOptions.builder()
+                .autoCompaction(0.25, Long.MAX_VALUE, 50, TimeUnit.MILLISECONDS)
+                .compactionRateLimit(10 * 1024 * 1024)
+                .build();
+        fsHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(fsFile, options).join();
+        assertEquals(liveBytes, fsHandler.getLiveBytes());
+        assertEquals(deadBytes, fsHandler.getDeadBytes());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (fsHandler.getDeadBytes() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, fsHandler.getDeadBytes());
+        assertEquals(SimpleFilesystemHandler.VERSION_BYTES + liveBytes, fsFile.length());
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            assertEquals(file.getValue(), readStringFromFs(file.getKey()));
+        }
+    }
+
+    @Test
+    void should_skip_auto_compaction_while_readers_are_mounted() throws IOException, InterruptedException {
+        File fsFile = tempDir.resolve("should_skip_auto_compaction_while_readers_are_mounted").toFile();
+        RecordingFilesystemMetrics metrics = new RecordingFilesystemMetrics();
+        SimpleFilesystemOptions options = SimpleFilesystemOptions.builder()
+                .sharedReads()
+                .metrics(metrics)
+                .autoCompaction(0.25, Long.MAX_VALUE, 50, TimeUnit.MILLISECONDS)
+                .build();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile, options).join();
+        for (int i = 0; i < 100; i++) {
+            writeStringInFs("/file-" + i, String.valueOf(i % 10).repeat(1000));
+        }
+
+        SimpleFilesystemHandler reader = SimpleFilesystemHandler.mountReadOnlyAsync(fsFile).join();
+        long deadBytes;
+        try {
+            for (int i = 0; i < 100; i++) {
+                if (i % 5 != 0) {
+                    fsHandler.deleteAsync("/file-" + i).join();
+                }
+            }
+            deadBytes = fsHandler.getDeadBytes();
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (metrics.getGauges().get("filefs.compaction.skipped") < 2 && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            assertTrue(metrics.getGauges().get("filefs.compaction.skipped") >= 2);
+            assertEquals(deadBytes, fsHandler.getDeadBytes());
+        } finally {
+            reader.unmount();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (fsHandler.getDeadBytes() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, fsHandler.getDeadBytes());
+        assertEquals(0, metrics.getGauges().get("filefs.compaction.failed"));
+        for (int i = 0; i < 100; i += 5) {
+            assertEquals(String.valueOf(i % 10).repeat(1000), readStringFromFs("/file-" + i));
+        }
+    }
+
+    @Test
+    void should_stop_defrag_between_steps_when_it_yields() throws IOException {
+        File fsFile = tempDir.resolve("should_stop_defrag_between_steps_when_it_yields").toFile();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile).join();
+        for (int i = 0; i < 10; i++) {
+            writeStringInFs("/file-" + i, "content " + i);
+        }
+        fsHandler.deleteAsync("/file-0").join();
+        long length = fsFile.length();
+
+        fsHandler.defrag(() -> true).join();
+        assertEquals(length, fsFile.length());
+
+        fsHandler.defrag().join();
+        assertTrue(fsFile.length() < length);
+        for (int i = 1; i < 10; i++) {
+            assertEquals("content " + i, readStringFromFs("/file-" + i));
+        }
+    }
+
+    @Test
+    void should_read_and_write_buffers_with_asynchronous_io_while_defrag_runs() throws IOException {
+        File fsFile = tempDir.resolve("should_read_and_write_buffers_with_asynchronous_io_while_defrag_runs").toFile();
+        SimpleFilesystemOptions options = SimpleFilesystemOptions.builder()
+                .asynchronousIo()
+                .freeSpaceReuse()
+                .build();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile, options).join();
+
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            ByteBuffer data = ByteBuffer.allocateDirect(1000 + i);
+            data.put(String.valueOf(i).repeat(1000 + i).substring(0, 1000 + i).getBytes(StandardCharsets.UTF_8));
+            data.flip();
+            writes.add(fsHandler.writeAsync("/file-" + i, data));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).join();
+        for (int i = 0; i < 200; i += 2) {
+            fsHandler.deleteAsync("/file-" + i).join();
+        }
+
+        CompletableFuture<Void> defrag = fsHandler.defrag();
+        List<CompletableFuture<Long>> reads = new ArrayList<>();
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (int round = 0; round < 10; round++) {
+            for (int i = 1; i < 200; i += 2) {
+                ByteBuffer buffer = ByteBuffer.allocate(10);
+                buffers.add(buffer);
+                reads.add(fsHandler.readRangeAsync("/file-" + i, 995 + i, buffer));
+            }
+        }
+        defrag.join();
+        for (int i = 0; i < reads.size(); i++) {
+            int file = i % 100 * 2 + 1;
+            String expected = String.valueOf(file).repeat(1000 + file).substring(995 + file, 1000 + file);
+            assertEquals(expected.length(), reads.get(i).join());
+            ByteBuffer buffer = buffers.get(i);
+            buffer.flip();
+            assertEquals(expected, StandardCharsets.UTF_8.decode(buffer).toString());
+        }
+
+        // Goes into the region of the deleted file
+        fsHandler.deleteAsync("/file-1").join();
+        fsHandler.writeAsync("/small", ByteBuffer.wrap("written in place".getBytes(StandardCharsets.UTF_8))).join();
+        assertEquals("written in place", readStringFromFs("/small"));
+        CompletionException exists = assertThrows(CompletionException.class,
+                () -> fsHandler.writeAsync("/small", ByteBuffer.allocate(1)).join());
+        assertTrue(exists.getCause().getCause() instanceof IllegalArgumentException);
+        CompletionException missing = assertThrows(CompletionException.class,
+                () -> fsHandler.readRangeAsync("/file-0", 0, ByteBuffer.allocate(1)).join());
+        assertTrue(missing.getCause().getCause() instanceof FileNotFoundException);
+
+        fsHandler.unmount();
+        fsHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(fsFile).join();
+        assertEquals("written in place", readStringFromFs("/small"));
+        assertEquals("3".repeat(1003), readStringFromFs("/file-3"));
+        assertEquals(100, fsHandler.listAsync("/").join().size());
+        assertThrows(IllegalStateException.class, () -> fsHandler.writeAsync("/other", ByteBuffer.allocate(1)));
+    }
+
+    @Test
+    void should_stream_files_of_unknown_length_in_and_out_with_back_pressure() throws Exception {
+        File fsFile = tempDir.resolve("should_stream_files_of_unknown_length_in_and_out_with_back_pressure").toFile();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile).join();
+
+        StringBuilder expected = new StringBuilder();
+        CompletableFuture<Void> streamed;
+        try (SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>()) {
+            streamed = fsHandler.writeAsync("/streamed", publisher);
+            for (int i = 0; i < 3000; i++) {
+                String chunk = "chunk " + i + " of the upload\n";
+                expected.append(chunk);
+                publisher.submit(ByteBuffer.wrap(chunk.getBytes(StandardCharsets.UTF_8)));
+                if (i % 500 == 0) {
+                    // Other writes take the tail, so the streamed file is moved once its region is full
+                    writeStringInFs("/interleaved-" + i, "written meanwhile");
+                }
+            }
+        }
+        streamed.join();
+        assertEquals(expected.toString(), readStringFromFs("/streamed"));
+
+        CompletableFuture<Void> failed;
+        try (SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>()) {
+            failed = fsHandler.writeAsync("/failed", publisher);
+            publisher.submit(ByteBuffer.wrap("partial".getBytes(StandardCharsets.UTF_8)));
+            publisher.closeExceptionally(new IOException("Upload was interrupted"));
+        }
+        CompletionException e = assertThrows(CompletionException.class, failed::join);
+        assertEquals("Upload was interrupted", e.getCause().getCause().getMessage());
+        assertFalse(fsHandler.listAsync("/").join().contains("/failed"));
+
+        fsHandler.defrag().join();
+        fsHandler.unmount();
+        fsHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(fsFile).join();
+        assertEquals(expected.toString(), readStringFromFs("/streamed"));
+        assertEquals("written meanwhile", readStringFromFs("/interleaved-2500"));
+
+        List<ByteBuffer> chunks = new ArrayList<>();
+        CompletableFuture<Void> completed = new CompletableFuture<>();
+        AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+        fsHandler.readPublisher("/streamed").subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription.set(s);
+                s.request(1);
+            }
+
+            @Override
+            public void onNext(ByteBuffer chunk) {
+                synchronized (chunks) {
+                    chunks.add(chunk);
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                completed.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                completed.complete(null);
+            }
+        });
+        Thread.sleep(100);
+        synchronized (chunks) {
+            assertEquals(1, chunks.size(), "Chunks are read only on demand");
+        }
+        subscription.get().request(Long.MAX_VALUE);
+        completed.get(10, TimeUnit.SECONDS);
+
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        for (ByteBuffer chunk : chunks) {
+            read.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+        }
+        assertEquals(expected.toString(), read.toString(StandardCharsets.UTF_8));
+        assertEquals((expected.length() + SimpleFilesystemHandler.STREAM_CHUNK_BYTES - 1)
+                / SimpleFilesystemHandler.STREAM_CHUNK_BYTES, chunks.size());
+    }
+
+    @Test
+    void should_read_snapshot_while_files_change_and_keep_its_entries_on_defrag() throws IOException {
+        File fsFile = tempDir.resolve("should_read_snapshot_while_files_change_and_keep_its_entries_on_defrag").toFile();
+        SimpleFilesystemOptions options = SimpleFilesystemOptions.builder()
+                .freeSpaceReuse()
+                .build();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile, options).join();
+
+        Map<String, String> snapshotted = new LinkedHashMap<>();
+        for (int i = 0; i < 20; i++) {
+            snapshotted.put("/file-" + i, ("version 1 of " + i + "\n").repeat(50));
+            writeStringInFs("/file-" + i, snapshotted.get("/file-" + i));
+        }
+        snapshotted.put("/log", "first line\n");
+        writeStringInFs("/log", "first line\n");
+        FilesystemSnapshot snapshot = fsHandler.snapshot().join();
+        assertEquals(21, snapshot.size());
+
+        for (int i = 0; i < 20; i += 2) {
+            updateStringInFs("/file-" + i, "version 2 of " + i);
+        }
+        for (int i = 1; i < 20; i += 6) {
+            fsHandler.deleteAsync("/file-" + i).join();
+        }
+        fsHandler.writeAtAsync("/file-3", 0, new ByteArrayInputStream("PATCH".getBytes(StandardCharsets.UTF_8)), 5)
+                .join();
+        fsHandler.appendAsync("/log", new ByteArrayInputStream("second line\n".getBytes(StandardCharsets.UTF_8)), 12)
+                .join();
+        writeStringInFs("/new", "written after the snapshot");
+        fsHandler.defrag().join();
+        writeStringInFs("/after-defrag", "may reuse free space");
+
+        assertEquals(snapshotted.keySet(), snapshot.listAsync("/").join());
+        for (Map.Entry<String, String> file : snapshotted.entrySet()) {
+            assertEquals(file.getValue(), readStringFrom(snapshot, file.getKey()));
+        }
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        assertEquals(7L, snapshot.readRangeAsync("/file-3", 0, 7, Channels.newChannel(range)).join());
+        assertEquals("version", range.toString(StandardCharsets.UTF_8));
+        assertEquals("", readStringFrom(snapshot, "/new"));
+        CompletionException missing = assertThrows(CompletionException.class, () -> snapshot
+                .readRangeAsync("/new", 0, 1, Channels.newChannel(new ByteArrayOutputStream())).join());
+        assertTrue(missing.getCause().getCause() instanceof FileNotFoundException);
+        CompletionException readOnly = assertThrows(CompletionException.class,
+                () -> snapshot.deleteAsync("/log").join());
+        assertTrue(readOnly.getCause() instanceof UnsupportedOperationException);
+
+        assertEquals("version 2 of 4", readStringFromFs("/file-4"));
+        assertEquals("", readStringFromFs("/file-7"));
+        assertEquals("PATCH" + snapshotted.get("/file-3").substring(5), readStringFromFs("/file-3"));
+        assertEquals("first line\nsecond line\n", readStringFromFs("/log"));
+        assertEquals("may reuse free space", readStringFromFs("/after-defrag"));
+
+        long sizeWithSnapshot = fsFile.length();
+        snapshot.unmount();
+        fsHandler.defrag().join();
+        assertTrue(fsFile.length() < sizeWithSnapshot);
+        assertEquals("version 2 of 4", readStringFromFs("/file-4"));
+        assertEquals("written after the snapshot", readStringFromFs("/new"));
+
+        // Deleted references keep their flags, so the snapshot still finds the blob
+        fsHandler.unmount();
+        options = SimpleFilesystemOptions.builder()
+                .freeSpaceReuse()
+                .deduplication()
+                .build();
+        fsHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(fsFile, options).join();
+        writeStringInFs("/a", "shared body");
+        writeStringInFs("/b", "shared body");
+        FilesystemSnapshot deduplicated = fsHandler.snapshot().join();
+        fsHandler.deleteAsync("/a").join();
+        fsHandler.deleteAsync("/b").join();
+        fsHandler.defrag().join();
+        assertEquals("shared body", readStringFrom(deduplicated, "/b"));
+        assertEquals("", readStringFromFs("/b"));
+        deduplicated.unmount();
+    }
+
+    @Test
+    void should_follow_tail_of_writer_from_read_only_mount() throws IOException {
+        File fsFile = tempDir.resolve("should_follow_tail_of_writer_from_read_only_mount").toFile();
+        SimpleFilesystemOptions options = SimpleFilesystemOptions.builder()
+                .sharedReads()
+                .build();
+        assertThrows(IllegalStateException.class,
+                () -> SimpleFilesystemOptions.builder().sharedReads().freeSpaceReuse().build());
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile, options).join();
+        writeStringInFs("/a", "first version");
+        writeStringInFs("/b", "log");
+        writeStringInFs("/deleted", "soon deleted");
+
+        SimpleFilesystemHandler reader = SimpleFilesystemHandler.mountReadOnlyAsync(fsFile).join();
+        try {
+            assertEquals("first version", readStringFrom(reader, "/a"));
+            assertEquals(Set.of("/a", "/b", "/deleted"), reader.listAsync("/").join());
+
+            updateStringInFs("/a", "second version");
+            for (int i = 0; i < 3; i++) {
+                fsHandler.appendAsync("/b", new ByteArrayInputStream(" line".getBytes(StandardCharsets.UTF_8)), 5)
+                        .join();
+            }
+            fsHandler.deleteAsync("/deleted").join();
+            writeStringInFs("/c", "new file");
+
+            assertEquals(Set.of("/a", "/b", "/c", "/deleted"), reader.listAsync("/").join());
+            assertEquals("second version", readStringFrom(reader, "/a"));
+            assertEquals("log line line line", readStringFrom(reader, "/b"));
+            assertEquals("new file", readStringFrom(reader, "/c"));
+            assertEquals("", readStringFrom(reader, "/deleted"));
+            writeStringInFs("/d", "picked up by refresh");
+            reader.refreshAsync().join();
+            assertEquals(List.of("/d"), reader.listPageAsync("/", "/c", 1).join());
+
+            CompletionException readOnly = assertThrows(CompletionException.class, () -> reader
+                    .writeAsync("/e", new ByteArrayInputStream(new byte[1]), 1).join());
+            assertTrue(readOnly.getCause() instanceof UnsupportedOperationException);
+            CompletionException defragWithReaders = assertThrows(CompletionException.class,
+                    () -> fsHandler.defrag().join());
+            assertTrue(defragWithReaders.getCause().getCause() instanceof IOException);
+        } finally {
+            reader.unmount();
+        }
+
+        fsHandler.defrag().join();
+        fsHandler.unmount();
+        // Followed without a writer too
+        fsHandler = SimpleFilesystemHandler.mountReadOnlyAsync(fsFile).join();
+        assertEquals(Set.of("/a", "/b", "/c", "/d"), fsHandler.listAsync("/").join());
+        assertEquals("log line line line", readStringFromFs("/b"));
+        fsHandler.unmount();
+
+        // A writer without shared reads can't be followed
+        fsHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(fsFile).join();
+        CompletionException notShared = assertThrows(CompletionException.class,
+                () -> SimpleFilesystemHandler.mountReadOnlyAsync(fsFile).join());
+        assertTrue(notShared.getCause().getCause() instanceof FileNotFoundException);
+    }
+
+    @Test
+    void should_export_files_under_prefix_and_import_them_into_another_fs() throws IOException {
+        File sourceFile = tempDir.resolve("should_export_files_under_prefix_source").toFile();
+        SimpleFilesystemOptions options = SimpleFilesystemOptions.builder()
+                .deduplication()
+                .build();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(sourceFile, options).join();
+        byte[] big = new byte[SimpleFilesystemHandler.BATCH_INLINE_BYTES * 2];
+        new Random(42).nextBytes(big);
+        writeStringInFs("/data/a", "same contents");
+        fsHandler.writeAsync("/data/big", new ByteArrayInputStream(big), big.length).join();
+        writeStringInFs("/data/b", "same contents");
+        writeStringInFs("/data/c", "own contents");
+        writeStringInFs("/other", "not exported");
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        assertEquals(4, fsHandler.exportAsync("/data/", Channels.newChannel(archive)).join());
+        fsHandler.unmount();
+
+        File targetFile = tempDir.resolve("should_export_files_under_prefix_target").toFile();
+        fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(targetFile).join();
+        assertEquals(4, fsHandler.importAsync(
+                Channels.newChannel(new ByteArrayInputStream(archive.toByteArray()))).join());
+        assertEquals(Set.of("/data/a", "/data/b", "/data/big", "/data/c"), fsHandler.listAsync("/").join());
+        assertEquals("same contents", readStringFromFs("/data/a"));
+        assertEquals("same contents", readStringFromFs("/data/b"));
+        assertEquals("own contents", readStringFromFs("/data/c"));
+        ByteArrayOutputStream bigCopy = new ByteArrayOutputStream();
+        fsHandler.readAsync("/data/big", bigCopy).join();
+        assertArrayEquals(big, bigCopy.toByteArray());
+
+        CompletionException existing = assertThrows(CompletionException.class, () -> fsHandler.importAsync(
+                Channels.newChannel(new ByteArrayInputStream(archive.toByteArray()))).join());
+        assertTrue(existing.getCause().getCause() instanceof IllegalArgumentException);
+        byte[] notArchive = archive.toByteArray();
+        notArchive[0]++;
+        CompletionException corrupted = assertThrows(CompletionException.class, () -> fsHandler.importAsync(
+                Channels.newChannel(new ByteArrayInputStream(notArchive))).join());
+        assertTrue(corrupted.getCause().getCause() instanceof IOException);
+
+        fsHandler.unmount();
+        fsHandler = SimpleFilesystemHandler.mountExistingFilesystemAsync(targetFile).join();
+        assertEquals("same contents", readStringFromFs("/data/b"));
+    }
+
+    private String readStringFrom(FilesystemHandler handler, String fileName) {
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        handler.readAsync(fileName, destination)
+                .exceptionally(Assertions::fail)
+                .join();
+        return new String(destination.toByteArray(), StandardCharsets.UTF_8);
+    }
+
     private void initEmptyFs(String should_write_to_fs_then_delete_it) {
         File fsFile = tempDir.resolve(should_write_to_fs_then_delete_it).toFile();
         fsHandler = SimpleFilesystemHandler.initThenMountFilesystemAsync(fsFile).join();
@@ -202,6 +1297,30 @@ public class SimpleFilesystemHandlerTest {
         }
     }
 
+    private void updateStringInFs(String fileName, String data) {
+        long fileToWriteLen = getUTF8StringLengthInBytes(data);
+        try (ByteArrayInputStream source = new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8))) {
+            fsHandler.updateAsync(fileName, source, fileToWriteLen)
+                    .exceptionally(Assertions::fail)
+                    .join();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private String readStringFromFs(String fileName) {
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        fsHandler.readAsync(fileName, destination)
+                .exceptionally(Assertions::fail)
+                .join();
+        return new String(destination.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private long getEntrySize(String fileName, String data) {
+        return SimpleFilesystemHandler.getFilePropertiesSize(getUTF8StringLengthInBytes(fileName))
+                + getUTF8StringLengthInBytes(data);
+    }
+
     private int getUTF8StringLengthInBytes(String data) {
         return data.getBytes(StandardCharsets.UTF_8).length;
     }